@@ -40,6 +40,11 @@ public class Regex {
 	 * Whether the regular expression is case sensitive. 
 	 */
 	private boolean caseSensitive = DEFAULT_CASE_SENSITIVITY;
+	
+	/**
+	 * The literal prefix of the regular expression, computed lazily.
+	 */
+	private volatile String literalPrefix = null;
 		
 	/**
 	 * Constructor.
@@ -99,6 +104,7 @@ public class Regex {
 	 */
 	protected void setCaseSensitive(boolean caseSensitive) {
 		this.caseSensitive = caseSensitive;
+		this.literalPrefix = null;
 	}
 
 	/**
@@ -116,6 +122,115 @@ public class Regex {
 		return result;		
 	}
 
+	/**
+	 * Returns the literal prefix of the regular expression, that is the longest
+	 * string that all strings matching the whole regular expression must begin 
+	 * with; e.g. for {@code reports/2024-.*} it is {@code reports/2024-}. This
+	 * allows to look up matching strings in a sorted collection by visiting 
+	 * only the range of elements beginning with the prefix. The prefix is 
+	 * computed conservatively: escapes other than quoted characters, groups, 
+	 * character classes and top-level alternations stop it, and case 
+	 * insensitive expressions have no prefix.
+	 * 
+	 * @return
+	 *   the literal prefix, or an empty string if there is none.
+	 */
+	public String getLiteralPrefix() {
+		String prefix = literalPrefix;
+		if(prefix == null) {
+			prefix = caseSensitive ? getLiteralPrefix(getRegex()) : "";
+			literalPrefix = prefix;
+		}
+		return prefix;
+	}
+	
+	/**
+	 * Computes the literal prefix of the given regular expression.
+	 * 
+	 * @param regex
+	 *   the regular expression.
+	 * @return
+	 *   the literal prefix, or an empty string if there is none.
+	 */
+	private static String getLiteralPrefix(String regex) {
+		if(hasTopLevelAlternation(regex)) {
+			return "";
+		}
+		StringBuilder prefix = new StringBuilder();
+		int i = regex.startsWith("^") ? 1 : 0;
+		while(i < regex.length()) {
+			char c = regex.charAt(i);
+			int length = prefix.length();
+			if(c == '\\' && i + 1 < regex.length()) {
+				char next = regex.charAt(i + 1);
+				if(next == 'Q') {
+					int end = regex.indexOf("\\E", i + 2);
+					prefix.append(end != -1 ? regex.substring(i + 2, end) : regex.substring(i + 2));
+					i = end != -1 ? end + 2 : regex.length();
+				} else if(!Character.isLetterOrDigit(next)) {
+					prefix.append(next);
+					i += 2;
+				} else {
+					break;
+				}
+			} else if(".[]{}()*+?^$|\\".indexOf(c) == -1) {
+				prefix.append(c);
+				++i;
+			} else {
+				break;
+			}
+			if(i < regex.length()) {
+				char quantifier = regex.charAt(i);
+				if(quantifier == '*' || quantifier == '?' || quantifier == '{') {
+					// the last literal (or the whole quoted section) is optional
+					prefix.setLength(c == '\\' && regex.charAt(i - 1) == 'E' ? length : prefix.length() - 1);
+					break;
+				} else if(quantifier == '+') {
+					break;
+				}
+			}
+		}
+		return prefix.toString();
+	}
+	
+	/**
+	 * Checks whether the given regular expression has an alternation outside 
+	 * of any group or character class.
+	 * 
+	 * @param regex
+	 *   the regular expression.
+	 * @return
+	 *   whether the regular expression has a top level alternation.
+	 */
+	private static boolean hasTopLevelAlternation(String regex) {
+		int depth = 0;
+		boolean inClass = false;
+		boolean quoted = false;
+		for(int i = 0; i < regex.length(); ++i) {
+			char c = regex.charAt(i);
+			if(quoted) {
+				if(c == '\\' && i + 1 < regex.length() && regex.charAt(i + 1) == 'E') {
+					quoted = false;
+					++i;
+				}
+			} else if(c == '\\') {
+				quoted = i + 1 < regex.length() && regex.charAt(i + 1) == 'Q';
+				++i;
+			} else if(inClass) {
+				inClass = c != ']';
+			} else if(c == '[') {
+				inClass = true;
+			} else if(c == '(') {
+				++depth;
+			} else if(c == ')') {
+				--depth;
+			} else if(c == '|' && depth == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Retrieves a list of tokens in the input string that
 	 * match this regular expression.
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.core.streams;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.dihedron.core.License;
+
+/**
+ * An input stream class reading at most a given number of bytes from an
+ * underlying stream; closing this stream closes the underlying one.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class BoundedInputStream extends FilterInputStream {
+
+	/**
+	 * The number of bytes that can still be read.
+	 */
+	private long left;
+
+	/**
+	 * The number of bytes that could be read when the stream was marked.
+	 */
+	private long marked = -1;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param input
+	 *   the underlying stream.
+	 * @param length
+	 *   the maximum number of bytes to be read.
+	 */
+	public BoundedInputStream(InputStream input, long length) {
+		super(input);
+		this.left = Math.max(0, length);
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		if(left == 0) {
+			return -1;
+		}
+		int b = in.read();
+		if(b != -1) {
+			--left;
+		}
+		return b;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(left == 0) {
+			return len == 0 ? 0 : -1;
+		}
+		int read = in.read(b, off, (int)Math.min(len, left));
+		if(read > 0) {
+			left -= read;
+		}
+		return read;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(Math.min(n, left));
+		left -= skipped;
+		return skipped;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(in.available(), left);
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#mark(int)
+	 */
+	@Override
+	public synchronized void mark(int readlimit) {
+		in.mark(readlimit);
+		marked = left;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#reset()
+	 */
+	@Override
+	public synchronized void reset() throws IOException {
+		if(marked == -1) {
+			throw new IOException("mark not set");
+		}
+		in.reset();
+		left = marked;
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.io.IOException;
+
+import org.dihedron.core.License;
+
+/**
+ * An interface implemented by the output streams returned by storages that can
+ * discard a resource being written instead of storing it: closing the stream
+ * commits the resource, aborting it throws away whatever has been written so
+ * far. Storages that replace resources atomically leave the previous version
+ * (if any) in place; the others remove it.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public interface Abortable {
+
+	/**
+	 * Discards the data written so far, so that the resource is not stored;
+	 * once aborted, closing the stream has no effect. Aborting a stream that
+	 * has already been closed has no effect either.
+	 *
+	 * @throws IOException
+	 *   if the partially written data cannot be discarded.
+	 */
+	void abort() throws IOException;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dihedron.core.License;
+
+/**
+ * Records the names of the resources accessed through a cache, with the number
+ * of accesses to each, so that the hottest ones can be used as the manifest
+ * for warming up the cache next time. The number of distinct resources
+ * recorded is bounded; once the bound is reached, only accesses to resources
+ * already recorded are counted. This class is thread-safe.
+ *
+ * @author Andrea Funto'
+ */
+@License
+class AccessRecorder {
+
+	/**
+	 * The number of accesses to each recorded resource.
+	 */
+	private final ConcurrentMap<String, AtomicLong> accesses = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * The maximum number of distinct resources recorded.
+	 */
+	private final int capacity;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   the maximum number of distinct resources recorded.
+	 */
+	AccessRecorder(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Records an access to the given resource.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	void record(String resource) {
+		AtomicLong count = accesses.get(resource);
+		if(count == null) {
+			if(accesses.size() >= capacity) {
+				return;
+			}
+			AtomicLong previous = accesses.putIfAbsent(resource, count = new AtomicLong());
+			if(previous != null) {
+				count = previous;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Returns the names of the recorded resources, from the most to the least
+	 * frequently accessed.
+	 *
+	 * @return
+	 *   the names of the recorded resources.
+	 */
+	List<String> getResources() {
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(accesses.size());
+		for(Map.Entry<String, AtomicLong> entry : accesses.entrySet()) {
+			entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), entry.getValue().get()));
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+				int result = second.getValue().compareTo(first.getValue());
+				return result != 0 ? result : first.getKey().compareTo(second.getKey());
+			}
+		});
+		List<String> resources = new ArrayList<String>(entries.size());
+		for(Map.Entry<String, Long> entry : entries) {
+			resources.add(entry.getKey());
+		}
+		return resources;
+	}
+}
@@ -7,10 +7,25 @@ package org.dihedron.patterns.cache;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.MirrorInputStream;
 import org.dihedron.core.streams.Streams;
 import org.dihedron.core.strings.Strings;
 import org.slf4j.Logger;
@@ -22,6 +37,17 @@ import org.slf4j.LoggerFactory;
 @License
 public class Cache implements Iterable<String>{
 	
+	/**
+	 * The time to live of resources that never expire.
+	 */
+	public static final long NEVER_EXPIRES = -1;
+	
+	/**
+	 * The default time (in milliseconds) a request waits for a concurrent load
+	 * of the same resource to complete.
+	 */
+	public static final long DEFAULT_LOAD_TIMEOUT = 30000;
+	
 	/** 
 	 * The logger. 
 	 */
@@ -32,6 +58,61 @@ public class Cache implements Iterable<String>{
 	 */
 	private Storage storage;
 	
+	/**
+	 * The resources currently being loaded through cache miss handlers, each 
+	 * with the latch on which concurrent requests for the same resource wait.
+	 */
+	private final ConcurrentMap<String, CountDownLatch> loads = new ConcurrentHashMap<String, CountDownLatch>();
+	
+	/**
+	 * The expiration deadlines of the resources that have a time to live.
+	 */
+	private final ExpiryTracker expiries = new ExpiryTracker();
+	
+	/**
+	 * The recent failures of the cache miss handlers, for negative caching.
+	 */
+	private final FailureTracker failures;
+	
+	/**
+	 * The time to live (in milliseconds) of resources stored without an 
+	 * explicit one.
+	 */
+	private volatile long defaultTimeToLive = NEVER_EXPIRES;
+	
+	/**
+	 * The executor running the background reaper, if started.
+	 */
+	private ScheduledExecutorService reaper;
+	
+	/**
+	 * The executor running asynchronous loads and stores; if not set, a shared
+	 * pool of daemon threads is created on first use.
+	 */
+	private Executor executor;
+	
+	/**
+	 * The statistics of the cache.
+	 */
+	private final CacheStatistics statistics;
+	
+	/**
+	 * The recorder of the accessed resources, if recording.
+	 */
+	private volatile AccessRecorder recorder;
+	
+	/**
+	 * Whether resources loaded by cache miss handlers are streamed through to
+	 * the caller while being stored.
+	 */
+	private volatile boolean streamThrough = false;
+	
+	/**
+	 * How long (in milliseconds) a request waits for a concurrent load of the
+	 * same resource to complete.
+	 */
+	private volatile long loadTimeout = DEFAULT_LOAD_TIMEOUT;
+	
 	/**
 	 * Constructor.
 	 * 
@@ -39,8 +120,22 @@ public class Cache implements Iterable<String>{
 	 *   the storage engine to be used for persistence.
 	 */
 	public Cache(Storage storage) {
+		this(storage, FailureTracker.SYSTEM_CLOCK);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param storage
+	 *   the storage engine to be used for persistence.
+	 * @param clock
+	 *   the clock timing the back-off periods of failed cache miss handlers.
+	 */
+	Cache(Storage storage, FailureTracker.Clock clock) {
 		logger.debug("created cache");
 		this.storage = storage;
+		this.statistics = new CacheStatistics(storage);
+		this.failures = new FailureTracker(clock);
 	}
 	
 	/**
@@ -54,6 +149,289 @@ public class Cache implements Iterable<String>{
 		return storage;
 	}
 	
+	/**
+	 * Returns the statistics of the cache, which are collected continuously.
+	 * 
+	 * @return
+	 *   the statistics of the cache; use {@link CacheStatistics#snapshot()} to
+	 *   read them.
+	 */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * Returns the time to live of resources stored without an explicit one.
+	 * 
+	 * @return
+	 *   the default time to live in milliseconds, or {@link #NEVER_EXPIRES}.
+	 */
+	public long getDefaultTimeToLive() {
+		return defaultTimeToLive;
+	}
+	
+	/**
+	 * Sets the time to live of resources stored without an explicit one; it 
+	 * only applies to resources stored from now on.
+	 * 
+	 * @param timeToLive
+	 *   the default time to live in milliseconds; if not positive, resources
+	 *   never expire.
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public Cache setDefaultTimeToLive(long timeToLive) {
+		this.defaultTimeToLive = timeToLive > 0 ? timeToLive : NEVER_EXPIRES;
+		return this;
+	}
+	
+	/**
+	 * Enables negative caching: when a cache miss handler cannot provide a
+	 * resource (because it returns no data or fails), it is not asked for the
+	 * same resource again until a back-off period has elapsed, which doubles 
+	 * at each consecutive failure (handlers are told apart through their 
+	 * {@code equals()} method); when no handler can provide a resource, the 
+	 * resource itself backs off, and until then it is reported as missing 
+	 * immediately, without contacting any origin. Loading the resource resets
+	 * its back-off and that of the handler that provided it, while storing it
+	 * resets all of them.
+	 * 
+	 * @param timeToLive
+	 *   the back-off period after the first failure, in milliseconds; if not
+	 *   positive, negative caching is disabled (the default).
+	 * @param maxTimeToLive
+	 *   the maximum back-off period, in milliseconds.
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public Cache setNegativeTimeToLive(long timeToLive, long maxTimeToLive) {
+		failures.setTimeToLive(timeToLive, maxTimeToLive);
+		return this;
+	}
+	
+	/**
+	 * Returns the back-off period of cache miss handlers after their first 
+	 * failure to provide a resource.
+	 * 
+	 * @return
+	 *   the back-off period in milliseconds, 0 if negative caching is disabled.
+	 * @see #setNegativeTimeToLive(long, long)
+	 */
+	public long getNegativeTimeToLive() {
+		return failures.getTimeToLive();
+	}
+	
+	/**
+	 * Returns the maximum back-off period of cache miss handlers.
+	 * 
+	 * @return
+	 *   the maximum back-off period in milliseconds.
+	 * @see #setNegativeTimeToLive(long, long)
+	 */
+	public long getMaxNegativeTimeToLive() {
+		return failures.getMaxTimeToLive();
+	}
+	
+	/**
+	 * Returns whether resources loaded by cache miss handlers are streamed 
+	 * through to the caller while being stored.
+	 * 
+	 * @return
+	 *   whether stream-through loading is enabled.
+	 * @see #setStreamThrough(boolean)
+	 */
+	public boolean isStreamThrough() {
+		return streamThrough;
+	}
+	
+	/**
+	 * Sets whether resources loaded by cache miss handlers are streamed through
+	 * to the caller while being stored: on a miss, instead of storing the whole
+	 * resource and then reading it back from the storage, the caller receives 
+	 * the handler's data as they arrive, while they are copied into the 
+	 * storage. The resource is only committed to the storage when the caller
+	 * reaches the end of the stream; if the caller closes the stream earlier,
+	 * even after reading all of the data, or the handler fails midway, it is 
+	 * discarded (see {@link Abortable}). Since the
+	 * data are already being delivered, a handler failing midway is reported
+	 * to the caller as an I/O error instead of falling back to the next handler.
+	 * Concurrent requests for the same resource wait until the caller is done
+	 * with the stream (at most for the {@linkplain #setLoadTimeout(long) load
+	 * timeout}), and then read the stored resource.
+	 * 
+	 * @param streamThrough
+	 *   whether stream-through loading should be enabled.
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public Cache setStreamThrough(boolean streamThrough) {
+		this.streamThrough = streamThrough;
+		return this;
+	}
+	
+	/**
+	 * Returns how long a request waits for a concurrent load of the same 
+	 * resource to complete.
+	 * 
+	 * @return
+	 *   the timeout in milliseconds.
+	 * @see #setLoadTimeout(long)
+	 */
+	public long getLoadTimeout() {
+		return loadTimeout;
+	}
+	
+	/**
+	 * Sets how long a request waits for a concurrent load of the same resource
+	 * to complete; when the timeout elapses, the request gives up and reports
+	 * the resource as missing if it has not been stored in the meanwhile. This
+	 * bounds the wait on slow handlers and, with stream-through loading, on 
+	 * callers that keep the stream open, including a caller requesting the 
+	 * same resource again before closing its own stream.
+	 * 
+	 * @param loadTimeout
+	 *   the timeout in milliseconds; if not positive, {@link 
+	 *   #DEFAULT_LOAD_TIMEOUT} is used.
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public Cache setLoadTimeout(long loadTimeout) {
+		this.loadTimeout = loadTimeout > 0 ? loadTimeout : DEFAULT_LOAD_TIMEOUT;
+		return this;
+	}
+	
+	/**
+	 * Starts a background thread that periodically removes expired resources;
+	 * each run removes at most the given number of resources, in order of 
+	 * expiration, so that cleaning up never stalls the cache. Resources that 
+	 * expire are anyway removed lazily when accessed, the reaper only keeps 
+	 * those that are never accessed again from wasting storage.
+	 * 
+	 * @param period
+	 *   the interval between runs, in milliseconds.
+	 * @param maxPerRun
+	 *   the maximum number of resources removed by each run.
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public synchronized Cache startReaper(long period, final int maxPerRun) {
+		if(reaper == null) {
+			logger.debug("starting reaper, running every {} ms", period);
+			reaper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cache-reaper"));
+			reaper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reap(maxPerRun);
+					} catch(RuntimeException e) {
+						logger.error("error removing expired resources", e);
+					}
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		return this;
+	}
+	
+	/**
+	 * Stops the background reaper, if started.
+	 * 
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public synchronized Cache stopReaper() {
+		if(reaper != null) {
+			logger.debug("stopping reaper");
+			reaper.shutdownNow();
+			reaper = null;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets the executor on which asynchronous loads and stores are run; the 
+	 * cache does not shut it down.
+	 * 
+	 * @param executor
+	 *   the executor; if {@code null}, a pool of daemon threads owned by the 
+	 *   cache is used.
+	 * @return
+	 *   the cache itself, for method chaining.
+	 */
+	public synchronized Cache setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+	
+	/**
+	 * Returns the executor on which asynchronous loads and stores are run,
+	 * creating the default one if none has been set.
+	 * 
+	 * @return
+	 *   the executor.
+	 */
+	public synchronized Executor getExecutor() {
+		if(executor == null) {
+			logger.debug("creating default executor for asynchronous operations");
+			executor = Executors.newCachedThreadPool(new DaemonThreadFactory("cache-loader"));
+		}
+		return executor;
+	}
+	
+	/**
+	 * Removes at most the given number of expired resources, in order of 
+	 * expiration; failures of cache miss handlers whose back-off is over are
+	 * forgotten as well.
+	 * 
+	 * @param max
+	 *   the maximum number of resources to remove.
+	 * @return
+	 *   the number of resources removed.
+	 */
+	public int reap(int max) {
+		int count = 0;
+		for(String resource : expiries.poll(max)) {
+			logger.trace("resource '{}' expired, removing", resource);
+			storage.delete(resource, false);
+			statistics.expiration();
+			++count;
+		}
+		if(count > 0) {
+			logger.debug("removed {} expired resources", count);
+		}
+		failures.purge();
+		return count;
+	}
+	
+	/**
+	 * Starts recording the names of the resources retrieved from the cache, so
+	 * that they can be used as the manifest to warm up the cache next time; if
+	 * already recording, the recording starts anew.
+	 * 
+	 * @param capacity
+	 *   the maximum number of distinct resources to be recorded.
+	 * @return
+	 *   the object itself, for method chaining.
+	 * @see CacheWarmer
+	 */
+	public Cache startRecording(int capacity) {
+		recorder = new AccessRecorder(capacity);
+		return this;
+	}
+	
+	/**
+	 * Stops recording the names of the resources retrieved from the cache.
+	 * 
+	 * @return
+	 *   the names of the resources retrieved since the recording was started, 
+	 *   from the most to the least frequently accessed; the list is empty if 
+	 *   the cache was not recording.
+	 */
+	public List<String> stopRecording() {
+		AccessRecorder recorder = this.recorder;
+		this.recorder = null;
+		return recorder != null ? recorder.getResources() : Collections.<String>emptyList();
+	}
+	
 	/**
 	 * Checks whether the cache is empty.
 	 * 
@@ -84,6 +462,8 @@ public class Cache implements Iterable<String>{
 	public Cache clear(){
 		logger.debug("clearing the cache");
 		storage.clear();
+		expiries.clear();
+		failures.clear();
 		return this;
 	}
 	
@@ -98,6 +478,7 @@ public class Cache implements Iterable<String>{
 	public Cache delete(Regex regex) {
 		logger.debug("deleting all files named according to /{}/", regex);
 		storage.delete(regex);
+		expiries.forget(regex);
 		return this;
 	}
 	
@@ -115,12 +496,14 @@ public class Cache implements Iterable<String>{
 	public Cache delete(String resource, boolean caseInsensitive) {
 		logger.debug("deleting all files named according to '{}' (case insensitive)", resource);
 		storage.delete(resource, caseInsensitive);
+		expiries.forget(resource, caseInsensitive);
 		return this;
 	}
 	
 	/**
 	 * Copies data from one resource to another, possibly replacing the destination 
-	 * resource if one exists.
+	 * resource if one exists; the destination gets the default time to live. If
+	 * the storage is a {@link CopyingStorage}, the copy is delegated to it.
 	 * 
 	 * @param source
 	 *   the name of the source resource.
@@ -134,9 +517,18 @@ public class Cache implements Iterable<String>{
 			logger.error("invalid input parameters for copy from '{}' to '{}'", source, destination);
 			throw new CacheException("invalid input parameters (source: '" + source + "', destination: '" + destination + "')");
 		}
+		expire(source);
+		if(storage instanceof CopyingStorage) {
+			((CopyingStorage)storage).copy(source, destination);
+			logger.trace("copied '{}' to '{}' within storage", source, destination);
+			expiries.expireAfter(destination, defaultTimeToLive);
+			return this;
+		}
 		try (InputStream input = storage.retrieve(source); OutputStream output = storage.store(destination)) {
 			long copied = Streams.copy(input, output);
 			logger.trace("copied {} bytes from '{}' to '{}'", copied, source, destination);
+			statistics.stored(copied);
+			expiries.expireAfter(destination, defaultTimeToLive);
 		} catch (IOException e) {
 			logger.error("error copying from '" + source + "' to '" + destination + "'", e);
 			throw new CacheException("error copying from '" + source + "' to '" + destination + "'", e);
@@ -145,7 +537,8 @@ public class Cache implements Iterable<String>{
 	}
 	
 	/**
-	 * Returns the iterator on the cache items.
+	 * Returns the iterator on the cache items; it may include expired items 
+	 * that have not been removed yet.
 	 * 
 	 * @see Iterable#iterator()
 	 */
@@ -178,6 +571,7 @@ public class Cache implements Iterable<String>{
 	 *   </code> otherwise.
 	 */
 	public boolean contains(String resource) {
+		expire(resource);
 		boolean result = storage.contains(resource);
 		logger.debug("resource '{}' {} in cache", resource, (result ? "is" : "is not"));
 		return result; 
@@ -193,6 +587,7 @@ public class Cache implements Iterable<String>{
 	 */
 	public long getSize(String resource) {
 		if(Strings.isValid(resource)) {
+			expire(resource);
 			return storage.retrieveSize(resource);
 		}
 		return -1;
@@ -210,41 +605,346 @@ public class Cache implements Iterable<String>{
 	 *   an optional set of cache miss handler, which will be requested to 
 	 *   retrieve the resource, if missing; the handlers will be called in the 
 	 *   order specified here, and as soon as one returns a valid stream the 
-	 *   lookup stops.
+	 *   lookup stops; resources retrieved by the handlers get the default time 
+	 *   to live.
 	 * @return
 	 *   the resource as an input stream if it can be retrieved, {@code null}
 	 *   otherwise.
 	 * @throws CacheException 
 	 */
 	public InputStream get(String resource, CacheMissHandler ... handlers) throws CacheException {
+		return get(resource, defaultTimeToLive, handlers);
+	}
+	
+	/**
+	 * Retrieves a resource from the cache if it is in there and has not expired,
+	 * otherwise through the given cache miss handlers.
+	 * 
+	 * @param resource
+	 *   the name of the resource; it must be a valid, non empty string.
+	 * @param timeToLive
+	 *   the time to live in milliseconds of the resource, if retrieved by the 
+	 *   handlers; if not positive, the resource never expires.
+	 * @param handlers
+	 *   an optional set of cache miss handler, which will be requested to 
+	 *   retrieve the resource, if missing; the handlers will be called in the 
+	 *   order specified here, and as soon as one returns a valid stream the 
+	 *   lookup stops.
+	 * @return
+	 *   the resource as an input stream if it can be retrieved, {@code null}
+	 *   otherwise.
+	 * @throws CacheException 
+	 */
+	public InputStream get(String resource, long timeToLive, CacheMissHandler ... handlers) throws CacheException {
 		InputStream stream = null;
 		if(Strings.isValid(resource)) {
+			record(resource);
+			expire(resource);
 			stream = storage.retrieve(resource);		
-			if(stream == null) {
+			if(stream != null) {
+				statistics.hit();
+			} else {
 				logger.trace("cache miss for resource '{}'...", resource);
-				if(handlers != null) {				
-					lookup:
-					for(CacheMissHandler handler : handlers) {
-						logger.trace("... attempting retrieval of '{}' using handler of class '{}'", resource, handler.getClass().getSimpleName());
-						try (InputStream input = handler.getAsStream(); OutputStream output = storage.store(resource)) {
-							if(input != null) {
-								long copied = Streams.copy(input,  output);
-								logger.trace("... stored {} bytes for resource '{}'", copied, resource);
-								break lookup;
-							} else {
-								logger.trace("... resource '{}' not found", resource);
-								continue lookup;
-							}
-						} catch (IOException e) {
-							logger.warn("I/O error trying to retrieve resource '" + resource + "' with handler of class '" + handler.getClass().getSimpleName() +"'", e);
-						}					
+				statistics.miss();
+				if(handlers != null && handlers.length > 0) {
+					if(streamThrough) {
+						stream = loadThrough(resource, timeToLive, handlers);
+					} else if(load(resource, handlers)) {
+						expiries.expireAfter(resource, timeToLive);
+					}
+				}
+				if(stream == null) {
+					logger.trace("retrieving resource from storage");
+					stream = storage.retrieve(resource);
+				}
+			}
+		}
+		return statistics.served(stream);
+	}
+	
+	/**
+	 * Retrieves a resource asynchronously; if the resource is in the cache the 
+	 * returned future is already completed, otherwise the resource is loaded 
+	 * through the given handlers on the cache executor, so that the caller can 
+	 * issue many lookups concurrently.
+	 * 
+	 * @param resource
+	 *   the name of the resource; it must be a valid, non empty string.
+	 * @param handlers
+	 *   an optional set of cache miss handler, which will be requested to 
+	 *   retrieve the resource, if missing.
+	 * @return
+	 *   a future yielding the resource as an input stream if it can be 
+	 *   retrieved, {@code null} otherwise; loading errors are reported as an
+	 *   {@code ExecutionException} caused by a {@code CacheException}.
+	 * @see #get(String, CacheMissHandler...)
+	 */
+	public Future<InputStream> getAsync(String resource, CacheMissHandler ... handlers) {
+		return getAsync(resource, defaultTimeToLive, handlers);
+	}
+	
+	/**
+	 * Retrieves a resource asynchronously; if the resource is in the cache the 
+	 * returned future is already completed, otherwise the resource is loaded 
+	 * through the given handlers on the cache executor.
+	 * 
+	 * @param resource
+	 *   the name of the resource; it must be a valid, non empty string.
+	 * @param timeToLive
+	 *   the time to live in milliseconds of the resource, if retrieved by the 
+	 *   handlers; if not positive, the resource never expires.
+	 * @param handlers
+	 *   an optional set of cache miss handler, which will be requested to 
+	 *   retrieve the resource, if missing.
+	 * @return
+	 *   a future yielding the resource as an input stream if it can be 
+	 *   retrieved, {@code null} otherwise.
+	 * @see #get(String, long, CacheMissHandler...)
+	 */
+	public Future<InputStream> getAsync(final String resource, final long timeToLive, final CacheMissHandler ... handlers) {
+		InputStream stream = null;
+		if(Strings.isValid(resource)) {
+			expire(resource);
+			stream = storage.retrieve(resource);
+			if(stream != null) {
+				record(resource);
+				statistics.hit();
+			} else if(handlers == null || handlers.length == 0) {
+				record(resource);
+				statistics.miss();
+			} else {
+				logger.trace("cache miss for resource '{}', loading asynchronously", resource);
+				FutureTask<InputStream> task = new FutureTask<InputStream>(new Callable<InputStream>() {
+					@Override
+					public InputStream call() throws CacheException {
+						return get(resource, timeToLive, handlers);
 					}
+				});
+				getExecutor().execute(task);
+				return task;
+			}
+		}
+		return completed(statistics.served(stream));
+	}
+	
+	/**
+	 * Loads a resource into the storage through the given handlers, unless it
+	 * is already there; unlike {@link #get(String, long, CacheMissHandler...)}
+	 * the resource is not retrieved, and the access is neither counted as a hit
+	 * nor as a miss, nor recorded.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param timeToLive
+	 *   the time to live in milliseconds of the resource, if retrieved by the 
+	 *   handlers; if not positive, the resource never expires.
+	 * @param handlers
+	 *   the cache miss handlers, to be tried in order until one returns a valid
+	 *   stream.
+	 * @return
+	 *   whether the resource is in the cache after the call.
+	 * @throws CacheException
+	 *   if any of the handlers or the storage fail.
+	 */
+	boolean prefetch(String resource, long timeToLive, CacheMissHandler ... handlers) throws CacheException {
+		expire(resource);
+		if(load(resource, handlers)) {
+			expiries.expireAfter(resource, timeToLive);
+		}
+		return storage.contains(resource);
+	}
+	
+	/**
+	 * Loads a missing resource into the storage through the given handlers; 
+	 * concurrent loads of the same resource are coalesced, so that only the 
+	 * first caller actually runs the handlers and writes to the storage, while
+	 * the others wait for its load to complete and then read the stored result.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param handlers
+	 *   the cache miss handlers, to be tried in order until one returns a valid
+	 *   stream.
+	 * @return
+	 *   whether the resource was stored by this invocation.
+	 * @throws CacheException
+	 *   if any of the handlers or the storage fail.
+	 */
+	private boolean load(String resource, CacheMissHandler ... handlers) throws CacheException {
+		if(failures.isMissing(resource)) {
+			logger.trace("... resource '{}' is known to be missing", resource);
+			return false;
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch inflight = loads.putIfAbsent(resource, latch);
+		if(inflight != null) {
+			awaitLoad(resource, inflight);
+			return false;
+		}
+		long start = 0;
+		boolean timed = false;
+		try {
+			if(storage.contains(resource)) {
+				logger.trace("... resource '{}' has been loaded in the meanwhile", resource);
+				return false;
+			}
+			start = System.nanoTime();
+			timed = true;
+			lookup:
+			for(CacheMissHandler handler : handlers) {
+				if(failures.isBackingOff(resource, handler)) {
+					logger.trace("... skipping handler of class '{}', backing off", handler.getClass().getSimpleName());
+					continue lookup;
 				}
-				logger.trace("retrieving resource from storage");
-				stream = storage.retrieve(resource);			
+				logger.trace("... attempting retrieval of '{}' using handler of class '{}'", resource, handler.getClass().getSimpleName());
+				boolean success = false, fetched = false;
+				try (InputStream input = handler.getAsStream()) {
+					fetched = true;
+					if(input != null) {
+						try (OutputStream output = storage.store(resource)) {
+							long copied = Streams.copy(input,  output);
+							logger.trace("... stored {} bytes for resource '{}'", copied, resource);
+							statistics.stored(copied);
+						}
+						success = true;
+						failures.succeeded(resource, handler);
+						return true;
+					} else {
+						logger.trace("... resource '{}' not found", resource);
+						failures.failed(resource, handler);
+						continue lookup;
+					}
+				} catch (IOException e) {
+					logger.warn("I/O error trying to retrieve resource '" + resource + "' with handler of class '" + handler.getClass().getSimpleName() +"'", e);
+					failures.failed(resource, handler);
+				} catch (CacheException e) {
+					if(!fetched) {
+						// the handler failed, not the storage
+						failures.failed(resource, handler);
+					}
+					throw e;
+				} finally {
+					statistics.retrieval(handler, success);
+				}
+			}
+			failures.missing(resource);
+			return false;
+		} finally {
+			if(timed) {
+				statistics.load(System.nanoTime() - start);
+			}
+			loads.remove(resource, latch);
+			latch.countDown();
+		}
+	}
+	
+	/**
+	 * Waits, at most for the load timeout, for a concurrent load of the given
+	 * resource to complete.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param inflight
+	 *   the latch of the concurrent load.
+	 */
+	private void awaitLoad(String resource, CountDownLatch inflight) {
+		logger.trace("... resource '{}' is already being loaded, waiting for it", resource);
+		try {
+			if(!inflight.await(loadTimeout, TimeUnit.MILLISECONDS)) {
+				logger.warn("timed out waiting for resource '{}' to be loaded", resource);
+			}
+		} catch (InterruptedException e) {
+			logger.warn("interrupted while waiting for resource '{}' to be loaded", resource);
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Starts loading a missing resource through the given handlers, returning 
+	 * a stream that delivers the data of the first handler that provides them
+	 * while copying them into the storage; loads are coalesced as in {@link 
+	 * #load(String, CacheMissHandler...)}, and the load is over when the 
+	 * returned stream is read to the end or closed.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param timeToLive
+	 *   the time to live in milliseconds of the resource, once stored.
+	 * @param handlers
+	 *   the cache miss handlers, to be tried in order until one returns a valid
+	 *   stream.
+	 * @return
+	 *   the stream through which the resource is being loaded, or {@code null}
+	 *   if no handler could provide it, or if it was loaded by another caller 
+	 *   (in which case it can be read from the storage).
+	 * @throws CacheException
+	 *   if any of the handlers or the storage fail.
+	 */
+	private InputStream loadThrough(String resource, long timeToLive, CacheMissHandler ... handlers) throws CacheException {
+		if(failures.isMissing(resource)) {
+			logger.trace("... resource '{}' is known to be missing", resource);
+			return null;
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch inflight = loads.putIfAbsent(resource, latch);
+		if(inflight != null) {
+			awaitLoad(resource, inflight);
+			return null;
+		}
+		long start = 0;
+		boolean timed = false, streaming = false;
+		try {
+			if(storage.contains(resource)) {
+				logger.trace("... resource '{}' has been loaded in the meanwhile", resource);
+				return null;
+			}
+			start = System.nanoTime();
+			timed = true;
+			for(CacheMissHandler handler : handlers) {
+				if(failures.isBackingOff(resource, handler)) {
+					logger.trace("... skipping handler of class '{}', backing off", handler.getClass().getSimpleName());
+					continue;
+				}
+				logger.trace("... attempting stream-through retrieval of '{}' using handler of class '{}'", resource, handler.getClass().getSimpleName());
+				InputStream input;
+				try {
+					input = handler.getAsStream();
+				} catch (CacheException e) {
+					failures.failed(resource, handler);
+					statistics.retrieval(handler, false);
+					throw e;
+				}
+				if(input == null) {
+					logger.trace("... resource '{}' not found", resource);
+					failures.failed(resource, handler);
+					statistics.retrieval(handler, false);
+					continue;
+				}
+				OutputStream output = null;
+				try {
+					output = storage.store(resource);
+				} finally {
+					if(output == null) {
+						Streams.safelyClose(input);
+					}
+				}
+				if(output == null) {
+					return null;
+				}
+				streaming = true;
+				return new StreamThroughInputStream(resource, timeToLive, handler, input, output, latch, start);
+			}
+			failures.missing(resource);
+			return null;
+		} finally {
+			if(!streaming) {
+				if(timed) {
+					statistics.load(System.nanoTime() - start);
+				}
+				loads.remove(resource, latch);
+				latch.countDown();
 			}
 		}
-		return stream;
 	}
 	
 	/**
@@ -255,7 +955,8 @@ public class Cache implements Iterable<String>{
 	 * the caller to close the steam once all data have been written to it.
 	 * This mechanism actually by-passes the cache and the miss handlers and
 	 * provides direct access to the underlying storage engine, thus providing
-	 * a highly efficient way of storing data into the cache. 
+	 * a highly efficient way of storing data into the cache. The resource gets
+	 * the default time to live.
 	 * 
 	 * @param resource
 	 *   the name of the new resource, to which the returned output stream 
@@ -266,9 +967,510 @@ public class Cache implements Iterable<String>{
 	 * @throws CacheException
 	 */
 	public OutputStream put(String resource) throws CacheException {
+		return put(resource, defaultTimeToLive);
+	}
+	
+	/**
+	 * Tells the cache to store under the given resource name the contents 
+	 * that will be written to the output stream, which will expire after the 
+	 * given time.
+	 * 
+	 * @param resource
+	 *   the name of the new resource, to which the returned output stream 
+	 *   will point; it must be a valid, non empty string.
+	 * @param timeToLive
+	 *   the time to live of the resource in milliseconds; if not positive, the
+	 *   resource never expires.
+	 * @return
+	 *   an output stream ; the caller will write its data into it, and then 
+	 *   will flush and close it once it's done writing data.
+	 * @throws CacheException
+	 * @see #put(String)
+	 */
+	public OutputStream put(String resource, long timeToLive) throws CacheException {
 		if(Strings.isValid(resource)) {
-			return storage.store(resource);
+			OutputStream stream = storage.store(resource);
+			expiries.expireAfter(resource, timeToLive);
+			failures.forget(resource);
+			return statistics.stored(stream);
 		}
 		return null;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Stores asynchronously the contents of the given stream under the given 
+	 * resource name, on the cache executor; the input stream is closed when 
+	 * done. The resource gets the default time to live.
+	 * 
+	 * @param resource
+	 *   the name of the new resource; it must be a valid, non empty string.
+	 * @param input
+	 *   the stream from which the resource contents are read.
+	 * @return
+	 *   a future yielding the number of bytes stored; storage errors are 
+	 *   reported as an {@code ExecutionException}.
+	 */
+	public Future<Long> putAsync(String resource, InputStream input) {
+		return putAsync(resource, defaultTimeToLive, input);
+	}
+	
+	/**
+	 * Stores asynchronously the contents of the given stream under the given 
+	 * resource name, on the cache executor; the input stream is closed when 
+	 * done.
+	 * 
+	 * @param resource
+	 *   the name of the new resource; it must be a valid, non empty string.
+	 * @param timeToLive
+	 *   the time to live of the resource in milliseconds; if not positive, the
+	 *   resource never expires.
+	 * @param input
+	 *   the stream from which the resource contents are read.
+	 * @return
+	 *   a future yielding the number of bytes stored.
+	 */
+	public Future<Long> putAsync(final String resource, final long timeToLive, final InputStream input) {
+		FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() throws CacheException, IOException {
+				try (InputStream source = input; OutputStream output = put(resource, timeToLive)) {
+					if(output == null) {
+						throw new CacheException("invalid resource name '" + resource + "'");
+					}
+					long copied = Streams.copy(source, output);
+					logger.trace("stored {} bytes for resource '{}'", copied, resource);
+					return copied;
+				}
+			}
+		});
+		getExecutor().execute(task);
+		return task;
+	}
+	
+	/**
+	 * Records an access to the given resource, if recording.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void record(String resource) {
+		AccessRecorder recorder = this.recorder;
+		if(recorder != null) {
+			recorder.record(resource);
+		}
+	}
+	
+	/**
+	 * Removes the given resource if it has expired.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void expire(String resource) {
+		if(expiries.expire(resource)) {
+			logger.trace("resource '{}' expired, removing", resource);
+			storage.delete(resource, false);
+			statistics.expiration();
+		}
+	}
+	
+	/**
+	 * Returns an already completed future.
+	 * 
+	 * @param value
+	 *   the result of the future.
+	 * @return
+	 *   a completed future yielding the given value.
+	 */
+	private static <T> Future<T> completed(final T value) {
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() {
+				return value;
+			}
+		});
+		task.run();
+		return task;
+	}
+	
+	/**
+	 * The stream delivering a resource from a cache miss handler to the caller
+	 * while copying it into the storage; the resource is committed when the 
+	 * end of the data is reached, and discarded if the stream is closed 
+	 * earlier or the handler fails. When done, the load of the resource is 
+	 * completed, so that concurrent requests waiting for it can proceed.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private class StreamThroughInputStream extends MirrorInputStream {
+		
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+		
+		/**
+		 * The time to live of the resource, once stored.
+		 */
+		private final long timeToLive;
+		
+		/**
+		 * The handler providing the resource.
+		 */
+		private final CacheMissHandler handler;
+		
+		/**
+		 * The copy of the data going to the storage.
+		 */
+		private final StorageOutputStream copy;
+		
+		/**
+		 * The latch on which concurrent requests for the resource wait.
+		 */
+		private final CountDownLatch latch;
+		
+		/**
+		 * When the load started, in nanoseconds.
+		 */
+		private final long start;
+		
+		/**
+		 * Whether the resource has been committed or discarded.
+		 */
+		private boolean done = false;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param resource
+		 *   the name of the resource.
+		 * @param timeToLive
+		 *   the time to live of the resource, once stored.
+		 * @param handler
+		 *   the handler providing the resource.
+		 * @param input
+		 *   the stream returned by the handler.
+		 * @param output
+		 *   the stream returned by the storage.
+		 * @param latch
+		 *   the latch on which concurrent requests for the resource wait.
+		 * @param start
+		 *   when the load started, in nanoseconds.
+		 */
+		StreamThroughInputStream(String resource, long timeToLive, CacheMissHandler handler, InputStream input, OutputStream output, CountDownLatch latch, long start) {
+			this(resource, timeToLive, handler, input, new StorageOutputStream(resource, output), latch, start);
+		}
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @see #StreamThroughInputStream(String, long, CacheMissHandler, InputStream, OutputStream, CountDownLatch, long)
+		 */
+		private StreamThroughInputStream(String resource, long timeToLive, CacheMissHandler handler, InputStream input, StorageOutputStream copy, CountDownLatch latch, long start) {
+			super(input, copy, false);
+			this.resource = resource;
+			this.timeToLive = timeToLive;
+			this.handler = handler;
+			this.copy = copy;
+			this.latch = latch;
+			this.start = start;
+		}
+		
+		/**
+		 * @see org.dihedron.core.streams.MirrorInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			try {
+				int result = super.read();
+				if(result == -1) {
+					commit();
+				}
+				return result;
+			} catch(IOException e) {
+				fail(e);
+				throw e;
+			}
+		}
+		
+		/**
+		 * @see org.dihedron.core.streams.MirrorInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				int result = super.read(b, off, len);
+				if(result == -1) {
+					commit();
+				}
+				return result;
+			} catch(IOException e) {
+				fail(e);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Skipped data are read anyway, since they must be stored.
+		 * 
+		 * @see java.io.FilterInputStream#skip(long)
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int)Math.min(Math.max(n, 0), 8192)];
+			long skipped = 0;
+			while(skipped < n) {
+				int read = read(buffer, 0, (int)Math.min(buffer.length, n - skipped));
+				if(read == -1) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+		
+		/**
+		 * @see java.io.FilterInputStream#markSupported()
+		 */
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		/**
+		 * @see org.dihedron.core.streams.MirrorInputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!done) {
+				// callers often read exactly the expected length and close the 
+				// stream without reading its end: probe the handler's stream, 
+				// but only if that does not block on a stalled origin
+				try {
+					if(in.available() > 0 && in.read() == -1) {
+						commit();
+					}
+				} catch(IOException e) {
+					fail(e);
+				}
+			}
+			try {
+				super.close();
+			} finally {
+				if(!done) {
+					logger.trace("stream-through of resource '{}' closed before the end, discarding it", resource);
+					done = true;
+					try {
+						copy.abort();
+					} finally {
+						complete();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Commits the resource to the storage, unless storing it failed.
+		 */
+		private void commit() {
+			if(done) {
+				return;
+			}
+			done = true;
+			try {
+				if(copy.commit()) {
+					logger.trace("... stored {} bytes for resource '{}'", copy.getSize(), resource);
+					statistics.stored(copy.getSize());
+					expiries.expireAfter(resource, timeToLive);
+				}
+				failures.succeeded(resource, handler);
+				statistics.retrieval(handler, true);
+			} finally {
+				complete();
+			}
+		}
+		
+		/**
+		 * Discards the resource after the handler failed.
+		 * 
+		 * @param e
+		 *   the error reading from the handler.
+		 */
+		private void fail(IOException e) {
+			if(done) {
+				return;
+			}
+			done = true;
+			logger.warn("I/O error trying to retrieve resource '" + resource + "' with handler of class '" + handler.getClass().getSimpleName() +"'", e);
+			try {
+				copy.abort();
+				failures.failed(resource, handler);
+				statistics.retrieval(handler, false);
+			} finally {
+				complete();
+			}
+		}
+		
+		/**
+		 * Completes the load, releasing concurrent requests for the resource.
+		 */
+		private void complete() {
+			statistics.load(System.nanoTime() - start);
+			loads.remove(resource, latch);
+			latch.countDown();
+		}
+	}
+	
+	/**
+	 * The stream copying a resource into the storage during a stream-through
+	 * load; errors writing to the storage are logged and stop the copy, but 
+	 * do not affect the delivery of the resource to the caller.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private class StorageOutputStream extends CacheOutputStream<OutputStream> {
+		
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+		
+		/**
+		 * Whether writing to the storage failed, and the resource discarded.
+		 */
+		private boolean failed = false;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param resource
+		 *   the name of the resource.
+		 * @param output
+		 *   the stream returned by the storage.
+		 */
+		StorageOutputStream(String resource, OutputStream output) {
+			super(output);
+			this.resource = resource;
+		}
+		
+		/**
+		 * @see org.dihedron.patterns.cache.CacheOutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		
+		/**
+		 * @see org.dihedron.patterns.cache.CacheOutputStream#write(byte[])
+		 */
+		@Override
+		public void write(byte[] b) {
+			write(b, 0, b.length);
+		}
+		
+		/**
+		 * @see org.dihedron.patterns.cache.CacheOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if(!failed) {
+				try {
+					super.write(b, off, len);
+				} catch(IOException e) {
+					logger.error("error storing resource '" + resource + "', it will not be cached", e);
+					abort();
+				}
+			}
+		}
+		
+		/**
+		 * @see java.io.FilterOutputStream#flush()
+		 */
+		@Override
+		public void flush() {
+			// the storage stream is flushed when committed
+		}
+		
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() {
+			// the storage stream is either committed or aborted
+		}
+		
+		/**
+		 * Commits the resource to the storage.
+		 * 
+		 * @return
+		 *   whether the resource has been stored.
+		 */
+		boolean commit() {
+			if(failed) {
+				return false;
+			}
+			try {
+				getWrappedStream().close();
+				return true;
+			} catch(IOException e) {
+				logger.error("error committing resource '" + resource + "', it will not be cached", e);
+				failed = true;
+				return false;
+			}
+		}
+		
+		/**
+		 * Discards the resource, unless already discarded.
+		 */
+		void abort() {
+			if(!failed) {
+				failed = true;
+				try {
+					CacheHelper.abort(storage, resource, getWrappedStream());
+				} catch(IOException e) {
+					logger.error("error discarding resource '" + resource + "'", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The factory of the daemon threads used for background operations, so 
+	 * that a cache never prevents the JVM from exiting.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		
+		/**
+		 * The prefix of the thread names.
+		 */
+		private final String name;
+		
+		/**
+		 * The number of threads created so far.
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name
+		 *   the prefix of the thread names.
+		 */
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
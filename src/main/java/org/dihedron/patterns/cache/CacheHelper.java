@@ -105,6 +105,32 @@ public final class CacheHelper {
 		return -1;
 	}
 	
+	/**
+	 * Discards a resource being written to a storage: if the stream is {@link 
+	 * Abortable} it is aborted, otherwise it is closed and the resource is 
+	 * deleted from the storage.
+	 * 
+	 * @param storage
+	 *   the storage the resource is being written to.
+	 * @param resource
+	 *   the name of the resource.
+	 * @param stream
+	 *   the stream returned by the storage for the resource.
+	 * @throws IOException
+	 *   if the stream cannot be aborted or closed.
+	 */
+	public static void abort(Storage storage, String resource, OutputStream stream) throws IOException {
+		if(stream instanceof Abortable) {
+			((Abortable)stream).abort();
+		} else {
+			try {
+				stream.close();
+			} finally {
+				storage.delete(resource, false);
+			}
+		}
+	}
+	
 	/**
 	 * Private constructor to prevent instantiation.
 	 */
@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dihedron.core.License;
+
+/**
+ * Collects the statistics of a cache: hits, misses, expirations, loads through
+ * cache miss handlers (per handler class, with a latency histogram), bytes
+ * served to readers and bytes stored. Counters, including the buckets of the
+ * latency histogram, are striped so that recording is cheap even under heavy
+ * concurrency; monitoring code should poll the statistics through 
+ * {@link #snapshot()}.
+ * <p>
+ * The statistics cover the cache as a whole: they are only labelled with the 
+ * class of its storage, and operations on the layers of a composite storage 
+ * (e.g. {@link org.dihedron.patterns.cache.storage.TieredStorage}) are not 
+ * accounted for separately. To compare storage implementations, compare the
+ * snapshots of the caches using them.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CacheStatistics {
+
+	/**
+	 * The number of buckets in the load latency histogram; bucket <em>i</em>
+	 * counts the loads that took between 2<sup>i</sup> and 2<sup>i+1</sup>
+	 * nanoseconds.
+	 */
+	public static final int LATENCY_BUCKETS = 64;
+
+	/**
+	 * The name of the storage implementation of the cache.
+	 */
+	private final String storage;
+
+	/**
+	 * The number of lookups that found the resource in the cache.
+	 */
+	private final StripedCounter hits = new StripedCounter();
+
+	/**
+	 * The number of lookups that did not find the resource in the cache.
+	 */
+	private final StripedCounter misses = new StripedCounter();
+
+	/**
+	 * The number of resources removed because expired.
+	 */
+	private final StripedCounter expirations = new StripedCounter();
+
+	/**
+	 * The number of bytes read from the streams returned by the cache.
+	 */
+	private final StripedCounter bytesServed = new StripedCounter();
+
+	/**
+	 * The number of bytes written to the storage.
+	 */
+	private final StripedCounter bytesStored = new StripedCounter();
+
+	/**
+	 * The total time spent loading resources, in nanoseconds.
+	 */
+	private final StripedCounter loadTime = new StripedCounter();
+
+	/**
+	 * The load latency histogram.
+	 */
+	private final StripedCounter latencies = new StripedCounter(LATENCY_BUCKETS);
+
+	/**
+	 * The number of successful and failed retrievals, by handler class.
+	 */
+	private final ConcurrentMap<String, StripedCounter[]> handlers = new ConcurrentHashMap<String, StripedCounter[]>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the storage of the cache, whose class name labels the statistics.
+	 */
+	CacheStatistics(Storage storage) {
+		this.storage = storage.getClass().getName();
+	}
+
+	/**
+	 * Returns a snapshot of the current statistics.
+	 *
+	 * @return
+	 *   an immutable snapshot of the statistics.
+	 */
+	public Snapshot snapshot() {
+		long[] histogram = latencies.getAll();
+		Map<String, long[]> loads = new TreeMap<String, long[]>();
+		for(Map.Entry<String, StripedCounter[]> entry : handlers.entrySet()) {
+			loads.put(entry.getKey(), new long[] { entry.getValue()[0].get(), entry.getValue()[1].get() });
+		}
+		return new Snapshot(storage, hits.get(), misses.get(), expirations.get(), bytesServed.get(), bytesStored.get(), loadTime.get(), histogram, loads);
+	}
+
+	/**
+	 * Records a lookup that found the resource in the cache.
+	 */
+	void hit() {
+		hits.increment();
+	}
+
+	/**
+	 * Records a lookup that did not find the resource in the cache.
+	 */
+	void miss() {
+		misses.increment();
+	}
+
+	/**
+	 * Records the removal of an expired resource.
+	 */
+	void expiration() {
+		expirations.increment();
+	}
+
+	/**
+	 * Records the given number of bytes written to the storage.
+	 *
+	 * @param bytes
+	 *   the number of bytes.
+	 */
+	void stored(long bytes) {
+		bytesStored.add(bytes);
+	}
+
+	/**
+	 * Records the outcome of a retrieval attempt by a cache miss handler.
+	 *
+	 * @param handler
+	 *   the handler.
+	 * @param success
+	 *   whether the handler returned the resource; a handler returning no
+	 *   stream or failing counts as a failure.
+	 */
+	void retrieval(CacheMissHandler handler, boolean success) {
+		String name = handler.getClass().getName();
+		StripedCounter[] counters = handlers.get(name);
+		if(counters == null) {
+			StripedCounter[] created = new StripedCounter[] { new StripedCounter(), new StripedCounter() };
+			counters = handlers.putIfAbsent(name, created);
+			if(counters == null) {
+				counters = created;
+			}
+		}
+		counters[success ? 0 : 1].increment();
+	}
+
+	/**
+	 * Records the duration of a load through the cache miss handlers.
+	 *
+	 * @param nanos
+	 *   the duration in nanoseconds.
+	 */
+	void load(long nanos) {
+		loadTime.add(nanos);
+		latencies.increment(nanos > 0 ? 63 - Long.numberOfLeadingZeros(nanos) : 0);
+	}
+
+	/**
+	 * Wraps the given stream so that the bytes read from it are recorded as
+	 * served.
+	 *
+	 * @param stream
+	 *   the stream returned by the storage, possibly {@code null}.
+	 * @return
+	 *   the wrapping stream, or {@code null}.
+	 */
+	InputStream served(InputStream stream) {
+		return stream != null ? new MeteredInputStream(stream) : null;
+	}
+
+	/**
+	 * Wraps the given stream so that the bytes written to it are recorded as
+	 * stored when it is closed.
+	 *
+	 * @param stream
+	 *   the stream returned by the storage, possibly {@code null}.
+	 * @return
+	 *   the wrapping stream, or {@code null}.
+	 */
+	OutputStream stored(OutputStream stream) {
+		return stream != null ? new MeteredOutputStream(stream) : null;
+	}
+
+	/**
+	 * An immutable snapshot of the statistics of a cache.
+	 *
+	 * @author Andrea Funto'
+	 */
+	public static final class Snapshot {
+
+		/**
+		 * The name of the storage implementation.
+		 */
+		private final String storage;
+
+		/**
+		 * The number of hits.
+		 */
+		private final long hits;
+
+		/**
+		 * The number of misses.
+		 */
+		private final long misses;
+
+		/**
+		 * The number of expirations.
+		 */
+		private final long expirations;
+
+		/**
+		 * The number of bytes served.
+		 */
+		private final long bytesServed;
+
+		/**
+		 * The number of bytes stored.
+		 */
+		private final long bytesStored;
+
+		/**
+		 * The total load time, in nanoseconds.
+		 */
+		private final long loadTime;
+
+		/**
+		 * The load latency histogram.
+		 */
+		private final long[] latencies;
+
+		/**
+		 * The successful and failed retrievals, by handler class.
+		 */
+		private final Map<String, long[]> handlers;
+
+		/**
+		 * Constructor.
+		 */
+		private Snapshot(String storage, long hits, long misses, long expirations, long bytesServed, long bytesStored, long loadTime, long[] latencies, Map<String, long[]> handlers) {
+			this.storage = storage;
+			this.hits = hits;
+			this.misses = misses;
+			this.expirations = expirations;
+			this.bytesServed = bytesServed;
+			this.bytesStored = bytesStored;
+			this.loadTime = loadTime;
+			this.latencies = latencies;
+			this.handlers = Collections.unmodifiableMap(handlers);
+		}
+
+		/**
+		 * Returns the name of the storage implementation of the cache.
+		 *
+		 * @return
+		 *   the fully qualified class name of the storage.
+		 */
+		public String getStorage() {
+			return storage;
+		}
+
+		/**
+		 * Returns the number of lookups that found the resource in the cache.
+		 *
+		 * @return
+		 *   the number of hits.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Returns the number of lookups that did not find the resource in the
+		 * cache.
+		 *
+		 * @return
+		 *   the number of misses.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Returns the ratio of hits over lookups.
+		 *
+		 * @return
+		 *   the hit ratio, between 0 and 1, or 0 if there were no lookups.
+		 */
+		public double getHitRatio() {
+			return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+		}
+
+		/**
+		 * Returns the number of resources removed because expired.
+		 *
+		 * @return
+		 *   the number of expirations.
+		 */
+		public long getExpirations() {
+			return expirations;
+		}
+
+		/**
+		 * Returns the number of bytes read from the streams returned by the
+		 * cache.
+		 *
+		 * @return
+		 *   the number of bytes served.
+		 */
+		public long getBytesServed() {
+			return bytesServed;
+		}
+
+		/**
+		 * Returns the number of bytes written to the storage, through the cache
+		 * or by cache miss handlers.
+		 *
+		 * @return
+		 *   the number of bytes stored.
+		 */
+		public long getBytesStored() {
+			return bytesStored;
+		}
+
+		/**
+		 * Returns the number of loads through the cache miss handlers.
+		 *
+		 * @return
+		 *   the number of loads.
+		 */
+		public long getLoads() {
+			long count = 0;
+			for(long bucket : latencies) {
+				count += bucket;
+			}
+			return count;
+		}
+
+		/**
+		 * Returns the average duration of loads through the cache miss handlers.
+		 *
+		 * @return
+		 *   the average load time in nanoseconds, or 0 if there were no loads.
+		 */
+		public long getAverageLoadTime() {
+			long loads = getLoads();
+			return loads > 0 ? loadTime / loads : 0;
+		}
+
+		/**
+		 * Returns the load latency histogram; element <em>i</em> is the number
+		 * of loads that took between 2<sup>i</sup> and 2<sup>i+1</sup>
+		 * nanoseconds.
+		 *
+		 * @return
+		 *   a copy of the histogram.
+		 */
+		public long[] getLoadLatencyHistogram() {
+			return latencies.clone();
+		}
+
+		/**
+		 * Returns an upper bound of the given load latency percentile, with the
+		 * resolution of the histogram (a factor of 2).
+		 *
+		 * @param percentile
+		 *   the percentile, between 0 and 100.
+		 * @return
+		 *   the latency in nanoseconds under which the given percentage of
+		 *   loads completed, or 0 if there were no loads.
+		 */
+		public long getLoadLatencyPercentile(double percentile) {
+			long loads = getLoads();
+			if(loads == 0) {
+				return 0;
+			}
+			long threshold = (long)Math.ceil(loads * Math.min(Math.max(percentile, 0), 100) / 100);
+			long count = 0;
+			for(int i = 0; i < LATENCY_BUCKETS; ++i) {
+				count += latencies[i];
+				if(count >= threshold && count > 0) {
+					return i < LATENCY_BUCKETS - 1 ? 1L << (i + 1) : Long.MAX_VALUE;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		/**
+		 * Returns the class names of the cache miss handlers that have been
+		 * invoked.
+		 *
+		 * @return
+		 *   the sorted set of handler class names.
+		 */
+		public Set<String> getHandlers() {
+			return handlers.keySet();
+		}
+
+		/**
+		 * Returns the number of successful retrievals by the given handler.
+		 *
+		 * @param handler
+		 *   the class name of the handler.
+		 * @return
+		 *   the number of retrievals that returned the resource.
+		 */
+		public long getHandlerSuccesses(String handler) {
+			long[] counters = handlers.get(handler);
+			return counters != null ? counters[0] : 0;
+		}
+
+		/**
+		 * Returns the number of failed retrievals by the given handler.
+		 *
+		 * @param handler
+		 *   the class name of the handler.
+		 * @return
+		 *   the number of retrievals that failed or did not find the resource.
+		 */
+		public long getHandlerFailures(String handler) {
+			long[] counters = handlers.get(handler);
+			return counters != null ? counters[1] : 0;
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			StringBuilder buffer = new StringBuilder();
+			buffer.append("storage: ").append(storage);
+			buffer.append(", hits: ").append(hits).append(", misses: ").append(misses);
+			buffer.append(", expirations: ").append(expirations);
+			buffer.append(", bytes served: ").append(bytesServed).append(", bytes stored: ").append(bytesStored);
+			buffer.append(", loads: ").append(getLoads()).append(" (average ").append(getAverageLoadTime()).append(" ns)");
+			for(Map.Entry<String, long[]> entry : handlers.entrySet()) {
+				buffer.append(", ").append(entry.getKey()).append(": ").append(entry.getValue()[0]).append("/").append(entry.getValue()[0] + entry.getValue()[1]);
+			}
+			return buffer.toString();
+		}
+	}
+
+	/**
+	 * An input stream recording the bytes read from it as served.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class MeteredInputStream extends FilterInputStream {
+
+		/**
+		 * Constructor.
+		 *
+		 * @param in
+		 *   the wrapped stream.
+		 */
+		MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * @see java.io.FilterInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b != -1) {
+				bytesServed.increment();
+			}
+			return b;
+		}
+
+		/**
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if(count > 0) {
+				bytesServed.add(count);
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * An output stream recording the bytes written to it as stored, when it is
+	 * closed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class MeteredOutputStream extends CacheOutputStream<OutputStream> {
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param out
+		 *   the wrapped stream.
+		 */
+		MeteredOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				super.close();
+				bytesStored.add(getSize());
+			}
+		}
+	}
+}
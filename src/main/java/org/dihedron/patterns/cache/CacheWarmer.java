@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.core.strings.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up a cache by prefetching the resources listed in a manifest through
+ * their cache miss handlers, so that a cold cache does not send all of its
+ * initial traffic to the origins. Resources are prefetched by a bounded number
+ * of threads, optionally at a limited rate, and resources already in the cache
+ * are skipped. The manifest is typically produced by recording the resources
+ * accessed through the cache during a previous run, see {@link
+ * Cache#startRecording(int)}, and can be saved and loaded as a text file with
+ * one resource name per line.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CacheWarmer {
+
+	/**
+	 * The default number of resources prefetched concurrently.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * The value used to indicate that the prefetching rate is not limited.
+	 */
+	public static final double UNLIMITED = 0;
+
+	/**
+	 * The character set of manifest files.
+	 */
+	private static final Charset MANIFEST_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CacheWarmer.class);
+
+	/**
+	 * An interface for objects providing the cache miss handlers through which
+	 * the resources in the manifest can be retrieved.
+	 *
+	 * @author Andrea Funto'
+	 */
+	public interface HandlerFactory {
+
+		/**
+		 * Returns the cache miss handlers for the given resource.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @return
+		 *   the handlers to be tried in order, or {@code null} if the resource
+		 *   cannot be retrieved.
+		 * @throws CacheException
+		 *   if the handlers cannot be created.
+		 */
+		CacheMissHandler[] getHandlers(String resource) throws CacheException;
+	}
+
+	/**
+	 * An interface for objects that want to be notified of the progress of a
+	 * warm-up.
+	 *
+	 * @author Andrea Funto'
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Invoked each time a resource in the manifest has been processed, on
+		 * the thread that processed it.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param progress
+		 *   the progress of the warm-up so far.
+		 */
+		void onProgress(String resource, Progress progress);
+	}
+
+	/**
+	 * The progress of a warm-up; it is updated as resources are processed, and
+	 * once the warm-up is complete it reports its final outcome.
+	 *
+	 * @author Andrea Funto'
+	 */
+	public static final class Progress {
+
+		/**
+		 * The number of resources in the manifest.
+		 */
+		private final int total;
+
+		/**
+		 * The number of resources that were already in the cache.
+		 */
+		private final AtomicInteger present = new AtomicInteger();
+
+		/**
+		 * The number of resources loaded into the cache.
+		 */
+		private final AtomicInteger loaded = new AtomicInteger();
+
+		/**
+		 * The number of resources that could not be loaded.
+		 */
+		private final AtomicInteger failed = new AtomicInteger();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param total
+		 *   the number of resources in the manifest.
+		 */
+		Progress(int total) {
+			this.total = total;
+		}
+
+		/**
+		 * Returns the number of resources in the manifest.
+		 *
+		 * @return
+		 *   the number of resources in the manifest.
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Returns the number of resources that were already in the cache.
+		 *
+		 * @return
+		 *   the number of resources that were already in the cache.
+		 */
+		public int getPresent() {
+			return present.get();
+		}
+
+		/**
+		 * Returns the number of resources loaded into the cache.
+		 *
+		 * @return
+		 *   the number of resources loaded into the cache.
+		 */
+		public int getLoaded() {
+			return loaded.get();
+		}
+
+		/**
+		 * Returns the number of resources that could not be loaded.
+		 *
+		 * @return
+		 *   the number of resources that could not be loaded.
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * Returns the number of resources processed so far.
+		 *
+		 * @return
+		 *   the number of resources processed so far.
+		 */
+		public int getCompleted() {
+			return present.get() + loaded.get() + failed.get();
+		}
+
+		/**
+		 * Returns whether all the resources in the manifest have been processed.
+		 *
+		 * @return
+		 *   whether the warm-up is complete.
+		 */
+		public boolean isDone() {
+			return getCompleted() >= total;
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Progress [completed: " + getCompleted() + "/" + total + ", present: " + getPresent()
+					+ ", loaded: " + getLoaded() + ", failed: " + getFailed() + "]";
+		}
+	}
+
+	/**
+	 * The cache being warmed up.
+	 */
+	private final Cache cache;
+
+	/**
+	 * The number of resources prefetched concurrently.
+	 */
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	/**
+	 * The maximum number of resources prefetched per second, or {@link
+	 * #UNLIMITED}.
+	 */
+	private double rate = UNLIMITED;
+
+	/**
+	 * The time to live of the prefetched resources.
+	 */
+	private long timeToLive;
+
+	/**
+	 * The (optional) progress listener.
+	 */
+	private ProgressListener listener = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param cache
+	 *   the cache to be warmed up; prefetched resources get its default time
+	 *   to live, unless otherwise specified.
+	 */
+	public CacheWarmer(Cache cache) {
+		this.cache = cache;
+		this.timeToLive = cache.getDefaultTimeToLive();
+	}
+
+	/**
+	 * Sets the number of resources prefetched concurrently.
+	 *
+	 * @param parallelism
+	 *   the number of resources prefetched concurrently.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public CacheWarmer setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum prefetching rate, so that the origins are not
+	 * overwhelmed by the warm-up.
+	 *
+	 * @param rate
+	 *   the maximum number of resources prefetched per second, or {@link
+	 *   #UNLIMITED}.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public CacheWarmer setRate(double rate) {
+		this.rate = rate > 0 ? rate : UNLIMITED;
+		return this;
+	}
+
+	/**
+	 * Sets the time to live of the prefetched resources.
+	 *
+	 * @param timeToLive
+	 *   the time to live in milliseconds; if not positive, the resources never
+	 *   expire.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public CacheWarmer setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+		return this;
+	}
+
+	/**
+	 * Sets the listener to be notified of the progress of the warm-up.
+	 *
+	 * @param listener
+	 *   the listener, or {@code null} to remove the current one.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public CacheWarmer setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Prefetches the resources in the manifest into the cache, and waits until
+	 * all of them have been processed; errors are logged and counted, and do
+	 * not stop the warm-up.
+	 *
+	 * @param manifest
+	 *   the names of the resources to be prefetched, in order of priority.
+	 * @param factory
+	 *   the factory of the cache miss handlers for the resources.
+	 * @return
+	 *   the outcome of the warm-up.
+	 * @throws InterruptedException
+	 *   if the thread is interrupted while waiting; the warm-up is stopped.
+	 */
+	public Progress warm(Collection<String> manifest, final HandlerFactory factory) throws InterruptedException {
+		final Progress progress = new Progress(manifest.size());
+		final ProgressListener listener = this.listener;
+		final long timeToLive = this.timeToLive;
+		final Pacer pacer = new Pacer(rate);
+		logger.info("warming up cache with {} resources ({} threads, rate: {}/s)", manifest.size(), parallelism, rate == UNLIMITED ? "unlimited" : rate);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "cache-warmer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for(final String resource : manifest) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						prefetch(resource, factory, timeToLive, pacer, progress);
+						if(listener != null) {
+							try {
+								listener.onProgress(resource, progress);
+							} catch(RuntimeException e) {
+								logger.warn("error notifying progress of resource '" + resource + "'", e);
+							}
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				logger.debug("warming up cache: {}", progress);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.info("cache warm-up complete: {}", progress);
+		return progress;
+	}
+
+	/**
+	 * Prefetches a resource into the cache, unless it is already there.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param factory
+	 *   the factory of the cache miss handlers.
+	 * @param timeToLive
+	 *   the time to live of the resource.
+	 * @param pacer
+	 *   the pacer limiting the prefetching rate.
+	 * @param progress
+	 *   the progress to be updated.
+	 */
+	private void prefetch(String resource, HandlerFactory factory, long timeToLive, Pacer pacer, Progress progress) {
+		try {
+			if(!Strings.isValid(resource)) {
+				logger.warn("invalid resource name in manifest");
+				progress.failed.incrementAndGet();
+			} else if(cache.contains(resource)) {
+				logger.trace("resource '{}' already in cache", resource);
+				progress.present.incrementAndGet();
+			} else {
+				CacheMissHandler[] handlers = factory.getHandlers(resource);
+				if(handlers == null || handlers.length == 0) {
+					logger.warn("no handlers for resource '{}'", resource);
+					progress.failed.incrementAndGet();
+					return;
+				}
+				pacer.pace();
+				if(cache.prefetch(resource, timeToLive, handlers)) {
+					logger.trace("resource '{}' prefetched", resource);
+					progress.loaded.incrementAndGet();
+				} else {
+					logger.warn("resource '{}' could not be prefetched", resource);
+					progress.failed.incrementAndGet();
+				}
+			}
+		} catch(InterruptedException e) {
+			progress.failed.incrementAndGet();
+			Thread.currentThread().interrupt();
+		} catch(CacheException | RuntimeException e) {
+			logger.warn("error prefetching resource '" + resource + "'", e);
+			progress.failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Reads a manifest, with one resource name per line; blank lines and lines
+	 * starting with {@code #} are ignored. The stream is not closed.
+	 *
+	 * @param input
+	 *   the stream from which the manifest is read.
+	 * @return
+	 *   the names of the resources in the manifest.
+	 * @throws IOException
+	 *   if the manifest cannot be read.
+	 */
+	public static List<String> readManifest(InputStream input) throws IOException {
+		List<String> resources = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, MANIFEST_CHARSET));
+		String line;
+		while((line = reader.readLine()) != null) {
+			line = line.trim();
+			if(!line.isEmpty() && !line.startsWith("#")) {
+				resources.add(line);
+			}
+		}
+		return resources;
+	}
+
+	/**
+	 * Writes a manifest, with one resource name per line. The stream is flushed
+	 * but not closed.
+	 *
+	 * @param resources
+	 *   the names of the resources.
+	 * @param output
+	 *   the stream to which the manifest is written.
+	 * @throws IOException
+	 *   if the manifest cannot be written.
+	 */
+	public static void writeManifest(Collection<String> resources, OutputStream output) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, MANIFEST_CHARSET));
+		for(String resource : resources) {
+			writer.write(resource);
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Spaces out the prefetches evenly so that they do not exceed the given
+	 * rate; each caller is given the next free slot and sleeps until then.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Pacer {
+
+		/**
+		 * The interval between two prefetches, in nanoseconds, or 0 if the rate
+		 * is not limited.
+		 */
+		private final long interval;
+
+		/**
+		 * The time of the next free slot.
+		 */
+		private long next = System.nanoTime();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param rate
+		 *   the maximum number of prefetches per second, or {@link #UNLIMITED}.
+		 */
+		Pacer(double rate) {
+			this.interval = rate > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+		}
+
+		/**
+		 * Waits for the next free slot.
+		 *
+		 * @throws InterruptedException
+		 *   if the thread is interrupted while waiting.
+		 */
+		void pace() throws InterruptedException {
+			if(interval == 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			long slot;
+			synchronized(this) {
+				slot = Math.max(next, now);
+				next = slot + interval;
+			}
+			TimeUnit.NANOSECONDS.sleep(slot - now);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import org.dihedron.core.License;
+
+/**
+ * A storage that can copy resources internally, more efficiently than by 
+ * reading and writing them again (e.g. by sharing their contents); the cache 
+ * uses it in {@link Cache#copyAs(String, String)} when available.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public interface CopyingStorage extends Storage {
+
+	/**
+	 * Copies a resource into another, replacing the destination resource if it
+	 * exists.
+	 * 
+	 * @param source
+	 *   the name of the source resource.
+	 * @param destination
+	 *   the name of the destination resource.
+	 * @throws CacheException
+	 *   if the source resource does not exist or the copy fails.
+	 */
+	void copy(String source, String destination) throws CacheException;
+}
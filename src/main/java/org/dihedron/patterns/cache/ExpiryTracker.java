@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+
+/**
+ * Keeps track of the expiration deadlines of cache resources; deadlines are kept
+ * both in a map, for constant time checks on access, and in a delay queue, so
+ * that expired resources can be collected incrementally, in deadline order,
+ * without scanning the whole cache. Entries superseded by a new deadline, or
+ * whose resource has been removed, stay in the queue until they are polled or 
+ * the queue is purged, which happens whenever they outnumber the live ones, so
+ * that the footprint stays proportional to the number of tracked resources.
+ * This class is thread-safe.
+ *
+ * @author Andrea Funto'
+ */
+@License
+class ExpiryTracker {
+
+	/**
+	 * The minimum number of stale elements in the queue before it is purged.
+	 */
+	private static final int PURGE_THRESHOLD = 1024;
+
+	/**
+	 * The current expirations of the resources.
+	 */
+	private final ConcurrentMap<String, Expiration> deadlines = new ConcurrentHashMap<String, Expiration>();
+
+	/**
+	 * The queue of pending expirations; it may contain stale elements, for
+	 * resources whose deadline has been changed or removed in the meanwhile,
+	 * which are discarded when they are polled or the queue is purged.
+	 */
+	private final DelayQueue<Expiration> queue = new DelayQueue<Expiration>();
+
+	/**
+	 * The (approximate) number of stale elements in the queue.
+	 */
+	private final AtomicInteger stale = new AtomicInteger();
+
+	/**
+	 * Sets the time to live of the given resource, starting from now.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param timeToLive
+	 *   the time to live in milliseconds; if not positive, the resource never
+	 *   expires.
+	 */
+	void expireAfter(String resource, long timeToLive) {
+		if(timeToLive > 0) {
+			Expiration expiration = new Expiration(resource, System.currentTimeMillis() + timeToLive);
+			Expiration previous = deadlines.put(resource, expiration);
+			queue.add(expiration);
+			if(previous != null) {
+				superseded();
+			}
+		} else if(deadlines.remove(resource) != null) {
+			superseded();
+		}
+	}
+
+	/**
+	 * Returns whether the given resource has expired.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   whether the resource has a deadline, and it is in the past.
+	 */
+	boolean isExpired(String resource) {
+		Expiration expiration = deadlines.get(resource);
+		return expiration != null && expiration.deadline <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes the deadline of the given resource if it has expired; of many
+	 * threads concurrently finding the resource expired, only one succeeds.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   whether the resource had expired and this invocation removed its
+	 *   deadline, in which case the caller must remove the resource.
+	 */
+	boolean expire(String resource) {
+		Expiration expiration = deadlines.get(resource);
+		if(expiration != null && expiration.deadline <= System.currentTimeMillis() && deadlines.remove(resource, expiration)) {
+			superseded();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Collects at most the given number of expired resources, removing their
+	 * deadlines; the caller must remove the returned resources.
+	 *
+	 * @param max
+	 *   the maximum number of expirations to process.
+	 * @return
+	 *   the names of the expired resources.
+	 */
+	List<String> poll(int max) {
+		List<String> expired = new ArrayList<String>();
+		Expiration expiration;
+		for(int i = 0; i < max && (expiration = queue.poll()) != null; ++i) {
+			if(deadlines.remove(expiration.resource, expiration)) {
+				expired.add(expiration.resource);
+			} else {
+				stale.decrementAndGet();
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Removes the deadline of the given resource.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param caseInsensitive
+	 *   whether resource names should be compared ignoring case.
+	 */
+	void forget(String resource, boolean caseInsensitive) {
+		if(!caseInsensitive) {
+			if(deadlines.remove(resource) != null) {
+				superseded();
+			}
+		} else {
+			for(String key : deadlines.keySet()) {
+				if(key.equalsIgnoreCase(resource) && deadlines.remove(key) != null) {
+					superseded();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the deadlines of all resources matching the given regular
+	 * expression.
+	 *
+	 * @param regex
+	 *   the regular expression.
+	 */
+	void forget(Regex regex) {
+		for(String key : deadlines.keySet()) {
+			if(regex.matches(key) && deadlines.remove(key) != null) {
+				superseded();
+			}
+		}
+	}
+
+	/**
+	 * Removes all deadlines.
+	 */
+	void clear() {
+		deadlines.clear();
+		queue.clear();
+		stale.set(0);
+	}
+
+	/**
+	 * Returns the number of elements in the queue, including stale ones.
+	 *
+	 * @return
+	 *   the size of the queue.
+	 */
+	int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Records that an element in the queue has become stale, purging the queue
+	 * if stale elements outnumber the live ones.
+	 */
+	private void superseded() {
+		if(stale.incrementAndGet() > Math.max(PURGE_THRESHOLD, deadlines.size())) {
+			purge();
+		}
+	}
+
+	/**
+	 * Removes the stale elements from the queue.
+	 */
+	private synchronized void purge() {
+		if(stale.get() <= Math.max(PURGE_THRESHOLD, deadlines.size())) {
+			// purged by another thread in the meanwhile
+			return;
+		}
+		int removed = 0;
+		for(Iterator<Expiration> iterator = queue.iterator(); iterator.hasNext(); ) {
+			Expiration expiration = iterator.next();
+			if(deadlines.get(expiration.resource) != expiration) {
+				iterator.remove();
+				++removed;
+			}
+		}
+		stale.addAndGet(-removed);
+	}
+
+	/**
+	 * A pending expiration in the delay queue.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Expiration implements Delayed {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * The expiration deadline, in milliseconds since the epoch.
+		 */
+		private final long deadline;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param deadline
+		 *   the expiration deadline, in milliseconds since the epoch.
+		 */
+		Expiration(String resource, long deadline) {
+			this.resource = resource;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @see java.util.concurrent.Delayed#getDelay(java.util.concurrent.TimeUnit)
+		 */
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Delayed other) {
+			if(other instanceof Expiration) {
+				return Long.compare(deadline, ((Expiration)other).deadline);
+			}
+			return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+		}
+	}
+}
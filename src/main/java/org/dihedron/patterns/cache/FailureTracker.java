@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dihedron.core.License;
+
+/**
+ * Keeps track of the failed attempts to load resources through cache miss
+ * handlers, so that a handler that could not provide a resource (because it
+ * returned no data or failed) is not asked again for the same resource until
+ * a back-off period has elapsed, and a resource that no handler could provide
+ * is reported as missing until its own back-off period has elapsed; periods 
+ * start at the configured time to live and double at each consecutive failure,
+ * up to a maximum. Handlers are told apart through their {@code equals()} 
+ * method: the handlers in {@link org.dihedron.patterns.cache.handlers} compare
+ * equal when they have the same class and target (file, URL, resource...), so
+ * that the back-off applies to the instances callers create for each lookup,
+ * and only one of them is kept per resource; handlers that do not override 
+ * {@code equals()} must be reused across lookups to back off. This class is 
+ * thread-safe.
+ *
+ * @author Andrea Funto'
+ */
+@License
+class FailureTracker {
+
+	/**
+	 * A source of the current time, so that tests need not wait for back-off
+	 * periods to elapse.
+	 *
+	 * @author Andrea Funto'
+	 */
+	interface Clock {
+
+		/**
+		 * Returns the current time.
+		 *
+		 * @return
+		 *   the current time, in milliseconds since the epoch.
+		 */
+		long currentTimeMillis();
+	}
+
+	/**
+	 * The clock reading the system time.
+	 */
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * The number of failures recorded between two purges of the stale entries.
+	 */
+	private static final int PURGE_INTERVAL = 1024;
+
+	/**
+	 * The key of the failures of all the handlers to provide a resource.
+	 */
+	private static final Object ALL_HANDLERS = new Object();
+
+	/**
+	 * The source of the current time.
+	 */
+	private final Clock clock;
+
+	/**
+	 * The failures, by resource and by handler.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<Object, Failure>> failures = new ConcurrentHashMap<String, ConcurrentMap<Object, Failure>>();
+
+	/**
+	 * The back-off period after the first failure, in milliseconds; if not
+	 * positive, failures are not tracked.
+	 */
+	private volatile long timeToLive = 0;
+
+	/**
+	 * The maximum back-off period, in milliseconds.
+	 */
+	private volatile long maxTimeToLive = 0;
+
+	/**
+	 * The number of failures recorded since the last purge.
+	 */
+	private int recorded = 0;
+
+	/**
+	 * Constructor.
+	 */
+	FailureTracker() {
+		this(SYSTEM_CLOCK);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param clock
+	 *   the source of the current time.
+	 */
+	FailureTracker(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Sets the back-off periods.
+	 *
+	 * @param timeToLive
+	 *   the back-off period after the first failure, in milliseconds; if not
+	 *   positive, failures are not tracked.
+	 * @param maxTimeToLive
+	 *   the maximum back-off period, in milliseconds.
+	 */
+	void setTimeToLive(long timeToLive, long maxTimeToLive) {
+		this.timeToLive = Math.max(0, timeToLive);
+		this.maxTimeToLive = Math.max(this.timeToLive, maxTimeToLive);
+		if(this.timeToLive == 0) {
+			failures.clear();
+		}
+	}
+
+	/**
+	 * Returns the back-off period after the first failure.
+	 *
+	 * @return
+	 *   the back-off period in milliseconds, 0 if failures are not tracked.
+	 */
+	long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Returns the maximum back-off period.
+	 *
+	 * @return
+	 *   the maximum back-off period in milliseconds.
+	 */
+	long getMaxTimeToLive() {
+		return maxTimeToLive;
+	}
+
+	/**
+	 * Returns whether the given handler is backing off for the given resource.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param handler
+	 *   the cache miss handler.
+	 * @return
+	 *   whether the handler failed to provide the resource recently, and should
+	 *   not be asked again yet.
+	 */
+	boolean isBackingOff(String resource, CacheMissHandler handler) {
+		return isBackingOff(resource, (Object)handler);
+	}
+
+	/**
+	 * Returns whether the given resource is known to be missing, because no 
+	 * handler could provide it recently.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   whether no handler should be asked for the resource.
+	 */
+	boolean isMissing(String resource) {
+		return isBackingOff(resource, ALL_HANDLERS);
+	}
+
+	/**
+	 * Records a failure of the given handler to provide the given resource,
+	 * doubling its back-off period if it had already failed.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param handler
+	 *   the cache miss handler.
+	 */
+	void failed(String resource, CacheMissHandler handler) {
+		failed(resource, (Object)handler);
+	}
+
+	/**
+	 * Records that no handler could provide the given resource, doubling its
+	 * back-off period if it was already missing.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	void missing(String resource) {
+		failed(resource, ALL_HANDLERS);
+	}
+
+	/**
+	 * Records that the given handler provided the given resource, forgetting
+	 * its failures and those of the resource as a whole; other handlers keep 
+	 * backing off, so that they are skipped if the resource has to be loaded 
+	 * again soon.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param handler
+	 *   the cache miss handler.
+	 */
+	void succeeded(String resource, CacheMissHandler handler) {
+		ConcurrentMap<Object, Failure> handlers = failures.get(resource);
+		if(handlers != null) {
+			handlers.remove(ALL_HANDLERS);
+			handlers.remove(handler);
+			if(handlers.isEmpty()) {
+				failures.remove(resource, handlers);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all the failures for the given resource, e.g. because it has 
+	 * been stored.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	void forget(String resource) {
+		failures.remove(resource);
+	}
+
+	/**
+	 * Forgets all failures.
+	 */
+	void clear() {
+		failures.clear();
+	}
+
+	/**
+	 * Returns whether the back-off period for the given key is running.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param key
+	 *   the handler, or {@link #ALL_HANDLERS}.
+	 * @return
+	 *   whether the back-off period is running.
+	 */
+	private boolean isBackingOff(String resource, Object key) {
+		Map<Object, Failure> handlers = failures.get(resource);
+		if(handlers != null) {
+			Failure failure = handlers.get(key);
+			return failure != null && failure.until > clock.currentTimeMillis();
+		}
+		return false;
+	}
+
+	/**
+	 * Records a failure for the given key.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param key
+	 *   the handler, or {@link #ALL_HANDLERS}.
+	 */
+	private void failed(String resource, Object key) {
+		long timeToLive = this.timeToLive;
+		if(timeToLive <= 0) {
+			return;
+		}
+		ConcurrentMap<Object, Failure> handlers = failures.get(resource);
+		if(handlers == null) {
+			ConcurrentMap<Object, Failure> existing = failures.putIfAbsent(resource, handlers = new ConcurrentHashMap<Object, Failure>());
+			if(existing != null) {
+				handlers = existing;
+			}
+		}
+		long now = clock.currentTimeMillis();
+		for(;;) {
+			Failure previous = handlers.get(key);
+			// after a long enough quiet period the back-off starts over
+			int count = previous != null && now - previous.until < maxTimeToLive ? previous.count + 1 : 1;
+			Failure failure = new Failure(count, now + backoff(timeToLive, count));
+			if(previous == null ? handlers.putIfAbsent(key, failure) == null : handlers.replace(key, previous, failure)) {
+				break;
+			}
+		}
+		boolean purge;
+		synchronized(this) {
+			purge = ++recorded >= PURGE_INTERVAL;
+			if(purge) {
+				recorded = 0;
+			}
+		}
+		if(purge) {
+			purge();
+		}
+	}
+
+	/**
+	 * Removes the failures that no longer affect the back-off periods, so that
+	 * lookups of many distinct missing resources do not make the tracker grow
+	 * without bounds; the failures of a resource are dropped altogether when 
+	 * none of them is relevant anymore, so that entries whose handler has been
+	 * modified since (and can no longer be looked up) do not linger.
+	 *
+	 * @return
+	 *   the number of resources whose failures have been removed.
+	 */
+	int purge() {
+		long now = clock.currentTimeMillis();
+		int count = 0;
+		for(Map.Entry<String, ConcurrentMap<Object, Failure>> entry : failures.entrySet()) {
+			ConcurrentMap<Object, Failure> handlers = entry.getValue();
+			boolean relevant = false;
+			for(Map.Entry<Object, Failure> failure : handlers.entrySet()) {
+				if(now - failure.getValue().until >= maxTimeToLive) {
+					handlers.remove(failure.getKey(), failure.getValue());
+				} else {
+					relevant = true;
+				}
+			}
+			if(!relevant && failures.remove(entry.getKey(), handlers)) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Computes the back-off period after the given number of consecutive
+	 * failures.
+	 *
+	 * @param timeToLive
+	 *   the back-off period after the first failure.
+	 * @param count
+	 *   the number of consecutive failures.
+	 * @return
+	 *   the back-off period, in milliseconds.
+	 */
+	private long backoff(long timeToLive, int count) {
+		long max = maxTimeToLive;
+		int shift = Math.min(count - 1, Long.numberOfLeadingZeros(timeToLive) - 1);
+		return Math.min(timeToLive << shift, max);
+	}
+
+	/**
+	 * A failure of a handler to provide a resource; instances are immutable.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Failure {
+
+		/**
+		 * The number of consecutive failures.
+		 */
+		private final int count;
+
+		/**
+		 * The end of the back-off period, in milliseconds since the epoch.
+		 */
+		private final long until;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param count
+		 *   the number of consecutive failures.
+		 * @param until
+		 *   the end of the back-off period, in milliseconds since the epoch.
+		 */
+		Failure(int count, long until) {
+			this.count = count;
+			this.until = until;
+		}
+	}
+}
@@ -23,9 +23,14 @@ public interface Storage extends Iterable<String> {
 	 * 
 	 * @return
 	 *   an iterator over all the resources in the storage; deletion is not 
-	 *   supported, and the returned iterator contains information about the 
-	 *   resources in the cache at the moment of the creation: do not assume the
-	 *   behaviour to be 100% correct in a multi-threaded environment.  
+	 *   supported, and the returned iterator may either contain information 
+	 *   about the resources in the cache at the moment of the creation or, if 
+	 *   the storage walks its contents lazily, reflect some of the changes made
+	 *   while iterating: do not assume the behaviour to be 100% correct in a 
+	 *   multi-threaded environment. Iterators that hold resources (such as an
+	 *   open directory) release them when exhausted, and implement {@link 
+	 *   java.io.Closeable}: callers that stop iterating before the end should 
+	 *   close them.
 	 */
 	public Iterator<String> iterator();
 	
@@ -114,6 +119,27 @@ public interface Storage extends Iterable<String> {
 	 */
 	InputStream retrieve(String resource);
 	
+	/**
+	 * Retrieves a range of the given resource (if present), and returns an open
+	 * input stream to its data; it is up to the caller to close the stream once
+	 * it's finished with it, to avoid leaks. Storages position the stream at
+	 * the beginning of the range directly whenever they can, instead of reading
+	 * through the preceding data.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param offset
+	 *   the offset of the first byte to be read; if beyond the end of the 
+	 *   resource, the stream is empty.
+	 * @param length
+	 *   the maximum number of bytes to be read, or a negative value to read up
+	 *   to the end of the resource.
+	 * @return
+	 *   an input stream giving access to the range of the resource data, or 
+	 *   {@code null} if not present.
+	 */
+	InputStream retrieve(String resource, long offset, long length);
+	
 	/**
 	 * Returns the size of the given resource is available in the storage, -1
 	 * otherwise.
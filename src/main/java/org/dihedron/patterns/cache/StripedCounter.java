@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.dihedron.core.License;
+
+/**
+ * A counter that can be incremented concurrently by many threads with little
+ * contention: each thread updates one of several cells, spaced apart so that
+ * they do not share cache lines, and the value is the sum of all cells. Reads
+ * are therefore more expensive than updates, which is the right trade-off for 
+ * statistics that are updated on every operation and polled now and then.
+ * A counter can also hold several slots (e.g. the buckets of a histogram), in
+ * which case each thread updates its own row of slots.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+final class StripedCounter {
+	
+	/**
+	 * The number of array elements in a 64-byte cache line; cells and rows are
+	 * spaced by a multiple of this, so that they do not share cache lines.
+	 */
+	private static final int PADDING = 8;
+	
+	/**
+	 * The number of cells (or rows), a power of two at least as large as the 
+	 * number of processors.
+	 */
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+	
+	/**
+	 * The number of slots.
+	 */
+	private final int slots;
+	
+	/**
+	 * The distance between the rows of slots in the array.
+	 */
+	private final int stride;
+	
+	/**
+	 * The cells.
+	 */
+	private final AtomicLongArray cells;
+	
+	/**
+	 * Constructor for a counter with a single slot.
+	 */
+	StripedCounter() {
+		this(1);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param slots
+	 *   the number of slots.
+	 */
+	StripedCounter(int slots) {
+		this.slots = slots;
+		this.stride = (slots + PADDING - 1) / PADDING * PADDING;
+		this.cells = new AtomicLongArray(STRIPES * stride);
+	}
+	
+	/**
+	 * Adds the given amount to the counter.
+	 * 
+	 * @param amount
+	 *   the amount to add.
+	 */
+	void add(long amount) {
+		cells.addAndGet(row(), amount);
+	}
+	
+	/**
+	 * Increments the counter.
+	 */
+	void increment() {
+		cells.incrementAndGet(row());
+	}
+	
+	/**
+	 * Increments the given slot of the counter.
+	 * 
+	 * @param slot
+	 *   the index of the slot.
+	 */
+	void increment(int slot) {
+		cells.incrementAndGet(row() + slot);
+	}
+	
+	/**
+	 * Returns the current value of the counter; the value is not an atomic 
+	 * snapshot if the counter is being updated concurrently.
+	 * 
+	 * @return
+	 *   the value of the counter.
+	 */
+	long get() {
+		return get(0);
+	}
+	
+	/**
+	 * Returns the current value of the given slot of the counter.
+	 * 
+	 * @param slot
+	 *   the index of the slot.
+	 * @return
+	 *   the value of the slot.
+	 */
+	long get(int slot) {
+		long sum = 0;
+		for(int i = 0; i < STRIPES; ++i) {
+			sum += cells.get(i * stride + slot);
+		}
+		return sum;
+	}
+	
+	/**
+	 * Returns the current values of all the slots of the counter.
+	 * 
+	 * @return
+	 *   the values of the slots.
+	 */
+	long[] getAll() {
+		long[] values = new long[slots];
+		for(int i = 0; i < STRIPES; ++i) {
+			for(int j = 0; j < slots; ++j) {
+				values[j] += cells.get(i * stride + j);
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Returns the first cell of the row updated by the current thread.
+	 * 
+	 * @return
+	 *   the index of the cell in the array.
+	 */
+	private int row() {
+		long id = Thread.currentThread().getId();
+		int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & (STRIPES - 1)) * stride;
+	}
+}
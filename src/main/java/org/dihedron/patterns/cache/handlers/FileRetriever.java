@@ -69,4 +69,28 @@ public class FileRetriever implements CacheMissHandler {
 		}		
 		return null;
 	}
+	
+	/**
+	 * Two retrievers are equal if they point to the same file.
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if(other == this) {
+			return true;
+		}
+		if(other == null || !other.getClass().equals(getClass())) {
+			return false;
+		}
+		return file.equals(((FileRetriever)other).file);
+	}
+	
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return file.hashCode();
+	}
 }
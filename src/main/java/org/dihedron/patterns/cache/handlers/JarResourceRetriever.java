@@ -6,6 +6,7 @@ s * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for
 package org.dihedron.patterns.cache.handlers;
 
 import java.io.InputStream;
+import java.util.Objects;
 
 import org.dihedron.core.License;
 import org.dihedron.patterns.cache.CacheException;
@@ -57,4 +58,30 @@ public class JarResourceRetriever implements CacheMissHandler {
 	public InputStream getAsStream() throws CacheException {		
 		return clazz.getResourceAsStream(resource);
 	}
+	
+	/**
+	 * Two retrievers are equal if they load the same resource through the same
+	 * class.
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if(other == this) {
+			return true;
+		}
+		if(other == null || !other.getClass().equals(getClass())) {
+			return false;
+		}
+		JarResourceRetriever retriever = (JarResourceRetriever)other;
+		return clazz.equals(retriever.clazz) && Objects.equals(resource, retriever.resource);
+	}
+	
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Objects.hash(clazz, resource);
+	}
 }
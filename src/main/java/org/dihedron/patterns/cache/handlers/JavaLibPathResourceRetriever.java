@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Objects;
 
 import org.dihedron.core.License;
 import org.dihedron.patterns.cache.CacheException;
@@ -59,4 +60,28 @@ public class JavaLibPathResourceRetriever implements CacheMissHandler {
 		}
 		return null;
 	}
+	
+	/**
+	 * Two retrievers are equal if they look up the same file name.
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if(other == this) {
+			return true;
+		}
+		if(other == null || !other.getClass().equals(getClass())) {
+			return false;
+		}
+		return Objects.equals(filename, ((JavaLibPathResourceRetriever)other).filename);
+	}
+	
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(filename);
+	}
 }
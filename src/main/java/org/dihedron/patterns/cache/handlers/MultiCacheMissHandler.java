@@ -8,31 +8,98 @@ package org.dihedron.patterns.cache.handlers;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dihedron.core.License;
+import org.dihedron.core.streams.Streams;
 import org.dihedron.patterns.cache.CacheException;
 import org.dihedron.patterns.cache.CacheMissHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Handles multiple cache miss handlers at one.
+ * Handles multiple cache miss handlers at one; handlers can be tried one after
+ * the other, or raced against each other so that a slow source does not delay
+ * the retrieval from the others (see {@link Mode}).
  * 
  * @author Andrea Funto'
  */
 @License
 public class MultiCacheMissHandler implements CacheMissHandler {
 
+	/**
+	 * The way handlers are tried.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	public enum Mode {
+		/**
+		 * Handlers are tried one after the other, in order, each one only when
+		 * the previous one has failed.
+		 */
+		SEQUENTIAL,
+		
+		/**
+		 * All handlers are started at once, and the first one returning a 
+		 * valid stream wins.
+		 */
+		PARALLEL,
+		
+		/**
+		 * Handlers are started in order, each one after the hedge delay if no
+		 * previous handler has completed in the meanwhile (or right away when 
+		 * the previous one fails); the first one returning a valid stream wins.
+		 */
+		HEDGED
+	}
+	
+	/**
+	 * The default delay (in milliseconds) before the next handler is started in
+	 * hedged mode.
+	 */
+	public static final long DEFAULT_HEDGE_DELAY = 500;
+	
 	/** 
 	 * The logger. 
 	 */
 	private static final Logger logger = LoggerFactory.getLogger(MultiCacheMissHandler.class);
 	
+	/**
+	 * The executor shared by all instances for which no executor is set.
+	 */
+	private static Executor sharedExecutor;
+	
 	/** 
 	 * The list of handlers. 
 	 */
 	private List<CacheMissHandler> handlers;
 	
+	/**
+	 * The way handlers are tried.
+	 */
+	private Mode mode = Mode.SEQUENTIAL;
+	
+	/**
+	 * The delay (in milliseconds) before the next handler is started in hedged
+	 * mode.
+	 */
+	private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+	
+	/**
+	 * The executor on which handlers are run in parallel and hedged mode.
+	 */
+	private Executor executor;
+	
 	/**
 	 * Constructor.
 	 */
@@ -89,16 +156,99 @@ public class MultiCacheMissHandler implements CacheMissHandler {
 		}
 	}
 	
+	/**
+	 * Sets the way handlers are tried.
+	 * 
+	 * @param mode
+	 *   the mode; if {@code null}, handlers are tried sequentially.
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode != null ? mode : Mode.SEQUENTIAL;
+	}
+	
+	/**
+	 * Returns the way handlers are tried.
+	 * 
+	 * @return
+	 *   the mode.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Sets the delay before the next handler is started in hedged mode.
+	 * 
+	 * @param hedgeDelay
+	 *   the delay in milliseconds.
+	 */
+	public void setHedgeDelay(long hedgeDelay) {
+		this.hedgeDelay = Math.max(0, hedgeDelay);
+	}
+	
+	/**
+	 * Returns the delay before the next handler is started in hedged mode.
+	 * 
+	 * @return
+	 *   the delay in milliseconds.
+	 */
+	public long getHedgeDelay() {
+		return hedgeDelay;
+	}
+	
+	/**
+	 * Sets the executor on which handlers are run in parallel and hedged mode.
+	 * 
+	 * @param executor
+	 *   the executor; if {@code null}, a pool of daemon threads shared by all
+	 *   instances is used.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Two handlers are equal if they try equal handlers, in the same order and
+	 * mode; the executor and the hedge delay are not taken into account.
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if(other == this) {
+			return true;
+		}
+		if(other == null || !other.getClass().equals(getClass())) {
+			return false;
+		}
+		MultiCacheMissHandler handler = (MultiCacheMissHandler)other;
+		return mode == handler.mode && handlers.equals(handler.handlers);
+	}
+	
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return 31 * mode.hashCode() + handlers.hashCode();
+	}
+	
 	/**
 	 * Attempts a resource retrieval from each of the provided 
 	 * <code>CacheMissHandler</code>s; as soon as one succeeds, it returns it as
-	 * an <code>InputStream</code>.
+	 * an <code>InputStream</code>. Depending on the mode, handlers are tried 
+	 * one after the other or raced against each other; in the latter case, the
+	 * handlers that have not completed yet are cancelled and the streams 
+	 * returned by the losers are closed.
 	 * 
 	 * @return
 	 *   the resource as an <code>InputStream</code>, as soon as any of the 
 	 *   <code>CacheMissHandler</code>s succeeds, null otherwise.
 	 */
 	public InputStream getAsStream() throws CacheException {
+		if(mode != Mode.SEQUENTIAL && handlers.size() > 1) {
+			return race();
+		}
 		List<Exception> exceptions = new ArrayList<Exception>(); 
 		for (CacheMissHandler handler : handlers) {
 			try {
@@ -121,4 +271,142 @@ public class MultiCacheMissHandler implements CacheMissHandler {
 		logger.warn("failure, resource not found");
 		return null;
 	}	
+	
+	/**
+	 * Races the handlers against each other, as per the current mode.
+	 * 
+	 * @return
+	 *   the stream returned by the first handler to succeed, null if none does.
+	 * @throws CacheException
+	 *   if no handler succeeds and some of them fail.
+	 */
+	private InputStream race() throws CacheException {
+		CompletionService<InputStream> completion = new ExecutorCompletionService<InputStream>(executor != null ? executor : getSharedExecutor());
+		List<Future<InputStream>> futures = new ArrayList<Future<InputStream>>();
+		List<Exception> exceptions = new ArrayList<Exception>();
+		AtomicBoolean claimed = new AtomicBoolean(false);
+		int started = 0;
+		int completed = 0;
+		try {
+			do {
+				// start the next handler(s): all of them in parallel mode, otherwise
+				// one more if none is running or the hedge delay has expired 
+				while(started < handlers.size() && (mode == Mode.PARALLEL || started == completed)) {
+					logger.debug("starting handler of class '{}'", handlers.get(started).getClass());
+					futures.add(completion.submit(new Attempt(handlers.get(started++), claimed)));
+				}
+				Future<InputStream> future = started < handlers.size() ? completion.poll(hedgeDelay, TimeUnit.MILLISECONDS) : completion.take();
+				if(future == null) {
+					logger.debug("no handler completed within {} ms, hedging", hedgeDelay);
+					futures.add(completion.submit(new Attempt(handlers.get(started++), claimed)));
+					continue;
+				}
+				++completed;
+				try {
+					InputStream stream = future.get();
+					if(stream != null) {
+						logger.debug("success, returning stream");
+						futures.remove(future);
+						return stream;
+					}
+				} catch(ExecutionException e) {
+					logger.error("error during resource retrieval", e.getCause());
+					exceptions.add(e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+				}
+			} while(completed < started || started < handlers.size());
+		} catch(InterruptedException e) {
+			logger.warn("interrupted while waiting for handlers");
+			Thread.currentThread().interrupt();
+			exceptions.add(e);
+		} finally {
+			// claim the victory if nobody did, so that handlers still running 
+			// close whatever they obtain; if a handler has won but the stream has
+			// not been returned (on interruption), close it here
+			boolean won = !claimed.compareAndSet(false, true);
+			for(Future<InputStream> future : futures) {
+				if(!future.cancel(true) && won) {
+					try {
+						Streams.safelyClose(future.get());
+					} catch(InterruptedException | ExecutionException e) {
+						logger.trace("ignoring loser failure", e);
+					}
+				}
+			}
+		}
+		if(!exceptions.isEmpty()) {
+			logger.warn("failure, resource not found, and {} exceptions occurred", exceptions.size());
+			throw new CacheException("Resource not found", exceptions);
+		}
+		logger.warn("failure, resource not found");
+		return null;
+	}
+	
+	/**
+	 * Returns the executor shared by all instances for which no executor is set.
+	 * 
+	 * @return
+	 *   the shared executor.
+	 */
+	private static synchronized Executor getSharedExecutor() {
+		if(sharedExecutor == null) {
+			sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "cache-miss-handler-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+	
+	/**
+	 * A single handler's attempt at retrieving the resource in a race; the 
+	 * first attempt to obtain a valid stream claims the victory, the others 
+	 * close the streams they obtain, so that no stream is leaked.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private static class Attempt implements Callable<InputStream> {
+		
+		/**
+		 * The handler.
+		 */
+		private final CacheMissHandler handler;
+		
+		/**
+		 * Whether a handler has already won the race.
+		 */
+		private final AtomicBoolean claimed;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param handler
+		 *   the handler.
+		 * @param claimed
+		 *   whether a handler has already won the race.
+		 */
+		Attempt(CacheMissHandler handler, AtomicBoolean claimed) {
+			this.handler = handler;
+			this.claimed = claimed;
+		}
+
+		/**
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public InputStream call() throws CacheException {
+			InputStream stream = handler.getAsStream();
+			if(stream != null && !claimed.compareAndSet(false, true)) {
+				logger.debug("handler of class '{}' lost the race, closing its stream", handler.getClass());
+				Streams.safelyClose(stream);
+				return null;
+			}
+			return stream;
+		}
+	}
 }
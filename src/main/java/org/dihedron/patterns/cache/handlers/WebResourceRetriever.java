@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Objects;
 
 import org.dihedron.core.License;
 import org.dihedron.patterns.cache.CacheException;
@@ -105,4 +106,31 @@ public class WebResourceRetriever implements CacheMissHandler {
 		}
 		return stream;
 	}
+	
+	/**
+	 * Two retrievers are equal if they access the same URL through the same 
+	 * proxy; URLs are compared in their string form, so that no host name needs
+	 * to be resolved.
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if(other == this) {
+			return true;
+		}
+		if(other == null || !other.getClass().equals(getClass())) {
+			return false;
+		}
+		WebResourceRetriever retriever = (WebResourceRetriever)other;
+		return url.toExternalForm().equals(retriever.url.toExternalForm()) && Objects.equals(proxy, retriever.proxy);
+	}
+	
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Objects.hash(url.toExternalForm(), proxy);
+	}
 }
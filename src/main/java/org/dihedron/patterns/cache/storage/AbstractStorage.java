@@ -4,20 +4,34 @@
 
 package org.dihedron.patterns.cache.storage;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.BoundedInputStream;
+import org.dihedron.core.streams.Streams;
 import org.dihedron.patterns.cache.Storage;
 
 /**
  * This class provides support for iteration on the storage resources; sub-classes
- * can override the {@link #iterator()} and {@link #iterator(Regex)} methods if
- * they have a more efficient solution to the generation of the resources list,
- * or if they want to provide a custom or more specialised iterator instead of 
- * the stock one.
+ * can override the {@link #iterator(Regex)} method (to which {@link #iterator()}
+ * delegates) if they have a more efficient solution to the generation of the 
+ * resources list, such as a lazy iteration over a live view of their contents
+ * (see {@link #iterate(SortedSet, Regex)}), or if they want to provide a custom
+ * or more specialised iterator instead of the stock one, which copies the list
+ * of names.
  * 
  * @author Andrea Funto'
  */
@@ -29,7 +43,7 @@ public abstract class AbstractStorage implements Storage {
 	 */
 	@Override
 	public Iterator<String> iterator() {
-		return new StorageIterator(list(null));
+		return iterator(null);
 	}
 
 	/**
@@ -57,6 +71,260 @@ public abstract class AbstractStorage implements Storage {
 		return list(null);
 	}
 	
+	/**
+	 * Retrieves a range of the resource by reading through the data preceding 
+	 * it; sub-classes should override this method if they can position the
+	 * stream directly.
+	 * 
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		InputStream stream = retrieve(resource);
+		if(stream != null) {
+			try {
+				return slice(stream, offset, length);
+			} catch(IOException e) {
+				Streams.safelyClose(stream);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns a stream reading the given range of the data of another stream, 
+	 * by skipping the data preceding the range.
+	 * 
+	 * @param stream
+	 *   the stream, positioned at the beginning of the resource data.
+	 * @param offset
+	 *   the offset of the first byte to be read.
+	 * @param length
+	 *   the maximum number of bytes to be read, or a negative value to read up 
+	 *   to the end of the stream.
+	 * @return
+	 *   a stream reading the range; closing it closes the original stream.
+	 * @throws IOException
+	 *   if the data preceding the range cannot be skipped.
+	 */
+	protected static InputStream slice(InputStream stream, long offset, long length) throws IOException {
+		while(offset > 0) {
+			long skipped = stream.skip(offset);
+			if(skipped <= 0) {
+				if(stream.read() == -1) {
+					break;
+				}
+				skipped = 1;
+			}
+			offset -= skipped;
+		}
+		return length < 0 ? stream : new BoundedInputStream(stream, length);
+	}
+	
+	/**
+	 * Opens a stream reading the given range of a file, by positioning a file
+	 * channel at the beginning of the range.
+	 * 
+	 * @param file
+	 *   the file.
+	 * @param offset
+	 *   the offset of the first byte to be read.
+	 * @param length
+	 *   the maximum number of bytes to be read, or a negative value to read up 
+	 *   to the end of the file.
+	 * @return
+	 *   a stream reading the range, or {@code null} if the file does not exist.
+	 * @throws IOException
+	 *   if the file cannot be opened.
+	 */
+	static InputStream open(File file, long offset, long length) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch(NoSuchFileException e) {
+			return null;
+		}
+		channel.position(Math.max(0, offset));
+		InputStream stream = Channels.newInputStream(channel);
+		return length < 0 ? stream : new BoundedInputStream(stream, length);
+	}
+	
+	/**
+	 * Selects the names of the resources matching the given regular expression
+	 * out of a sorted set of names; if the regular expression has a literal 
+	 * prefix, only the range of names beginning with it is visited, otherwise
+	 * all names are matched against the regular expression.
+	 * 
+	 * @param names
+	 *   the sorted set of the names of the resources in the storage.
+	 * @param regex
+	 *   the regular expression, or {@code null} to select all names.
+	 * @return
+	 *   the (possibly empty) list of the matching names.
+	 * @see Regex#getLiteralPrefix()
+	 */
+	protected static List<String> select(SortedSet<String> names, Regex regex) {
+		if(regex == null) {
+			return new ArrayList<String>(names);
+		}
+		String prefix = regex.getLiteralPrefix();
+		List<String> matches = new ArrayList<String>();
+		for(String name : prefix.isEmpty() ? names : names.tailSet(prefix)) {
+			if(!name.startsWith(prefix)) {
+				break;
+			}
+			if(regex.matches(name)) {
+				matches.add(name);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * Returns a lazy iterator over the names in a sorted set that match the given
+	 * regular expression; as in {@link #select(SortedSet, Regex)}, only the range
+	 * of names beginning with the literal prefix of the regular expression is 
+	 * visited, but names are matched while iterating, so no copy of the set is
+	 * made. If the set is a concurrent one, the iterator reflects the changes 
+	 * made to it while iterating, as far as its own iterators do.
+	 * 
+	 * @param names
+	 *   the sorted set of the names of the resources in the storage.
+	 * @param regex
+	 *   the regular expression, or {@code null} to iterate over all names.
+	 * @return
+	 *   the iterator over the matching names.
+	 */
+	protected static Iterator<String> iterate(SortedSet<String> names, Regex regex) {
+		if(regex == null) {
+			return new FilteringIterator(names.iterator(), null);
+		}
+		String prefix = regex.getLiteralPrefix();
+		return new FilteringIterator((prefix.isEmpty() ? names : names.tailSet(prefix)).iterator(), regex, prefix);
+	}
+	
+	/**
+	 * A lazy iterator over the names returned by another iterator that match a 
+	 * regular expression; names are matched one at a time, as the iteration 
+	 * proceeds. If the underlying iterator is {@link Closeable}, closing this
+	 * iterator closes it as well.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	protected static class FilteringIterator implements Iterator<String>, Closeable {
+		
+		/**
+		 * The underlying iterator.
+		 */
+		private final Iterator<String> names;
+		
+		/**
+		 * The regular expression, or {@code null} to accept all names.
+		 */
+		private final Regex regex;
+		
+		/**
+		 * The prefix all names must begin with, if the underlying iterator is
+		 * sorted; the iteration stops at the first name without it.
+		 */
+		private final String prefix;
+		
+		/**
+		 * The next matching name, if already found.
+		 */
+		private String next = null;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param names
+		 *   the underlying iterator.
+		 * @param regex
+		 *   the regular expression, or {@code null} to accept all names.
+		 */
+		protected FilteringIterator(Iterator<String> names, Regex regex) {
+			this(names, regex, null);
+		}
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param names
+		 *   the underlying iterator, returning names in ascending order.
+		 * @param regex
+		 *   the regular expression, or {@code null} to accept all names.
+		 * @param prefix
+		 *   the prefix all matching names begin with; the iteration stops at the 
+		 *   first name without it.
+		 */
+		protected FilteringIterator(Iterator<String> names, Regex regex, String prefix) {
+			this.names = names;
+			this.regex = regex;
+			this.prefix = prefix;
+		}
+		
+		/**
+		 * Checks whether a name should be returned by the iterator; sub-classes
+		 * can override it to apply further criteria.
+		 * 
+		 * @param name
+		 *   the name of a resource.
+		 * @return
+		 *   whether the name matches the regular expression.
+		 */
+		protected boolean accept(String name) {
+			return regex == null || regex.matches(name);
+		}
+		
+		/**
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while(next == null && names.hasNext()) {
+				String name = names.next();
+				if(prefix != null && !name.startsWith(prefix)) {
+					break;
+				}
+				if(accept(name)) {
+					next = name;
+				}
+			}
+			return next != null;
+		}
+		
+		/**
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public String next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String name = next;
+			next = null;
+			return name;
+		}
+		
+		/**
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("resource deletion during iteration is not supported");
+		}
+		
+		/**
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(names instanceof Closeable) {
+				((Closeable)names).close();
+			}
+		}
+	}
+	
 	/**
 	 * An iterator class supporting simple iteration over the names of the resources
 	 * in the storage.
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.CacheOutputStream;
+import org.dihedron.patterns.cache.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage keeping a counting Bloom filter of the names of the resources in
+ * an underlying storage, so that lookups of resources that are not there
+ * ({@link #contains(String)}, {@link #retrieve(String)}, {@link
+ * #retrieveSize(String)}) are answered in memory, without touching the
+ * underlying storage (e.g. a file system stat, or a round trip to a remote
+ * server); lookups the filter cannot rule out are forwarded as usual.
+ * <p>
+ * The filter is updated as resources are stored and deleted through this
+ * object, and built by scanning the underlying storage when this object is
+ * created; since it only errs on the side of false positives (overwritten
+ * resources are counted more than once, and saturated counters are never
+ * decremented), it can be rebuilt with {@link #rebuild()} from time to time
+ * to keep the false positive rate low.
+ * </p>
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class BloomFilterStorage extends AbstractStorage {
+
+	/**
+	 * The default number of resources the filter is sized for.
+	 */
+	public static final long DEFAULT_EXPECTED_RESOURCES = 100000;
+
+	/**
+	 * The default probability of false positives when the storage holds the
+	 * expected number of resources.
+	 */
+	public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(BloomFilterStorage.class);
+
+	/**
+	 * The underlying storage.
+	 */
+	private final Storage storage;
+
+	/**
+	 * The number of resources the filter is sized for.
+	 */
+	private final long expectedResources;
+
+	/**
+	 * The probability of false positives.
+	 */
+	private final double falsePositiveProbability;
+
+	/**
+	 * The filter; replaced when rebuilt.
+	 */
+	private volatile CountingBloomFilter filter;
+
+	/**
+	 * The lock protecting the filter: adding resources takes the read lock,
+	 * since counters are updated atomically; deleting resources and rebuilding
+	 * the filter take the write lock, so that they never miss a resource being
+	 * added at the same time.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The resources being written, with the number of open streams on each;
+	 * they are carried over when the filter is rebuilt, since they may not be
+	 * visible in the underlying storage yet. Access is synchronised on the map
+	 * itself.
+	 */
+	private final Map<String, Integer> writing = new HashMap<String, Integer>();
+
+	/**
+	 * The number of lookups answered by the filter alone.
+	 */
+	private final AtomicLong negatives = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 */
+	public BloomFilterStorage(Storage storage) {
+		this(storage, DEFAULT_EXPECTED_RESOURCES, DEFAULT_FALSE_POSITIVE_PROBABILITY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 * @param expectedResources
+	 *   the number of resources the filter is sized for; if the underlying
+	 *   storage holds more resources when the filter is built, the filter is
+	 *   sized for those.
+	 * @param falsePositiveProbability
+	 *   the probability that a lookup of a missing resource is forwarded to the
+	 *   underlying storage, when the storage holds the expected number of
+	 *   resources.
+	 */
+	public BloomFilterStorage(Storage storage, long expectedResources, double falsePositiveProbability) {
+		this.storage = storage;
+		this.expectedResources = expectedResources;
+		this.falsePositiveProbability = falsePositiveProbability;
+		rebuild();
+	}
+
+	/**
+	 * Returns the underlying storage.
+	 *
+	 * @return
+	 *   the underlying storage.
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Returns the number of lookups that were answered by the filter alone,
+	 * without reaching the underlying storage.
+	 *
+	 * @return
+	 *   the number of short-circuited lookups.
+	 */
+	public long getNegativeLookupCount() {
+		return negatives.get();
+	}
+
+	/**
+	 * Rebuilds the filter by scanning the underlying storage; this discards the
+	 * false positives accumulated by overwrites and saturated counters.
+	 *
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public BloomFilterStorage rebuild() {
+		lock.writeLock().lock();
+		try {
+			String[] names = storage.list();
+			int count = names != null ? names.length : 0;
+			CountingBloomFilter rebuilt = new CountingBloomFilter(Math.max(expectedResources, count), falsePositiveProbability);
+			if(names != null) {
+				for(String name : names) {
+					rebuilt.add(name);
+				}
+			}
+			synchronized(writing) {
+				for(String name : writing.keySet()) {
+					rebuilt.add(name);
+				}
+			}
+			filter = rebuilt;
+			logger.debug("filter built over {} resources ({} counters, {} hashes)", count, rebuilt.getCounterCount(), rebuilt.getHashCount());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return storage.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		return storage.size();
+	}
+
+	/**
+	 * Iterates lazily over the underlying storage.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return storage.iterator(regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		return storage.list(regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return mightContain(resource) && storage.contains(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		return mightContain(resource) ? storage.retrieve(resource) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		return mightContain(resource) ? storage.retrieve(resource, offset, length) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		return mightContain(resource) ? storage.retrieveSize(resource) : -1;
+	}
+
+	/**
+	 * Adds the resource to the filter before it is written, so that it can
+	 * never be visible in the underlying storage without being in the filter.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		if(resource == null) {
+			return null;
+		}
+		lock.readLock().lock();
+		try {
+			synchronized(writing) {
+				Integer streams = writing.get(resource);
+				writing.put(resource, streams != null ? streams + 1 : 1);
+			}
+			filter.add(resource);
+		} finally {
+			lock.readLock().unlock();
+		}
+		OutputStream stream = null;
+		try {
+			stream = storage.store(resource);
+		} finally {
+			if(stream == null) {
+				written(resource);
+			}
+		}
+		return stream != null ? new FilteredOutputStream(resource, stream) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		lock.writeLock().lock();
+		try {
+			String[] names = storage.list(regex);
+			if(names != null) {
+				for(String name : names) {
+					remove(name);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public void delete(String resource, boolean caseInsensitive) {
+		if(resource == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if(!caseInsensitive) {
+				if(storage.contains(resource)) {
+					remove(resource);
+				}
+				return;
+			}
+			String[] names = storage.list();
+			if(names != null) {
+				for(String name : names) {
+					if(name.equalsIgnoreCase(resource)) {
+						remove(name);
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			storage.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		rebuild();
+	}
+
+	/**
+	 * Checks the filter, counting the lookups it answers alone.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   whether the resource may be in the underlying storage.
+	 */
+	private boolean mightContain(String resource) {
+		if(resource != null && filter.mightContain(resource)) {
+			return true;
+		}
+		negatives.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Deletes a resource that was found in the underlying storage, and removes
+	 * it from the filter if it is actually gone; must be called with the write
+	 * lock held.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void remove(String resource) {
+		storage.delete(resource, false);
+		if(!storage.contains(resource)) {
+			filter.remove(resource);
+		} else {
+			logger.warn("resource '{}' could not be deleted", resource);
+		}
+	}
+
+	/**
+	 * Records that a stream on the given resource has been closed.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void written(String resource) {
+		synchronized(writing) {
+			Integer streams = writing.get(resource);
+			if(streams != null && streams > 1) {
+				writing.put(resource, streams - 1);
+			} else {
+				writing.remove(resource);
+			}
+		}
+	}
+
+	/**
+	 * The stream to the underlying storage, keeping track of the resource being
+	 * written until it is closed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class FilteredOutputStream extends CacheOutputStream<OutputStream> implements Abortable {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param stream
+		 *   the stream to the underlying storage.
+		 */
+		FilteredOutputStream(String resource, OutputStream stream) {
+			super(stream);
+			this.resource = resource;
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					written(resource);
+				}
+			}
+		}
+
+		/**
+		 * Discards the resource in the underlying storage; the resource stays
+		 * in the filter, which is harmless.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					CacheHelper.abort(storage, resource, getWrappedStream());
+				} finally {
+					written(resource);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that transparently compresses resources before writing them to an
+ * underlying storage, and decompresses them when they are read back. Whether a
+ * resource is worth compressing is decided by compressing its first block: if
+ * the block does not shrink enough (e.g. because the resource is already
+ * compressed, like images or archives) the resource is stored as is, so that
+ * no CPU is wasted on it when it is read. Each resource is prefixed by a one
+ * byte header telling how it was stored; compressed resources are followed by
+ * a trailer holding their uncompressed size (which is only known once they 
+ * have been written), so that it can be read without inflating them.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CompressedStorage extends AbstractStorage {
+
+	/**
+	 * The default size of the first block of each resource, which is compressed
+	 * to decide whether the resource is worth compressing.
+	 */
+	public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+	/**
+	 * The default compression level; compression is traded for speed, since
+	 * resources are compressed on the writer's thread.
+	 */
+	public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	/**
+	 * The default maximum ratio between the compressed and the original size
+	 * of the first block for a resource to be stored compressed.
+	 */
+	public static final double DEFAULT_MAX_RATIO = 0.9;
+
+	/**
+	 * The header of resources stored as is.
+	 */
+	private static final int RAW = 0;
+
+	/**
+	 * The header of resources stored deflated.
+	 */
+	private static final int DEFLATED = 1;
+
+	/**
+	 * The length of the trailer of resources stored deflated.
+	 */
+	private static final int TRAILER_LENGTH = 8;
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CompressedStorage.class);
+
+	/**
+	 * The underlying storage.
+	 */
+	private final Storage storage;
+
+	/**
+	 * The size of the first block of each resource.
+	 */
+	private final int sampleSize;
+
+	/**
+	 * The compression level.
+	 */
+	private final int level;
+
+	/**
+	 * The maximum compression ratio of the first block for a resource to be
+	 * stored compressed.
+	 */
+	private final double maxRatio;
+
+	/**
+	 * The uncompressed sizes of the resources, as far as known; sizes of
+	 * resources stored before this object was created are read from the
+	 * underlying storage on demand.
+	 */
+	private final ConcurrentMap<String, Long> sizes = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 */
+	public CompressedStorage(Storage storage) {
+		this(storage, DEFAULT_SAMPLE_SIZE, DEFAULT_LEVEL, DEFAULT_MAX_RATIO);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 * @param sampleSize
+	 *   the size of the first block of each resource, which is compressed to
+	 *   decide whether the resource is worth compressing.
+	 * @param level
+	 *   the compression level, between {@link Deflater#BEST_SPEED} and {@link
+	 *   Deflater#BEST_COMPRESSION}.
+	 * @param maxRatio
+	 *   the maximum ratio between the compressed and the original size of the
+	 *   first block for a resource to be stored compressed.
+	 */
+	public CompressedStorage(Storage storage, int sampleSize, int level, double maxRatio) {
+		this.storage = storage;
+		this.sampleSize = Math.max(1, sampleSize);
+		this.level = level;
+		this.maxRatio = maxRatio;
+	}
+
+	/**
+	 * Returns the underlying storage.
+	 *
+	 * @return
+	 *   the underlying storage.
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Returns the size of the given resource as stored in the underlying
+	 * storage, that is after compression (if any).
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   the physical size of the resource (in bytes) if found, -1 otherwise.
+	 */
+	public long retrievePhysicalSize(String resource) {
+		return storage.retrieveSize(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return storage.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		return storage.size();
+	}
+
+	/**
+	 * Iterates lazily over the underlying storage.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return storage.iterator(regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		return storage.list(regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return storage.contains(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		OutputStream stream = storage.store(resource);
+		if(stream != null) {
+			sizes.remove(resource);
+			return new CompressingOutputStream(resource, stream);
+		}
+		return null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		InputStream stream = storage.retrieve(resource);
+		if(stream != null) {
+			try {
+				int header = stream.read();
+				if(header == DEFLATED) {
+					return new InflaterInputStream(stream);
+				} else if(header == RAW) {
+					return stream;
+				}
+				logger.error("invalid header {} for resource '{}'", header, resource);
+			} catch(IOException e) {
+				logger.error("error reading header of resource '" + resource + "'", e);
+			}
+			Streams.safelyClose(stream);
+		}
+		return null;
+	}
+
+	/**
+	 * Resources stored uncompressed are read directly at the requested range in
+	 * the underlying storage; compressed ones must be inflated from the 
+	 * beginning.
+	 *
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		int header = readHeader(resource);
+		if(header == RAW) {
+			return storage.retrieve(resource, Math.max(0, offset) + 1, length);
+		} else if(header == DEFLATED) {
+			return super.retrieve(resource, offset, length);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the uncompressed size of the resource; if not known (because the
+	 * resource was stored before this object was created) it is derived from
+	 * the physical size of resources stored as is, and read from the trailer
+	 * of compressed ones.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 * @see #retrievePhysicalSize(String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		Long size = sizes.get(resource);
+		if(size != null && storage.contains(resource)) {
+			return size;
+		}
+		long physical = storage.retrieveSize(resource);
+		int header = readHeader(resource);
+		if(header == RAW && physical >= 1) {
+			size = physical - 1;
+		} else if(header == DEFLATED && physical >= 1 + TRAILER_LENGTH) {
+			try(InputStream stream = storage.retrieve(resource, physical - TRAILER_LENGTH, TRAILER_LENGTH)) {
+				long value = 0;
+				for(int i = 0; i < TRAILER_LENGTH; ++i) {
+					int b = stream != null ? stream.read() : -1;
+					if(b == -1) {
+						logger.error("truncated trailer in resource '{}'", resource);
+						return -1;
+					}
+					value = (value << 8) | b;
+				}
+				size = value;
+			} catch(IOException e) {
+				logger.error("error reading trailer of resource '" + resource + "'", e);
+				return -1;
+			}
+		} else {
+			return -1;
+		}
+		sizes.put(resource, size);
+		return size;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		storage.delete(regex);
+		for(String resource : sizes.keySet()) {
+			if(regex.matches(resource)) {
+				sizes.remove(resource);
+			}
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public void delete(String resource, boolean caseInsensitive) {
+		storage.delete(resource, caseInsensitive);
+		for(String element : sizes.keySet()) {
+			if(caseInsensitive ? element.equalsIgnoreCase(resource) : element.equals(resource)) {
+				sizes.remove(element);
+			}
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public void clear() {
+		storage.clear();
+		sizes.clear();
+	}
+
+	/**
+	 * Reads the header of the given resource in the underlying storage.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   the header, or -1 if the resource does not exist or its header is 
+	 *   invalid.
+	 */
+	private int readHeader(String resource) {
+		try(InputStream stream = storage.retrieve(resource, 0, 1)) {
+			if(stream != null) {
+				int header = stream.read();
+				if(header == RAW || header == DEFLATED) {
+					return header;
+				}
+				logger.error("invalid header {} for resource '{}'", header, resource);
+			}
+		} catch(IOException e) {
+			logger.error("error reading header of resource '" + resource + "'", e);
+		}
+		return -1;
+	}
+
+	/**
+	 * The stream that buffers the first block of a resource, decides whether
+	 * compressing the resource pays off, and then writes it (compressed or not)
+	 * to the underlying storage. The first block is compressed with a sync
+	 * flush, so that if compression pays off its output is the beginning of the
+	 * compressed stream and nothing is compressed twice. If the resource cannot
+	 * be completed, it is aborted in the underlying storage rather than being
+	 * committed in a corrupt state.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class CompressingOutputStream extends OutputStream implements Abortable {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * The stream to the underlying storage.
+		 */
+		private final OutputStream target;
+
+		/**
+		 * The first block of the resource, until the decision is taken.
+		 */
+		private byte[] sample = new byte[sampleSize];
+
+		/**
+		 * The number of bytes in the first block.
+		 */
+		private int sampled = 0;
+
+		/**
+		 * The stream to which data are written once the decision is taken.
+		 */
+		private OutputStream out = null;
+
+		/**
+		 * The compressor, if the resource is compressed.
+		 */
+		private Deflater deflater = null;
+
+		/**
+		 * The uncompressed size of the resource.
+		 */
+		private long size = 0;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param target
+		 *   the stream to the underlying storage.
+		 */
+		CompressingOutputStream(String resource, OutputStream target) {
+			this.resource = resource;
+			this.target = target;
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			size += len;
+			if(out == null) {
+				int count = Math.min(len, sample.length - sampled);
+				System.arraycopy(b, off, sample, sampled, count);
+				sampled += count;
+				off += count;
+				len -= count;
+				if(sampled < sample.length) {
+					return;
+				}
+				decide();
+			}
+			if(len > 0) {
+				out.write(b, off, len);
+			}
+		}
+
+		/**
+		 * @see java.io.OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException {
+			if(out != null) {
+				out.flush();
+			}
+		}
+
+		/**
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				try {
+					if(out == null) {
+						decide();
+					}
+					if(deflater != null) {
+						((DeflaterOutputStream)out).finish();
+						for(int shift = (TRAILER_LENGTH - 1) * 8; shift >= 0; shift -= 8) {
+							target.write((int)(size >>> shift));
+						}
+					}
+				} catch(IOException | RuntimeException e) {
+					abort();
+					throw e;
+				}
+				closed = true;
+				if(deflater != null) {
+					deflater.end();
+				}
+				target.close();
+				sizes.put(resource, size);
+			}
+		}
+
+		/**
+		 * Discards the resource in the underlying storage.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() throws IOException {
+			if(!closed) {
+				closed = true;
+				if(deflater != null) {
+					deflater.end();
+				}
+				CacheHelper.abort(storage, resource, target);
+			}
+		}
+
+		/**
+		 * Compresses the first block and decides whether the resource is to be
+		 * stored compressed, then writes the header and the first block.
+		 *
+		 * @throws IOException
+		 *   if the underlying storage cannot be written.
+		 */
+		private void decide() throws IOException {
+			if(sampled > 0) {
+				Deflater candidate = new Deflater(level);
+				candidate.setInput(sample, 0, sampled);
+				byte[] compressed = new byte[sampled + 64];
+				int length = 0;
+				int count;
+				while((count = candidate.deflate(compressed, length, compressed.length - length, Deflater.SYNC_FLUSH)) > 0) {
+					length += count;
+					if(length == compressed.length || length > sampled * maxRatio) {
+						break;
+					}
+				}
+				if(length <= sampled * maxRatio && candidate.needsInput()) {
+					logger.trace("compressing resource '{}', first block shrunk from {} to {} bytes", resource, sampled, length);
+					deflater = candidate;
+					target.write(DEFLATED);
+					target.write(compressed, 0, length);
+					out = new DeflaterOutputStream(target, deflater, 16 * 1024, true);
+					sample = null;
+					return;
+				}
+				logger.trace("storing resource '{}' uncompressed, first block only shrunk from {} to {} bytes", resource, sampled, length);
+				candidate.end();
+			}
+			target.write(RAW);
+			target.write(sample, 0, sampled);
+			out = target;
+			sample = null;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.dihedron.core.License;
+
+/**
+ * A counting Bloom filter over strings, with 4-bit counters packed into longs
+ * and updated lock-free. Unlike a plain Bloom filter, elements can be removed;
+ * a counter that overflows sticks at its maximum value and is never decremented
+ * again, so that removals can never cause false negatives, only (rare) false
+ * positives.
+ *
+ * @author Andrea Funto'
+ */
+@License
+class CountingBloomFilter {
+
+	/**
+	 * The number of bits per counter.
+	 */
+	private static final int COUNTER_BITS = 4;
+
+	/**
+	 * The number of counters packed into each long.
+	 */
+	private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+
+	/**
+	 * The maximum (sticky) value of a counter.
+	 */
+	private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+	/**
+	 * The counters.
+	 */
+	private final AtomicLongArray words;
+
+	/**
+	 * The number of counters.
+	 */
+	private final int counters;
+
+	/**
+	 * The number of counters each element maps to.
+	 */
+	private final int hashes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param expectedInsertions
+	 *   the number of elements the filter is sized for.
+	 * @param falsePositiveProbability
+	 *   the probability of false positives when the filter holds the expected
+	 *   number of elements.
+	 */
+	CountingBloomFilter(long expectedInsertions, double falsePositiveProbability) {
+		long n = Math.max(1, expectedInsertions);
+		double p = Math.min(Math.max(falsePositiveProbability, Double.MIN_VALUE), 0.5);
+		long m = (long)Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+		this.counters = (int)Math.min(Math.max(m, COUNTERS_PER_WORD), (long)Integer.MAX_VALUE - COUNTERS_PER_WORD);
+		this.hashes = Math.max(1, (int)Math.round((double)counters / n * Math.log(2)));
+		this.words = new AtomicLongArray((counters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+	}
+
+	/**
+	 * Adds an element to the filter.
+	 *
+	 * @param element
+	 *   the element.
+	 */
+	void add(String element) {
+		long hash = hash(element);
+		int h1 = (int)hash, h2 = (int)(hash >>> 32);
+		for(int i = 0; i < hashes; ++i) {
+			update(index(h1, h2, i), 1);
+		}
+	}
+
+	/**
+	 * Removes an element from the filter; the element must have been added
+	 * before, otherwise other elements could be removed as well.
+	 *
+	 * @param element
+	 *   the element.
+	 */
+	void remove(String element) {
+		long hash = hash(element);
+		int h1 = (int)hash, h2 = (int)(hash >>> 32);
+		for(int i = 0; i < hashes; ++i) {
+			update(index(h1, h2, i), -1);
+		}
+	}
+
+	/**
+	 * Checks whether the element may have been added to the filter.
+	 *
+	 * @param element
+	 *   the element.
+	 * @return
+	 *   {@code false} if the element has definitely not been added, {@code true}
+	 *   if it probably has.
+	 */
+	boolean mightContain(String element) {
+		long hash = hash(element);
+		int h1 = (int)hash, h2 = (int)(hash >>> 32);
+		for(int i = 0; i < hashes; ++i) {
+			if(count(index(h1, h2, i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of counters in the filter.
+	 *
+	 * @return
+	 *   the number of counters.
+	 */
+	int getCounterCount() {
+		return counters;
+	}
+
+	/**
+	 * Returns the number of counters each element maps to.
+	 *
+	 * @return
+	 *   the number of hash functions.
+	 */
+	int getHashCount() {
+		return hashes;
+	}
+
+	/**
+	 * Returns the value of a counter.
+	 *
+	 * @param index
+	 *   the index of the counter.
+	 * @return
+	 *   the value of the counter.
+	 */
+	private long count(int index) {
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		return (words.get(index / COUNTERS_PER_WORD) >>> shift) & MAX_COUNT;
+	}
+
+	/**
+	 * Increments or decrements a counter, unless it is saturated (or already
+	 * zero, when decrementing).
+	 *
+	 * @param index
+	 *   the index of the counter.
+	 * @param delta
+	 *   either 1 or -1.
+	 */
+	private void update(int index, int delta) {
+		int word = index / COUNTERS_PER_WORD;
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		for(;;) {
+			long current = words.get(word);
+			long count = (current >>> shift) & MAX_COUNT;
+			if(count == MAX_COUNT || (count == 0 && delta < 0)) {
+				return;
+			}
+			long updated = current + ((long)delta << shift);
+			if(words.compareAndSet(word, current, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Maps the i-th hash of an element to a counter, through double hashing.
+	 *
+	 * @param h1
+	 *   the first hash of the element.
+	 * @param h2
+	 *   the second hash of the element.
+	 * @param i
+	 *   the index of the hash function.
+	 * @return
+	 *   the index of the counter.
+	 */
+	private int index(int h1, int h2, int i) {
+		int combined = h1 + i * h2;
+		return (combined & Integer.MAX_VALUE) % counters;
+	}
+
+	/**
+	 * Computes a 64-bit hash of the element (FNV-1a followed by a MurmurHash3
+	 * finalisation step to spread the bits).
+	 *
+	 * @param element
+	 *   the element.
+	 * @return
+	 *   the hash.
+	 */
+	private static long hash(String element) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < element.length(); ++i) {
+			hash ^= element.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.dihedron.core.License;
+import org.dihedron.core.formatters.HexWriter;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.CopyingStorage;
+import org.dihedron.patterns.cache.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed storage: the contents of each resource are stored in an
+ * underlying storage under the name of their digest, so that resources with
+ * identical contents (e.g. aliases or per-tenant copies of the same binary)
+ * share a single copy. Each resource name is mapped to its digest through a
+ * small reference resource in the underlying storage, so that the mapping
+ * survives restarts of persistent storages; contents are reference counted and
+ * removed when no resource points to them anymore. Copying a resource only
+ * creates a new reference.
+ * <p>
+ * While a resource is being written, its digest is computed on the fly and its
+ * contents are buffered in memory (or, past a threshold, in a temporary file);
+ * when the stream is closed the contents are written to the underlying storage
+ * only if no resource with the same digest exists yet. Resources are linked to
+ * contents only once these have been committed: writers of identical contents
+ * wait for the one writing them to complete (and take over if it fails).
+ * </p>
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class DeduplicatingStorage extends AbstractStorage implements CopyingStorage {
+
+	/**
+	 * The prefix of the names of contents in the underlying storage, followed
+	 * by the hexadecimal digest.
+	 */
+	public static final String BLOB_PREFIX = "blob-";
+
+	/**
+	 * The prefix of the names of references in the underlying storage, followed
+	 * by the resource name.
+	 */
+	public static final String REF_PREFIX = "ref-";
+
+	/**
+	 * The digest algorithm used to address contents.
+	 */
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * The default size beyond which the contents being written are buffered in
+	 * a temporary file rather than in memory.
+	 */
+	public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(DeduplicatingStorage.class);
+
+	/**
+	 * The underlying storage.
+	 */
+	private final Storage storage;
+
+	/**
+	 * The size beyond which contents being written are buffered in a file.
+	 */
+	private final int spillThreshold;
+
+	/**
+	 * The digests of the contents of the resources, sorted by resource name.
+	 */
+	private final ConcurrentNavigableMap<String, String> digests = new ConcurrentSkipListMap<String, String>();
+
+	/**
+	 * The number of resources referencing each content, by digest; it is only
+	 * accessed while holding the lock on this object.
+	 */
+	private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+	/**
+	 * The contents being written to the underlying storage, by digest, with the
+	 * latch released when the write completes (successfully or not); it is 
+	 * only accessed while holding the lock on this object.
+	 */
+	private final Map<String, CountDownLatch> writing = new HashMap<String, CountDownLatch>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 * @throws CacheException
+	 *   if the references in the underlying storage cannot be read.
+	 */
+	public DeduplicatingStorage(Storage storage) throws CacheException {
+		this(storage, DEFAULT_SPILL_THRESHOLD);
+	}
+
+	/**
+	 * Constructor; loads the references already present in the underlying
+	 * storage and removes contents that are no longer referenced.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 * @param spillThreshold
+	 *   the size beyond which the contents being written are buffered in a
+	 *   temporary file rather than in memory.
+	 * @throws CacheException
+	 *   if the references in the underlying storage cannot be read.
+	 */
+	public DeduplicatingStorage(Storage storage, int spillThreshold) throws CacheException {
+		this.storage = storage;
+		this.spillThreshold = spillThreshold;
+		String[] names = storage.list(null);
+		if(names != null) {
+			for(String name : names) {
+				if(name.startsWith(REF_PREFIX)) {
+					try(InputStream input = storage.retrieve(name); ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+						byte[] buffer = new byte[128];
+						int read;
+						while((read = input.read(buffer)) != -1) {
+							output.write(buffer, 0, read);
+						}
+						String digest = new String(output.toByteArray(), "US-ASCII");
+						digests.put(name.substring(REF_PREFIX.length()), digest);
+						acquire(digest);
+					} catch(IOException e) {
+						logger.error("error reading reference '" + name + "'", e);
+						throw new CacheException("error reading reference '" + name + "'", e);
+					}
+				}
+			}
+			for(String name : names) {
+				if(name.startsWith(BLOB_PREFIX) && !references.containsKey(name.substring(BLOB_PREFIX.length()))) {
+					logger.debug("removing unreferenced contents '{}'", name);
+					storage.delete(name, false);
+				}
+			}
+		}
+		logger.debug("loaded {} references to {} contents", digests.size(), references.size());
+	}
+
+	/**
+	 * Returns the number of distinct contents in the storage.
+	 *
+	 * @return
+	 *   the number of distinct contents.
+	 */
+	public synchronized int getContentCount() {
+		return references.size();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return digests.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		return digests.size();
+	}
+
+	/**
+	 * Iterates lazily over the live set of names.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return iterate(digests.navigableKeySet(), regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		List<String> resources = select(digests.navigableKeySet(), regex);
+		return resources.toArray(new String[resources.size()]);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return resource != null && digests.containsKey(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		if(resource == null || resource.length() == 0) {
+			logger.error("invalid resource name '{}'", resource);
+			throw new CacheException("invalid resource name '" + resource + "'");
+		}
+		try {
+			return new DigestingOutputStream(resource, MessageDigest.getInstance(DIGEST_ALGORITHM));
+		} catch (NoSuchAlgorithmException e) {
+			logger.error("digest algorithm " + DIGEST_ALGORITHM + " not available", e);
+			throw new CacheException("digest algorithm " + DIGEST_ALGORITHM + " not available", e);
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		String digest = resource != null ? digests.get(resource) : null;
+		return digest != null ? storage.retrieve(BLOB_PREFIX + digest) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		String digest = resource != null ? digests.get(resource) : null;
+		return digest != null ? storage.retrieve(BLOB_PREFIX + digest, offset, length) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		String digest = resource != null ? digests.get(resource) : null;
+		return digest != null ? storage.retrieveSize(BLOB_PREFIX + digest) : -1;
+	}
+
+	/**
+	 * Creates a new reference to the contents of the source resource; no data
+	 * is copied.
+	 *
+	 * @see org.dihedron.patterns.cache.CopyingStorage#copy(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public synchronized void copy(String source, String destination) throws CacheException {
+		String digest = source != null ? digests.get(source) : null;
+		if(digest == null) {
+			logger.error("resource '{}' not found", source);
+			throw new CacheException("resource '" + source + "' not found");
+		}
+		acquire(digest);
+		try {
+			link(destination, digest);
+		} catch(CacheException e) {
+			release(digest);
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		for(String resource : list(regex)) {
+			delete(resource, false);
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public synchronized void delete(String resource, boolean caseInsensitive) {
+		if(resource == null) {
+			return;
+		}
+		for(String element : caseInsensitive ? list(null) : new String[] { resource }) {
+			if(element.equalsIgnoreCase(resource)) {
+				String digest = digests.remove(element);
+				if(digest != null) {
+					storage.delete(REF_PREFIX + element, false);
+					release(digest);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public synchronized void clear() {
+		for(String resource : list(null)) {
+			delete(resource, false);
+		}
+	}
+
+	/**
+	 * Increments the number of references to the given contents; the caller
+	 * must hold the lock on this object.
+	 *
+	 * @param digest
+	 *   the digest of the contents.
+	 * @return
+	 *   the new number of references.
+	 */
+	private int acquire(String digest) {
+		Integer count = references.get(digest);
+		count = count != null ? count + 1 : 1;
+		references.put(digest, count);
+		return count;
+	}
+
+	/**
+	 * Decrements the number of references to the given contents, and removes
+	 * the contents when no longer referenced; the caller must hold the lock on
+	 * this object.
+	 *
+	 * @param digest
+	 *   the digest of the contents.
+	 */
+	private void release(String digest) {
+		Integer count = references.get(digest);
+		if(count == null || count <= 1) {
+			logger.trace("removing unreferenced contents '{}'", digest);
+			references.remove(digest);
+			storage.delete(BLOB_PREFIX + digest, false);
+		} else {
+			references.put(digest, count - 1);
+		}
+	}
+
+	/**
+	 * Points the given resource to the given contents, whose reference has
+	 * already been acquired, and releases the contents it previously pointed
+	 * to; the caller must hold the lock on this object, and release the new 
+	 * contents if linking fails.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param digest
+	 *   the digest of the contents.
+	 * @throws CacheException
+	 *   if the reference cannot be written.
+	 */
+	private void link(String resource, String digest) throws CacheException {
+		try(OutputStream output = storage.store(REF_PREFIX + resource)) {
+			output.write(digest.getBytes("US-ASCII"));
+		} catch(IOException | CacheException e) {
+			logger.error("error writing reference for resource '" + resource + "'", e);
+			throw new CacheException("error writing reference for resource '" + resource + "'", e);
+		}
+		String previous = digests.put(resource, digest);
+		if(previous != null) {
+			release(previous);
+		}
+	}
+
+	/**
+	 * The stream computing the digest of a resource while buffering its
+	 * contents; when it is closed, the contents are written to the underlying
+	 * storage unless already there, and the resource is linked to them.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class DigestingOutputStream extends OutputStream implements Abortable {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * The digest being computed.
+		 */
+		private final MessageDigest digest;
+
+		/**
+		 * The in-memory buffer, until the threshold is reached.
+		 */
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+		/**
+		 * The temporary file, once the threshold is reached.
+		 */
+		private File file = null;
+
+		/**
+		 * The stream to the buffer.
+		 */
+		private OutputStream buffer = memory;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param digest
+		 *   the digest to compute.
+		 */
+		DigestingOutputStream(String resource, MessageDigest digest) {
+			this.resource = resource;
+			this.digest = digest;
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(memory != null && memory.size() + len > spillThreshold) {
+				file = File.createTempFile("dedup", null);
+				logger.trace("spilling contents of resource '{}' to '{}'", resource, file.getAbsolutePath());
+				buffer = new FileOutputStream(file);
+				memory.writeTo(buffer);
+				memory = null;
+			}
+			digest.update(b, off, len);
+			buffer.write(b, off, len);
+		}
+
+		/**
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			try {
+				buffer.close();
+				String hash = HexWriter.toHex(digest.digest()).toLowerCase();
+				int count;
+				synchronized(DeduplicatingStorage.this) {
+					// reserve the contents so that they cannot be removed meanwhile
+					count = acquire(hash);
+				}
+				try {
+					commit(hash, count);
+					synchronized(DeduplicatingStorage.this) {
+						link(resource, hash);
+					}
+				} catch(IOException | CacheException e) {
+					synchronized(DeduplicatingStorage.this) {
+						release(hash);
+					}
+					throw e instanceof IOException ? (IOException)e : new IOException(e);
+				}
+			} finally {
+				if(file != null) {
+					file.delete();
+				}
+			}
+		}
+
+		/**
+		 * Makes sure the contents with the given digest are committed to the
+		 * underlying storage, writing them unless they are already there; if
+		 * another stream is writing them, waits for it to complete.
+		 * 
+		 * @param hash
+		 *   the digest of the contents, already reserved by this stream.
+		 * @param count
+		 *   the number of references to the contents, including this one.
+		 * @throws IOException
+		 *   if the contents cannot be written, or the thread is interrupted.
+		 * @throws CacheException
+		 *   if the underlying storage cannot be written.
+		 */
+		private void commit(String hash, int count) throws IOException, CacheException {
+			String blob = BLOB_PREFIX + hash;
+			while(true) {
+				CountDownLatch latch;
+				synchronized(DeduplicatingStorage.this) {
+					latch = writing.get(hash);
+					if(latch == null) {
+						if(count > 1 && storage.contains(blob)) {
+							logger.trace("resource '{}' shares existing contents '{}'", resource, hash);
+							return;
+						}
+						latch = new CountDownLatch(1);
+						writing.put(hash, latch);
+						break;
+					}
+				}
+				try {
+					latch.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for contents '" + hash + "'");
+				}
+			}
+			try {
+				logger.trace("storing new contents '{}' for resource '{}'", hash, resource);
+				OutputStream output = storage.store(blob);
+				try(InputStream input = memory != null ? new ByteArrayInputStream(memory.toByteArray()) : new FileInputStream(file)) {
+					Streams.copy(input, output);
+				} catch(IOException | RuntimeException e) {
+					CacheHelper.abort(storage, blob, output);
+					throw e;
+				}
+				output.close();
+			} finally {
+				synchronized(DeduplicatingStorage.this) {
+					writing.remove(hash).countDown();
+				}
+			}
+		}
+
+		/**
+		 * Discards the buffered contents; nothing has been written to the
+		 * underlying storage yet.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					buffer.close();
+				} finally {
+					if(file != null) {
+						file.delete();
+					}
+				}
+			}
+		}
+	}
+}
@@ -5,28 +5,55 @@
 
 package org.dihedron.patterns.cache.storage;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.Abortable;
 import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class implements the mechanics to persist cache resources onto disk.
+ * Resources are written to a temporary file in their own directory and then 
+ * atomically renamed into place when the output stream is closed, so readers
+ * never see a missing or partially written resource: they either get the 
+ * previous version or the new one, and a reader that has already opened a 
+ * resource keeps reading the version it opened even if it is replaced or 
+ * deleted in the meanwhile (on file systems with POSIX semantics). Concurrent
+ * access therefore needs no external locking.
  * 
  * @author Andrea Funto'
  */
 @License
-public class DiskStorage extends AbstractStorage {
+public class DiskStorage extends AbstractStorage implements Closeable {
 	
 	/** 
 	 * The logger. 
@@ -43,11 +70,71 @@ public class DiskStorage extends AbstractStorage {
 	 * if this is not ready yet.
 	 */
 	public static final boolean DEFAULT_CREATE_IF_MISSING = true;	
+	
+	/**
+	 * The number of shard directory levels used by the flat layout, where all
+	 * resources are kept directly in the cache directory.
+	 */
+	public static final int FLAT = 0;
+	
+	/**
+	 * The maximum number of shard directory levels; each level has a fan-out of
+	 * 256 sub-directories.
+	 */
+	public static final int MAX_SHARD_LEVELS = 4;
+	
+	/**
+	 * The default number of shard directory levels (flat layout).
+	 */
+	public static final int DEFAULT_SHARD_LEVELS = FLAT;
+	
+	/**
+	 * Whether by default the storage keeps an index of its contents.
+	 */
+	public static final boolean DEFAULT_INDEXED = false;
+	
+	/**
+	 * The prefix of the names of the files used internally by the storage in the
+	 * cache directory; resource names must not start with this prefix.
+	 */
+	public static final String RESERVED_PREFIX = ".diskstorage.";
+	
+	/**
+	 * The name of the index journal file in the cache directory.
+	 */
+	public static final String INDEX_FILE = RESERVED_PREFIX + "index";
+	
+	/**
+	 * The prefix of the names of the temporary files to which resources are 
+	 * written before being renamed into place.
+	 */
+	public static final String TEMP_PREFIX = RESERVED_PREFIX + "tmp.";
+	
+	/**
+	 * How long (in milliseconds) a temporary file must have been left untouched
+	 * before it is considered stale and removed when a storage is created; more 
+	 * recent ones may belong to writes in progress in other storages (or 
+	 * processes) on the same directory.
+	 */
+	public static final long TEMP_FILE_GRACE_PERIOD = 60 * 60 * 1000;
 			
 	/** 
 	 * The directory where the cache is kept. 
 	 */
 	private File directory;
+	
+	/**
+	 * The number of shard directory levels between the cache directory and the
+	 * resources; with 0 levels all resources are kept directly in the cache 
+	 * directory.
+	 */
+	private int levels = DEFAULT_SHARD_LEVELS;
+	
+	/**
+	 * The index of the storage contents, or {@code null} if the storage is not
+	 * indexed.
+	 */
+	private DiskStorageIndex index = null;
 
 	/** 
 	 * Whether the file names on disk are treated respecting the case. 
@@ -117,6 +204,59 @@ public class DiskStorage extends AbstractStorage {
 	 *   parameters is not compatible with the creation of the cache.
 	 */
 	public DiskStorage(File path, boolean createIfMissing) throws CacheException {
+		this(path, createIfMissing, DEFAULT_SHARD_LEVELS);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param path
+	 *   the directory where the cache storage will be created/installed.
+	 * @param createIfMissing
+	 *   if {@code true}, the directory will be created if not existing on disk.
+	 * @param levels
+	 *   the number of shard directory levels (between {@link #FLAT} and 
+	 *   {@link #MAX_SHARD_LEVELS}); with a sharded layout, resources are spread 
+	 *   over sub-directories named after a hash of the (case-folded) resource 
+	 *   name, each level having a fan-out of 256, so that directories stay small 
+	 *   as the cache grows. Resources found directly in the cache directory of 
+	 *   an existing flat cache are migrated into their shards.
+	 * @throws Exception
+	 *   if the input values are invalid or if the combination of 
+	 *   parameters is not compatible with the creation of the cache.
+	 */
+	public DiskStorage(File path, boolean createIfMissing, int levels) throws CacheException {
+		this(path, createIfMissing, levels, DEFAULT_INDEXED);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param path
+	 *   the directory where the cache storage will be created/installed.
+	 * @param createIfMissing
+	 *   if {@code true}, the directory will be created if not existing on disk.
+	 * @param levels
+	 *   the number of shard directory levels (between {@link #FLAT} and 
+	 *   {@link #MAX_SHARD_LEVELS}).
+	 * @param indexed
+	 *   whether the storage should keep an index of its contents (names, sizes,
+	 *   modification times) in memory, backed by a journal in the cache directory;
+	 *   the index is loaded when the storage is created (or rebuilt by scanning 
+	 *   the cache directory if no journal is available) and allows to answer 
+	 *   queries on the storage contents without accessing the file system. The
+	 *   cache directory must not be modified by other means while an indexed 
+	 *   storage is in use, otherwise {@link #reindex()} must be invoked.
+	 * @throws Exception
+	 *   if the input values are invalid or if the combination of 
+	 *   parameters is not compatible with the creation of the cache.
+	 */
+	public DiskStorage(File path, boolean createIfMissing, int levels, boolean indexed) throws CacheException {
+		if(levels < FLAT || levels > MAX_SHARD_LEVELS) {
+			logger.error("invalid number of shard levels: {}", levels);
+			throw new CacheException("invalid number of shard levels: " + levels);
+		}
+		this.levels = levels;
 		if(path == null) {
 			throw new CacheException("null file specified for the cache storage");
 		}		
@@ -142,8 +282,51 @@ public class DiskStorage extends AbstractStorage {
 				throw new CacheException("directory '" + path.getAbsolutePath() + "' does not exist");				
 			}
 		}
+		// a clean index journal means the last instance was closed, so neither
+		// its temporary files nor its resources need to be looked for on disk
+		boolean clean = false;
+		if(indexed) {
+			index = new DiskStorageIndex(new File(directory, INDEX_FILE));
+			try {
+				clean = index.load();
+			} catch(IOException e) {
+				logger.error("error loading index of cache in directory '" + directory.getAbsolutePath() + "'", e);
+				throw new CacheException("error loading index of cache in directory '" + directory.getAbsolutePath() + "'", e);
+			}
+		}
+		if(!clean) {
+			sweep(directory, levels, System.currentTimeMillis() - TEMP_FILE_GRACE_PERIOD);
+		}
+		if(levels > FLAT) {
+			migrate();
+		}
+		if(indexed && !clean) {
+			try {
+				if(!index.load(listFiles(null))) {
+					logger.info("rebuilt index of cache in directory '{}'", directory.getAbsolutePath());
+				}
+			} catch(IOException e) {
+				logger.error("error loading index of cache in directory '" + directory.getAbsolutePath() + "'", e);
+				throw new CacheException("error loading index of cache in directory '" + directory.getAbsolutePath() + "'", e);
+			}
+		}
 	}	
 	
+	/**
+	 * Releases the resources held by the storage, i.e. the journal of the index,
+	 * if any, which is marked as clean so that the next storage on the same 
+	 * directory loads it without scanning the directory; the storage can still
+	 * be used afterwards, in which case they are acquired again as needed.
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if(index != null) {
+			index.close();
+		}
+	}
+	
 	/**
 	 * Returns the physical cache location.
 	 * 
@@ -154,12 +337,91 @@ public class DiskStorage extends AbstractStorage {
 		return directory;
 	}
 	
+	/**
+	 * Returns the number of shard directory levels.
+	 * 
+	 * @return
+	 *   the number of shard directory levels, {@link #FLAT} for the flat layout.
+	 */
+	public int getShardLevels() {
+		return levels;
+	}
+	
+	/**
+	 * Returns whether the storage keeps an index of its contents.
+	 * 
+	 * @return
+	 *   whether the storage is indexed.
+	 */
+	public boolean isIndexed() {
+		return index != null;
+	}
+	
+	/**
+	 * Rebuilds the index by scanning the cache directory; this is only needed if
+	 * the cache directory has been modified by other means than this storage. It
+	 * does nothing if the storage is not indexed.
+	 * 
+	 * @throws CacheException
+	 *   if the index journal cannot be written.
+	 */
+	public void reindex() throws CacheException {
+		if(index != null) {
+			try {
+				index.rebuild(listFiles(null));
+			} catch(IOException e) {
+				logger.error("error rebuilding index of cache in directory '" + directory.getAbsolutePath() + "'", e);
+				throw new CacheException("error rebuilding index of cache in directory '" + directory.getAbsolutePath() + "'", e);
+			}
+		}
+	}
+	
+	/**
+	 * Moves all resources found directly in the cache directory into their shard
+	 * directories, as per the current layout; this allows to switch an existing 
+	 * flat cache to a sharded layout without losing its contents. It is invoked
+	 * automatically when a sharded storage is created; it does nothing if the 
+	 * layout is flat.
+	 * 
+	 * @return
+	 *   the number of migrated resources.
+	 * @throws CacheException
+	 *   if a resource cannot be moved to its shard.
+	 */
+	public int migrate() throws CacheException {
+		int migrated = 0;
+		if(levels > FLAT) {
+			File[] files = directory.listFiles();
+			if(files != null) {
+				for(File file : files) {
+					if(file.isFile() && !isReserved(file.getName())) {
+						File target = getFile(file.getName());
+						target.getParentFile().mkdirs();
+						if(!file.renameTo(target)) {
+							logger.error("error migrating '{}' to '{}'", file.getAbsolutePath(), target.getAbsolutePath());
+							throw new CacheException("error migrating '" + file.getAbsolutePath() + "' to '" + target.getAbsolutePath() + "'");
+						}
+						++migrated;
+					}
+				}
+			}
+			if(migrated > 0) {
+				logger.info("migrated {} resources to sharded layout in '{}'", migrated, directory.getAbsolutePath());
+			}
+		}
+		return migrated;
+	}
+	
 	/**
 	 * Sets the behaviour of the cache storage with respect to
 	 * case sensitivity; on some systems (e.g. Windows), the file
 	 * system is case insensitive; on others (Unix, Linux, MacOS) 
 	 * it treats file names with differing cases differently.
 	 * 
+	 * In practice, when the flag is set, committing a resource removes any other
+	 * resources whose names differ from its own only by case, as {@link 
+	 * #delete(String, boolean)} does when asked to ignore case.
+	 * 
 	 * @param caseSensitive
 	 *   whether the cache storage should treat resource names
 	 *   differing only bay the case differently.
@@ -184,10 +446,22 @@ public class DiskStorage extends AbstractStorage {
 	 */
 	@Override
 	public boolean isEmpty() {
-		String [] files = directory.list();
-		for(String file : files) logger.debug("file: '{}'", file);
-		return files == null || files.length == 0;
+		if(index != null) {
+			return index.isEmpty();
+		}
+		return isEmpty(directory, levels);
 	}	
+	
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		if(index != null) {
+			return index.size();
+		}
+		return super.size();
+	}
 
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
@@ -199,34 +473,68 @@ public class DiskStorage extends AbstractStorage {
 			return false;
 		}
 		logger.debug("checking if '{}' is in cache", resource);
-		File file = new File(directory, resource);
+		if(index != null) {
+			return index.get(resource) != null;
+		}
+		File file = getFile(resource);
 		return file.exists() && file.isFile();		
 	}
 	
+	/**
+	 * Iterates lazily over the index, if any, or else over the directory tree,
+	 * keeping at most one directory open; the directory is closed when the 
+	 * iteration is over, so callers that stop earlier must close the iterator,
+	 * which implements {@link Closeable}.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		if(index != null) {
+			return iterate(index.names(), regex);
+		}
+		return new DirectoryIterator(regex);
+	}
+	
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
 	 */
 	@Override
 	public String[] list(Regex regex) {
-		if(regex == null) { 
-			logger.debug("returning full list of storage contents");
-			return directory.list();
-		}
 		logger.debug("returning list of resources matching /{}/", regex);
-		return directory.list(this.new Filter(regex));
+		List<String> resources = new ArrayList<String>();
+		if(index != null) {
+			resources.addAll(select(index.names(), regex));
+		} else {
+			for(File file : listFiles(regex)) {
+				resources.add(file.getName());
+			}
+		}
+		return resources.toArray(new String[resources.size()]);
 	}	
 	
 	/**
+	 * Opens a stream to a temporary file in the resource's directory; the 
+	 * resource is replaced atomically when the stream is closed, until then the
+	 * previous version (if any) is still visible to readers.
+	 * 
 	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
 	 */	
 	@Override
 	public OutputStream store(String resource) throws CacheException {
-		File file = new File(directory, resource);
+		if(resource == null || resource.length() == 0 || isReserved(resource)) {
+			logger.error("invalid resource name '{}'", resource);
+			throw new CacheException("invalid resource name '" + resource + "'");
+		}
+		File file = getFile(resource);
 		try {
-			delete(resource, caseSensitive);			
+			if(levels > FLAT) {
+				file.getParentFile().mkdirs();
+			}
+			File temporary = File.createTempFile(TEMP_PREFIX, null, file.getParentFile());
 			logger.debug("storing '{}' into cache as '{}'", resource, file.getAbsolutePath());		
-			return new FileOutputStream(file);
-		} catch (FileNotFoundException e) {
+			return new DiskOutputStream(resource, temporary, file);
+		} catch (IOException e) {
 			logger.error("error opening output stream to '" + file.getAbsolutePath() + "'", e);
 			throw new CacheException("error opening output stream to '" + file.getAbsolutePath() + "'", e);
 		}
@@ -237,20 +545,52 @@ public class DiskStorage extends AbstractStorage {
 	 */
 	@Override
 	public InputStream retrieve(String resource) {
+		if(index != null && index.get(resource) == null) {
+			logger.debug("resource '{}' is not in the index", resource);
+			return null;
+		}
 		try {
-			return new FileInputStream(new File(directory, resource));
+			return new FileInputStream(getFile(resource));
 		} catch (FileNotFoundException e) {
 			logger.error("resource '{}' does not exist", resource);
 		}
 		return null;
 	}
+	
+	/**
+	 * Opens the file through a channel positioned at the beginning of the 
+	 * range, so no data before the range is ever read.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		if(index != null && index.get(resource) == null) {
+			logger.debug("resource '{}' is not in the index", resource);
+			return null;
+		}
+		try {
+			InputStream stream = open(getFile(resource), offset, length);
+			if(stream == null) {
+				logger.error("resource '{}' does not exist", resource);
+			}
+			return stream;
+		} catch (IOException e) {
+			logger.error("error opening resource '" + resource + "'", e);
+		}
+		return null;
+	}
 
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
 	 */
 	@Override
 	public long retrieveSize(String resource) {
-		File file = new File(directory, resource);
+		if(index != null) {
+			DiskStorageIndex.Entry entry = index.get(resource);
+			return entry != null ? entry.getSize() : -1;
+		}
+		File file = getFile(resource);
 		if(file.exists() && file.isFile()) {
 			return file.length();
 		} 
@@ -262,9 +602,11 @@ public class DiskStorage extends AbstractStorage {
 	 */
 	public void delete(Regex regex) {
 		logger.debug("deleting files that match /" + regex + "/ from cache");
-		File [] files = directory.listFiles((FileFilter)new Filter(regex));
-		for (File file : files) {
+		for (File file : index != null ? getFiles(list(regex)) : listFiles(regex)) {
 			logger.debug("removing '{}' from cache", file.getName());
+			if(index != null) {
+				index.remove(file.getName());
+			}
 			if(file.delete()) {
 				logger.debug("file removed from cache");
 			} else {
@@ -276,21 +618,32 @@ public class DiskStorage extends AbstractStorage {
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
 	 */
-	public void delete(String resource, boolean caseSensitive){
+	public void delete(String resource, boolean caseInsensitive){
 		logger.debug("deleting resource '{}' from cache", resource);
-		if(!caseSensitive) {
-			File file = new File(getLocation() + "\\" + resource);
+		if(!caseInsensitive) {
+			if(index != null) {
+				index.remove(resource);
+			}
+			File file = getFile(resource);
 			if(file.exists()) {
 				logger.debug("file found: deleting '{}'", resource);
 				file.delete();
 			}
+		} else if(index != null) {
+			for(String name : index.getIgnoreCase(resource)) {
+				delete(name, false);
+			}
 		} else {
-			String [] names = directory.list();
-			for (String name : names) {
-				logger.debug("checking {}...", name);
-				if(name.equalsIgnoreCase(resource)) {					
-					delete(name, false);
-					return;
+			// shards are named after the case-folded resource name, so all the 
+			// candidates are in the same directory 
+			String [] names = getFile(resource).getParentFile().list();
+			if(names != null) {
+				for (String name : names) {
+					logger.debug("checking {}...", name);
+					if(name.equalsIgnoreCase(resource)) {					
+						delete(name, false);
+						return;
+					}
 				}
 			}
 		}
@@ -301,13 +654,461 @@ public class DiskStorage extends AbstractStorage {
 	 */
 	public void clear() {
 		logger.debug("clearing cache");
-		File[] files = directory.listFiles();
+		List<File> files = index != null ? getFiles(list(null)) : listFiles(null);
+		if(index != null) {
+			index.clear();
+		}
 		for (File file : files) {
 			logger.debug("removing '{}' from cache", file.getName());
 			file.delete();
 		}		
 	}
 	
+	/**
+	 * Returns the file where the given resource is stored, as per the current 
+	 * layout.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   the file where the resource is (or would be) stored.
+	 */
+	protected File getFile(String resource) {
+		if(levels == FLAT) {
+			return new File(directory, resource);
+		}
+		// mix the bits of the hash of the case-folded name, so that names which 
+		// only differ by case end up in the same shard and shards are balanced
+		int hash = resource.toLowerCase(Locale.ROOT).hashCode();
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		hash *= 0xc2b2ae35;
+		hash ^= (hash >>> 16);
+		File parent = directory;
+		for(int level = 0; level < levels; ++level) {
+			parent = new File(parent, String.format("%02x", (hash >>> (8 * level)) & 0xFF));
+		}
+		return new File(parent, resource);
+	}
+	
+	/**
+	 * Returns whether the given name is reserved for files used internally by 
+	 * the storage.
+	 * 
+	 * @param name
+	 *   the file name.
+	 * @return
+	 *   whether the name is reserved.
+	 */
+	protected static boolean isReserved(String name) {
+		return name.startsWith(RESERVED_PREFIX);
+	}
+	
+	/**
+	 * Recursively removes the temporary files left behind by writes that were 
+	 * interrupted (e.g. by a crash) before being committed; files modified after
+	 * the given time are left alone, since they may belong to writes in progress.
+	 * 
+	 * @param parent
+	 *   the directory to scan.
+	 * @param depth
+	 *   the number of shard directory levels below the given directory.
+	 * @param cutoff
+	 *   the time of the last modification of the files to be removed.
+	 */
+	private void sweep(File parent, int depth, long cutoff) {
+		File[] children = parent.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				if(depth > 0) {
+					if(child.isDirectory()) {
+						sweep(child, depth - 1, cutoff);
+					}
+				} else if(child.getName().startsWith(TEMP_PREFIX) && child.lastModified() < cutoff) {
+					logger.info("removing stale temporary file '{}'", child.getAbsolutePath());
+					child.delete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the resources whose names differ from the given one only by case.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param file
+	 *   the file of the resource.
+	 */
+	private void deleteCaseVariants(String resource, File file) {
+		Collection<String> names;
+		if(index != null) {
+			names = index.getIgnoreCase(resource);
+		} else {
+			// shards are named after the case-folded resource name, so all the 
+			// variants are in the same directory
+			String[] children = file.getParentFile().list();
+			names = children != null ? Arrays.asList(children) : Collections.<String>emptyList();
+		}
+		for(String name : names) {
+			if(name.equalsIgnoreCase(resource) && !name.equals(resource)) {
+				logger.debug("removing '{}', superseded by '{}'", name, resource);
+				delete(name, false);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the files where the given resources are stored.
+	 * 
+	 * @param resources
+	 *   the names of the resources.
+	 * @return
+	 *   the list of files of the resources.
+	 */
+	private List<File> getFiles(String[] resources) {
+		List<File> files = new ArrayList<File>(resources.length);
+		for(String resource : resources) {
+			files.add(getFile(resource));
+		}
+		return files;
+	}
+	
+	/**
+	 * Returns the files of all the resources matching the given regular 
+	 * expression, walking the shard directories if the layout is sharded.
+	 * 
+	 * @param regex
+	 *   an optional regular expression; if {@code null}, all resources are
+	 *   returned.
+	 * @return
+	 *   the list of files of the matching resources.
+	 */
+	private List<File> listFiles(Regex regex) {
+		List<File> files = new ArrayList<File>();
+		listFiles(directory, levels, regex != null ? new Filter(regex) : null, files);
+		return files;
+	}
+	
+	/**
+	 * Recursively collects the files of the resources in the given directory.
+	 * 
+	 * @param parent
+	 *   the directory to scan.
+	 * @param depth
+	 *   the number of shard directory levels below the given directory.
+	 * @param filter
+	 *   an optional filter on resource names.
+	 * @param files
+	 *   the list to which matching files are added.
+	 */
+	private void listFiles(File parent, int depth, Filter filter, List<File> files) {
+		File[] children = parent.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				if(depth > 0) {
+					if(child.isDirectory()) {
+						listFiles(child, depth - 1, filter, files);
+					}
+				} else if(!isReserved(child.getName()) && (filter == null || filter.accept(child))) {
+					files.add(child);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Recursively checks whether the given directory contains any resource,
+	 * stopping at the first one found.
+	 * 
+	 * @param parent
+	 *   the directory to scan.
+	 * @param depth
+	 *   the number of shard directory levels below the given directory.
+	 * @return
+	 *   whether the directory contains no resources.
+	 */
+	private boolean isEmpty(File parent, int depth) {
+		String[] children = parent.list();
+		if(children == null || children.length == 0) {
+			return true;
+		}
+		for(String child : children) {
+			if(depth == 0) {
+				if(!isReserved(child)) {
+					return false;
+				}
+				continue;
+			}
+			File file = new File(parent, child);
+			if(file.isDirectory() && !isEmpty(file, depth - 1)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * The stream used to write resources to disk; data are written to a 
+	 * temporary file which, when the stream is closed, is atomically renamed to
+	 * the resource file, and the index (if any) is updated with the resource 
+	 * metadata.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private class DiskOutputStream extends CacheOutputStream<FileOutputStream> implements Abortable {
+		
+		/**
+		 * The name of the resource being written.
+		 */
+		private final String resource;
+		
+		/**
+		 * The temporary file being written.
+		 */
+		private final File temporary;
+		
+		/**
+		 * The resource file.
+		 */
+		private final File file;
+		
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param resource
+		 *   the name of the resource being written.
+		 * @param temporary
+		 *   the temporary file being written.
+		 * @param file
+		 *   the resource file.
+		 * @throws FileNotFoundException
+		 *   if the temporary file cannot be opened for writing.
+		 */
+		DiskOutputStream(String resource, File temporary, File file) throws FileNotFoundException {
+			super(new FileOutputStream(temporary));
+			this.resource = resource;
+			this.temporary = temporary;
+			this.file = file;
+		}
+		
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					super.close();
+					try {
+						Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					} catch(AtomicMoveNotSupportedException e) {
+						logger.warn("atomic rename not supported in '{}', falling back to plain rename", file.getParent());
+						Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				} catch(IOException e) {
+					logger.error("error committing resource '" + resource + "' to '" + file.getAbsolutePath() + "'", e);
+					temporary.delete();
+					throw e;
+				}
+				if(index != null) {
+					index.put(resource, file.length(), file.lastModified());
+				}
+				if(caseSensitive) {
+					deleteCaseVariants(resource, file);
+				}
+			}
+		}
+		
+		/**
+		 * Deletes the temporary file, leaving the previous version in place.
+		 * 
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					if(!temporary.delete()) {
+						logger.warn("could not delete temporary file '{}'", temporary.getAbsolutePath());
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * An iterator over the names of the resources on disk, walking the shard 
+	 * directories depth-first; shard directories, whose size is bounded by the 
+	 * fan-out, are listed (and closed) when the iteration reaches them, while 
+	 * the directories holding the resources are read lazily through a {@link 
+	 * DirectoryStream}, so that no list of names is ever built. At most one 
+	 * directory is open at any time: it is closed when the iteration is over, 
+	 * or when the iterator is closed.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private class DirectoryIterator implements Iterator<String>, Closeable {
+		
+		/**
+		 * The optional filter on resource names.
+		 */
+		private final Filter filter;
+		
+		/**
+		 * The iterators over the listings of the shard directories on the 
+		 * current path, from the innermost.
+		 */
+		private final Deque<Iterator<Path>> shards = new ArrayDeque<Iterator<Path>>();
+		
+		/**
+		 * The open directory holding resources, if any.
+		 */
+		private DirectoryStream<Path> stream = null;
+		
+		/**
+		 * The iterator over the open directory, if any.
+		 */
+		private Iterator<Path> paths = null;
+		
+		/**
+		 * The next matching name, if already found.
+		 */
+		private String next = null;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param regex
+		 *   an optional regular expression; if {@code null}, all resources are
+		 *   returned.
+		 */
+		DirectoryIterator(Regex regex) {
+			this.filter = regex != null ? new Filter(regex) : null;
+			open(directory.toPath(), 0);
+		}
+		
+		/**
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while(next == null) {
+				if(paths != null) {
+					try {
+						if(paths.hasNext()) {
+							String name = paths.next().getFileName().toString();
+							if(!isReserved(name) && (filter == null || filter.accept(null, name))) {
+								next = name;
+							}
+							continue;
+						}
+					} catch(DirectoryIteratorException e) {
+						logger.error("error reading directory, skipping it", e.getCause());
+					}
+					closeDirectory();
+				} else if(shards.isEmpty()) {
+					break;
+				} else if(!shards.peek().hasNext()) {
+					shards.pop();
+				} else {
+					Path path = shards.peek().next();
+					if(Files.isDirectory(path)) {
+						open(path, shards.size());
+					}
+				}
+			}
+			return next != null;
+		}
+		
+		/**
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public String next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String name = next;
+			next = null;
+			return name;
+		}
+		
+		/**
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("resource deletion during iteration is not supported");
+		}
+		
+		/**
+		 * Closes the open directory, if any, and ends the iteration.
+		 * 
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() {
+			next = null;
+			shards.clear();
+			closeDirectory();
+		}
+		
+		/**
+		 * Descends into a directory: shard directories are listed and closed, 
+		 * while directories holding resources are kept open.
+		 * 
+		 * @param path
+		 *   the directory.
+		 * @param depth
+		 *   the shard level of the directory, 0 for the cache directory.
+		 */
+		private void open(Path path, int depth) {
+			try {
+				DirectoryStream<Path> opened = Files.newDirectoryStream(path);
+				if(depth == levels) {
+					stream = opened;
+					paths = opened.iterator();
+					return;
+				}
+				List<Path> children = new ArrayList<Path>();
+				try(DirectoryStream<Path> shard = opened) {
+					for(Path child : shard) {
+						children.add(child);
+					}
+				}
+				shards.push(children.iterator());
+			} catch(IOException | DirectoryIteratorException e) {
+				logger.error("error opening directory '" + path + "', skipping it", e);
+			}
+		}
+		
+		/**
+		 * Closes the open directory holding resources, if any.
+		 */
+		private void closeDirectory() {
+			if(stream != null) {
+				try {
+					stream.close();
+				} catch(IOException e) {
+					logger.warn("error closing directory", e);
+				}
+				stream = null;
+				paths = null;
+			}
+		}
+	}
+	
 	/**
 	 * This class provides a way of filtering/selecting items given their name 
 	 * or a regular expression.
@@ -0,0 +1,627 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.dihedron.core.License;
+import org.dihedron.core.streams.Streams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the resources in a {@link DiskStorage}, backed by an
+ * append-only journal in the cache directory; the journal is replayed when the
+ * index is loaded and is periodically compacted, so that the storage metadata
+ * (names, sizes, modification times and case-folded names) can be queried
+ * without scanning or accessing the file system. Closing the index marks the
+ * journal as clean, so that it can be trusted without checking it against the
+ * files in the storage when loaded again; the mark is removed on load, so that
+ * the journal of an index that is not closed (e.g. because of a crash) has to
+ * be reconciled with the files.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class DiskStorageIndex {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(DiskStorageIndex.class);
+
+	/**
+	 * The journal record type for the addition (or replacement) of a resource.
+	 */
+	private static final byte PUT = 1;
+
+	/**
+	 * The journal record type for the removal of a resource.
+	 */
+	private static final byte REMOVE = 2;
+
+	/**
+	 * The journal record marking the journal as clean; it is always the last
+	 * record, and is only one byte long.
+	 */
+	private static final byte CLOSED = 3;
+
+	/**
+	 * The minimum number of journal records before compaction is considered.
+	 */
+	private static final int COMPACTION_THRESHOLD = 1024;
+
+	/**
+	 * The metadata of a resource in the index; instances are immutable.
+	 *
+	 * @author Andrea Funto'
+	 */
+	public static final class Entry {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String name;
+
+		/**
+		 * The case-folded name of the resource.
+		 */
+		private final String key;
+
+		/**
+		 * The size of the resource, in bytes.
+		 */
+		private final long size;
+
+		/**
+		 * The last modification time of the resource.
+		 */
+		private final long modified;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param name
+		 *   the name of the resource.
+		 * @param size
+		 *   the size of the resource, in bytes.
+		 * @param modified
+		 *   the last modification time of the resource.
+		 */
+		Entry(String name, long size, long modified) {
+			this.name = name;
+			this.key = fold(name);
+			this.size = size;
+			this.modified = modified;
+		}
+
+		/**
+		 * Returns the name of the resource.
+		 *
+		 * @return
+		 *   the name of the resource.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the case-folded name of the resource.
+		 *
+		 * @return
+		 *   the case-folded name of the resource.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the size of the resource.
+		 *
+		 * @return
+		 *   the size of the resource, in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the last modification time of the resource.
+		 *
+		 * @return
+		 *   the last modification time of the resource, in milliseconds since
+		 *   the epoch.
+		 */
+		public long getModified() {
+			return modified;
+		}
+	}
+
+	/**
+	 * The journal file.
+	 */
+	private final File journal;
+
+	/**
+	 * The resources in the index, sorted by name.
+	 */
+	private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+
+	/**
+	 * The names of the resources in the index, by case-folded name.
+	 */
+	private final ConcurrentMap<String, Set<String>> keys = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * The number of resources in the index, kept aside since counting the 
+	 * entries of a skip list map requires traversing it.
+	 */
+	private volatile long count = 0;
+
+	/**
+	 * The stream used to append records to the journal.
+	 */
+	private DataOutputStream output;
+
+	/**
+	 * The number of records in the journal.
+	 */
+	private long records = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param journal
+	 *   the journal file backing the index.
+	 */
+	public DiskStorageIndex(File journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Loads the index by replaying its journal, provided it was closed cleanly;
+	 * the clean mark is then removed from the journal. If the journal does not
+	 * exist, cannot be read or was not closed cleanly, the index must be loaded
+	 * through {@link #load(Collection)} instead.
+	 *
+	 * @return
+	 *   whether the index was loaded from a clean journal.
+	 * @throws IOException
+	 *   if the journal cannot be written.
+	 */
+	public synchronized boolean load() throws IOException {
+		entries.clear();
+		keys.clear();
+		count = 0;
+		boolean clean = false;
+		if(journal.exists()) {
+			try {
+				clean = replay();
+			} catch(IOException e) {
+				logger.warn("error reading index journal '" + journal.getAbsolutePath() + "'", e);
+			}
+		}
+		if(!clean) {
+			entries.clear();
+			keys.clear();
+			count = 0;
+			return false;
+		}
+		logger.debug("loaded {} entries from clean index journal '{}'", entries.size(), journal.getAbsolutePath());
+		if(records > COMPACTION_THRESHOLD && records > 2 * count) {
+			compact();
+		} else {
+			try(RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+				file.setLength(file.length() - 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the index by replaying its journal and reconciling it with the given
+	 * files, so that resources committed to disk but not journaled (e.g. because
+	 * of a crash between the two steps) are not left out of the index, and those
+	 * no longer on disk are dropped; if the journal does not exist or cannot be 
+	 * read, the index is rebuilt from the given files. The journal is then 
+	 * compacted.
+	 *
+	 * @param files
+	 *   the files of the resources currently in the storage.
+	 * @return
+	 *   whether the index was loaded from the journal ({@code true}) or
+	 *   rebuilt from the given files ({@code false}).
+	 * @throws IOException
+	 *   if the journal cannot be written.
+	 */
+	public synchronized boolean load(Collection<File> files) throws IOException {
+		boolean loaded = false;
+		entries.clear();
+		keys.clear();
+		count = 0;
+		if(journal.exists()) {
+			try {
+				replay();
+				loaded = true;
+				logger.debug("loaded {} entries from index journal '{}'", entries.size(), journal.getAbsolutePath());
+			} catch(IOException e) {
+				logger.warn("error reading index journal '" + journal.getAbsolutePath() + "', rebuilding index", e);
+				entries.clear();
+				keys.clear();
+			}
+		}
+		if(loaded) {
+			reconcile(files);
+			compact();
+		} else {
+			rebuild(files);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Rebuilds the index from the given files, discarding the current contents
+	 * and rewriting the journal.
+	 *
+	 * @param files
+	 *   the files of the resources currently in the storage.
+	 * @throws IOException
+	 *   if the journal cannot be written.
+	 */
+	public synchronized void rebuild(Collection<File> files) throws IOException {
+		logger.debug("rebuilding index from {} files", files.size());
+		entries.clear();
+		keys.clear();
+		count = 0;
+		for(File file : files) {
+			add(new Entry(file.getName(), file.length(), file.lastModified()));
+		}
+		compact();
+	}
+
+	/**
+	 * Closes the journal, marking it as clean; it is reopened (and the mark is
+	 * superseded) if the index is modified afterwards.
+	 */
+	public synchronized void close() {
+		try {
+			if(output == null) {
+				output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+			}
+			output.writeByte(CLOSED);
+			output.flush();
+		} catch(IOException e) {
+			logger.warn("error marking index journal '" + journal.getAbsolutePath() + "' as clean", e);
+		}
+		Streams.safelyClose(output);
+		output = null;
+	}
+
+	/**
+	 * Returns whether the index is empty.
+	 *
+	 * @return
+	 *   whether the index is empty.
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Returns the number of resources in the index.
+	 *
+	 * @return
+	 *   the number of resources in the index.
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * Returns the metadata of the given resource.
+	 *
+	 * @param name
+	 *   the name of the resource.
+	 * @return
+	 *   the resource metadata, or {@code null} if not in the index.
+	 */
+	public Entry get(String name) {
+		return name != null ? entries.get(name) : null;
+	}
+
+	/**
+	 * Returns the names of the resources in the index whose case-folded name is
+	 * the same as the given one's.
+	 *
+	 * @param name
+	 *   the name of the resource.
+	 * @return
+	 *   the names of matching resources, possibly empty.
+	 */
+	public Collection<String> getIgnoreCase(String name) {
+		if(name != null) {
+			Set<String> names = keys.get(fold(name));
+			if(names != null) {
+				return new ArrayList<String>(names);
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns a live, sorted, read-only view of the names of the resources in 
+	 * the index.
+	 *
+	 * @return
+	 *   the names of the resources in the index.
+	 */
+	public SortedSet<String> names() {
+		return Collections.unmodifiableSortedSet(entries.navigableKeySet());
+	}
+
+	/**
+	 * Adds a resource to the index, or updates its metadata.
+	 *
+	 * @param name
+	 *   the name of the resource.
+	 * @param size
+	 *   the size of the resource, in bytes.
+	 * @param modified
+	 *   the last modification time of the resource.
+	 */
+	public synchronized void put(String name, long size, long modified) {
+		Entry entry = new Entry(name, size, modified);
+		add(entry);
+		try {
+			append(PUT, entry);
+		} catch(IOException e) {
+			logger.warn("error appending to index journal '" + journal.getAbsolutePath() + "'", e);
+		}
+	}
+
+	/**
+	 * Removes a resource from the index.
+	 *
+	 * @param name
+	 *   the name of the resource.
+	 */
+	public synchronized void remove(String name) {
+		if(remove(entries.get(name))) {
+			try {
+				append(REMOVE, new Entry(name, -1, 0));
+			} catch(IOException e) {
+				logger.warn("error appending to index journal '" + journal.getAbsolutePath() + "'", e);
+			}
+		}
+	}
+
+	/**
+	 * Removes all resources from the index.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		keys.clear();
+		count = 0;
+		try {
+			compact();
+		} catch(IOException e) {
+			logger.warn("error rewriting index journal '" + journal.getAbsolutePath() + "'", e);
+		}
+	}
+
+	/**
+	 * Adds an entry to the in-memory maps; must be invoked while holding the lock
+	 * on the index.
+	 *
+	 * @param entry
+	 *   the entry to add.
+	 */
+	private void add(Entry entry) {
+		if(entries.put(entry.getName(), entry) == null) {
+			++count;
+		}
+		Set<String> names = keys.get(entry.getKey());
+		if(names == null) {
+			names = new CopyOnWriteArraySet<String>();
+			keys.put(entry.getKey(), names);
+		}
+		names.add(entry.getName());
+	}
+
+	/**
+	 * Removes an entry from the in-memory maps; must be invoked while holding 
+	 * the lock on the index.
+	 *
+	 * @param entry
+	 *   the entry to remove, may be {@code null}.
+	 * @return
+	 *   whether an entry was removed.
+	 */
+	private boolean remove(Entry entry) {
+		if(entry == null || !entries.remove(entry.getName(), entry)) {
+			return false;
+		}
+		--count;
+		Set<String> names = keys.get(entry.getKey());
+		if(names != null) {
+			names.remove(entry.getName());
+			if(names.isEmpty()) {
+				keys.remove(entry.getKey());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replays the journal into the in-memory maps; a truncated record at the end
+	 * of the journal (e.g. because of a crash while appending) is ignored.
+	 *
+	 * @return
+	 *   whether the journal ends with the clean mark.
+	 * @throws IOException
+	 *   if the journal cannot be read or is corrupted.
+	 */
+	private boolean replay() throws IOException {
+		records = 0;
+		boolean clean = false;
+		try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+			for(;;) {
+				byte type;
+				try {
+					type = input.readByte();
+				} catch(EOFException e) {
+					break;
+				}
+				clean = type == CLOSED;
+				if(clean) {
+					continue;
+				}
+				++records;
+				try {
+					switch(type) {
+					case PUT:
+						String name = input.readUTF();
+						long size = input.readLong();
+						long modified = input.readLong();
+						add(new Entry(name, size, modified));
+						break;
+					case REMOVE:
+						remove(entries.get(input.readUTF()));
+						break;
+					default:
+						throw new IOException("invalid record type " + type + " in index journal");
+					}
+				} catch(EOFException e) {
+					logger.warn("ignoring truncated record at the end of index journal '{}'", journal.getAbsolutePath());
+					break;
+				}
+			}
+		}
+		return clean;
+	}
+
+	/**
+	 * Brings the in-memory maps in line with the given files, which are taken as
+	 * the actual contents of the storage; must be invoked while holding the lock
+	 * on the index.
+	 *
+	 * @param files
+	 *   the files of the resources currently in the storage.
+	 */
+	private void reconcile(Collection<File> files) {
+		Set<String> names = new HashSet<String>();
+		int added = 0, removed = 0;
+		for(File file : files) {
+			names.add(file.getName());
+			Entry entry = entries.get(file.getName());
+			if(entry == null || entry.getSize() != file.length() || entry.getModified() != file.lastModified()) {
+				add(new Entry(file.getName(), file.length(), file.lastModified()));
+				++added;
+			}
+		}
+		for(Entry entry : entries.values()) {
+			if(!names.contains(entry.getName()) && remove(entry)) {
+				++removed;
+			}
+		}
+		if(added > 0 || removed > 0) {
+			logger.info("reconciled index journal '{}' with the storage: {} entries added or updated, {} removed", journal.getAbsolutePath(), added, removed);
+		}
+	}
+
+	/**
+	 * Appends a record to the journal, compacting it if it has grown too large
+	 * with respect to the number of live entries; must be invoked while holding
+	 * the lock on the index.
+	 *
+	 * @param type
+	 *   the record type.
+	 * @param entry
+	 *   the entry the record refers to.
+	 * @throws IOException
+	 *   if the journal cannot be written.
+	 */
+	private void append(byte type, Entry entry) throws IOException {
+		if(records > COMPACTION_THRESHOLD && records > 2 * count) {
+			compact();
+			return;
+		}
+		if(output == null) {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+		}
+		output.writeByte(type);
+		output.writeUTF(entry.getName());
+		if(type == PUT) {
+			output.writeLong(entry.getSize());
+			output.writeLong(entry.getModified());
+		}
+		output.flush();
+		++records;
+	}
+
+	/**
+	 * Rewrites the journal so that it only contains the live entries; the new
+	 * journal is written to a temporary file and then renamed over the old one;
+	 * must be invoked while holding the lock on the index.
+	 *
+	 * @throws IOException
+	 *   if the journal cannot be written.
+	 */
+	private void compact() throws IOException {
+		Streams.safelyClose(output);
+		output = null;
+		File temporary = new File(journal.getParentFile(), journal.getName() + ".tmp");
+		List<Entry> snapshot = new ArrayList<Entry>(entries.values());
+		try(DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			for(Entry entry : snapshot) {
+				stream.writeByte(PUT);
+				stream.writeUTF(entry.getName());
+				stream.writeLong(entry.getSize());
+				stream.writeLong(entry.getModified());
+			}
+		}
+		if(!temporary.renameTo(journal)) {
+			journal.delete();
+			if(!temporary.renameTo(journal)) {
+				throw new IOException("error replacing index journal '" + journal.getAbsolutePath() + "'");
+			}
+		}
+		records = snapshot.size();
+		logger.trace("compacted index journal '{}' to {} records", journal.getAbsolutePath(), records);
+	}
+
+	/**
+	 * Returns the case-folded version of the given name.
+	 *
+	 * @param name
+	 *   the name.
+	 * @return
+	 *   the case-folded name.
+	 */
+	static String fold(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+}
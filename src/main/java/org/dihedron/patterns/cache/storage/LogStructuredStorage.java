@@ -0,0 +1,1493 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.strings.Strings;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that appends resources to a sequence of segment files instead of
+ * keeping each resource in its own file, which suits large numbers of small
+ * resources: no inode is used per resource, and no file is opened or closed to
+ * store or retrieve one. Resources are located through an in-memory index of
+ * their offsets, and are read with positional reads on the segment channels,
+ * which are kept open; since an interrupted thread closes the channel it is
+ * using, a channel found closed while the segment is still in use is reopened,
+ * so that an interrupt only fails the operation of the interrupted thread.
+ * <p>
+ * Each record in a segment is made of a header, the resource name and data,
+ * and a checksum; deletions are recorded as tombstones. When a segment reaches
+ * its maximum size it is sealed by appending a footer that lists its records,
+ * so that the index can be rebuilt at startup by reading the footers only; the
+ * last segment, which has no footer, is scanned and truncated after its last
+ * valid record. Space taken up by deleted and overwritten resources is
+ * reclaimed by compaction, which copies the live records of the sealed segments
+ * with enough garbage to the end of the log and then deletes them; compaction
+ * can run in the background, or be triggered through {@link #compact()}.
+ * <p>
+ * Segments are forced to disk when sealed and before compacted segments are
+ * deleted, not on every write: resources stored just before a crash may be
+ * lost, but the log is never left inconsistent. Resources are buffered on the
+ * heap until their output stream is closed, and appended as a single record; 
+ * the storage is therefore meant for small resources, and rejects resources
+ * larger than the maximum segment size.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class LogStructuredStorage extends AbstractStorage implements Closeable {
+
+	/**
+	 * The default maximum size of a segment, in bytes.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The default fraction of garbage beyond which a sealed segment is compacted.
+	 */
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+	/**
+	 * The default period of the background compaction, in milliseconds.
+	 */
+	public static final long DEFAULT_COMPACTION_PERIOD = 60 * 1000;
+
+	/**
+	 * The value used to disable the background compaction.
+	 */
+	public static final long NO_BACKGROUND_COMPACTION = -1;
+
+	/**
+	 * The prefix of the segment file names.
+	 */
+	public static final String SEGMENT_PREFIX = "segment-";
+
+	/**
+	 * The suffix of the segment file names.
+	 */
+	public static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(LogStructuredStorage.class);
+
+	/**
+	 * The magic number at the beginning of each record.
+	 */
+	private static final int RECORD_MAGIC = 0x4C4F4752;
+
+	/**
+	 * The magic number at the end of the footer of sealed segments.
+	 */
+	private static final int FOOTER_MAGIC = 0x464F4F54;
+
+	/**
+	 * The type of records holding resource data.
+	 */
+	private static final byte DATA = 0;
+
+	/**
+	 * The type of records marking deleted resources.
+	 */
+	private static final byte TOMBSTONE = 1;
+
+	/**
+	 * The size of a record header: magic, type, name length and data length.
+	 */
+	private static final int HEADER_SIZE = 4 + 1 + 4 + 8;
+
+	/**
+	 * The size of a record trailer: the checksum of name and data.
+	 */
+	private static final int TRAILER_SIZE = 4;
+
+	/**
+	 * The size of the end of a footer: number of records, footer offset and magic.
+	 */
+	private static final int FOOTER_END_SIZE = 4 + 8 + 4;
+
+	/**
+	 * The character set of resource names.
+	 */
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * The directory where the segments are kept.
+	 */
+	private final File directory;
+
+	/**
+	 * The maximum size of a segment.
+	 */
+	private final long segmentSize;
+
+	/**
+	 * The fraction of garbage beyond which a sealed segment is compacted.
+	 */
+	private final double compactionThreshold;
+
+	/**
+	 * The location of each resource, sorted by resource name.
+	 */
+	private final ConcurrentNavigableMap<String, Entry> index = new ConcurrentSkipListMap<String, Entry>();
+
+	/**
+	 * The segments, by identifier.
+	 */
+	private final ConcurrentMap<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+
+	/**
+	 * The lock serialising appends; it guards the active segment.
+	 */
+	private final Object appending = new Object();
+
+	/**
+	 * The lock serialising compactions.
+	 */
+	private final Object compacting = new Object();
+
+	/**
+	 * The segment records are appended to.
+	 */
+	private Segment active;
+
+	/**
+	 * The identifier of the next segment.
+	 */
+	private long next;
+
+	/**
+	 * The executor running the background compaction, if enabled.
+	 */
+	private final ScheduledExecutorService compactor;
+
+	/**
+	 * Constructor; creates a storage with the default parameters.
+	 *
+	 * @param directory
+	 *   the directory where the segments are kept; it is created if missing.
+	 * @throws CacheException
+	 *   if the directory cannot be created, or the segments cannot be read.
+	 */
+	public LogStructuredStorage(File directory) throws CacheException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_COMPACTION_PERIOD);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *   the directory where the segments are kept; it is created if missing.
+	 * @param segmentSize
+	 *   the maximum size of a segment, in bytes; a segment can exceed it by a
+	 *   single record.
+	 * @param compactionThreshold
+	 *   the fraction (between 0 and 1) of its size that must be taken up by
+	 *   deleted and overwritten resources for a sealed segment to be compacted.
+	 * @param compactionPeriod
+	 *   the period of the background compaction in milliseconds, or {@link
+	 *   #NO_BACKGROUND_COMPACTION}.
+	 * @throws CacheException
+	 *   if the directory cannot be created, or the segments cannot be read.
+	 */
+	public LogStructuredStorage(File directory, long segmentSize, double compactionThreshold, long compactionPeriod) throws CacheException {
+		if(directory == null) {
+			throw new CacheException("Null directory specified for the cache storage");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			logger.error("error creating directory {}", directory.getAbsolutePath());
+			throw new CacheException("Error creating directory " + directory.getAbsolutePath());
+		}
+		this.directory = directory;
+		this.segmentSize = Math.max(1, segmentSize);
+		this.compactionThreshold = compactionThreshold;
+		try {
+			recover();
+		} catch(IOException e) {
+			close();
+			logger.error("error recovering log in directory " + directory.getAbsolutePath(), e);
+			throw new CacheException("Error recovering log in directory " + directory.getAbsolutePath(), e);
+		}
+		if(compactionPeriod > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "log-compactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch(IOException | RuntimeException e) {
+						logger.error("error compacting log in directory " + LogStructuredStorage.this.directory.getAbsolutePath(), e);
+					}
+				}
+			}, compactionPeriod, compactionPeriod, TimeUnit.MILLISECONDS);
+		} else {
+			compactor = null;
+		}
+		logger.debug("opened log in directory {} with {} resources in {} segments", directory.getAbsolutePath(), index.size(), segments.size());
+	}
+
+	/**
+	 * Returns the directory where the segments are kept.
+	 *
+	 * @return
+	 *   the directory where the segments are kept.
+	 */
+	public File getLocation() {
+		return directory;
+	}
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return
+	 *   the number of segments.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the overall size of the segments, including the space taken up
+	 * by deleted and overwritten resources.
+	 *
+	 * @return
+	 *   the overall size of the segments, in bytes.
+	 */
+	public long getSizeOnDisk() {
+		long size = 0;
+		for(Segment segment : segments.values()) {
+			size += segment.file.length();
+		}
+		return size;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return index.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		return index.size();
+	}
+
+	/**
+	 * Iterates lazily over the live index.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return iterate(index.navigableKeySet(), regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		List<String> resources = select(index.navigableKeySet(), regex);
+		return resources.toArray(new String[resources.size()]);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return resource != null && index.containsKey(resource);
+	}
+
+	/**
+	 * Returns a stream buffering the resource in memory; the resource is
+	 * appended to the log when the stream is closed. Writing more data than 
+	 * the maximum segment size fails, and discards the resource.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		if(Strings.isValid(resource)) {
+			logger.debug("storing resource '{}'", resource);
+			return new LogOutputStream(resource);
+		}
+		return null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		Entry entry = open(resource);
+		return entry != null ? new SegmentInputStream(entry) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		Entry entry = open(resource);
+		return entry != null ? new SegmentInputStream(entry, offset, length) : null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		Entry entry = resource != null ? index.get(resource) : null;
+		return entry != null ? entry.length : -1;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		for(String resource : select(index.navigableKeySet(), regex)) {
+			remove(resource);
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public void delete(String resource, boolean caseInsensitive) {
+		if(resource == null) {
+			return;
+		}
+		if(caseInsensitive) {
+			for(String element : index.keySet()) {
+				if(element.equalsIgnoreCase(resource)) {
+					remove(element);
+				}
+			}
+		} else {
+			remove(resource);
+		}
+	}
+
+	/**
+	 * Removes all resources and deletes all segments.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public void clear() {
+		logger.debug("clearing log in directory {}", directory.getAbsolutePath());
+		synchronized(compacting) {
+			synchronized(appending) {
+				index.clear();
+				for(Segment segment : segments.values()) {
+					segment.retire(true);
+				}
+				segments.clear();
+				try {
+					active = create(next++);
+				} catch(IOException e) {
+					logger.error("error creating new segment in directory " + directory.getAbsolutePath(), e);
+					active = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compacts the sealed segments whose fraction of deleted and overwritten
+	 * resources exceeds the compaction threshold, copying their live resources
+	 * to the end of the log and deleting them.
+	 *
+	 * @return
+	 *   the number of compacted segments.
+	 * @throws IOException
+	 *   if the segments cannot be read or the log cannot be written.
+	 */
+	public int compact() throws IOException {
+		synchronized(compacting) {
+			List<Segment> candidates = new ArrayList<Segment>();
+			for(Segment segment : segments.values()) {
+				if(segment.sealed && segment.size > 0 && segment.garbage.get() >= segment.size * compactionThreshold) {
+					candidates.add(segment);
+				}
+			}
+			Collections.sort(candidates, new Comparator<Segment>() {
+				@Override
+				public int compare(Segment first, Segment second) {
+					return Long.compare(first.id, second.id);
+				}
+			});
+			for(Segment segment : candidates) {
+				compact(segment);
+			}
+			return candidates.size();
+		}
+	}
+
+	/**
+	 * Stops the background compaction, empties the index and closes the 
+	 * segments; the storage cannot be used afterwards.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if(compactor != null) {
+			compactor.shutdownNow();
+		}
+		synchronized(appending) {
+			index.clear();
+			for(Segment segment : segments.values()) {
+				segment.retire(false);
+			}
+			segments.clear();
+			active = null;
+		}
+	}
+
+	/**
+	 * Copies the live records of a sealed segment to the end of the log, then
+	 * deletes it; tombstones are carried over only as long as an older segment
+	 * may still hold a record they shadow.
+	 *
+	 * @param segment
+	 *   the segment to be compacted.
+	 * @throws IOException
+	 *   if the segment cannot be read or the log cannot be written.
+	 */
+	private void compact(Segment segment) throws IOException {
+		logger.debug("compacting segment {} ({} bytes, {} bytes of garbage)", segment.id, segment.size, segment.garbage.get());
+		boolean older = false;
+		for(Long id : segments.keySet()) {
+			older |= id < segment.id;
+		}
+		for(Entry entry : readFooter(segment)) {
+			if(entry.type == DATA) {
+				if(!entry.isAt(index.get(entry.name))) {
+					continue;
+				}
+				byte[] data = read(entry);
+				synchronized(appending) {
+					if(entry.isAt(index.get(entry.name))) {
+						index.put(entry.name, append(DATA, entry.name, data));
+						roll();
+					}
+				}
+			} else if(older && !index.containsKey(entry.name)) {
+				synchronized(appending) {
+					if(!index.containsKey(entry.name)) {
+						Entry tombstone = append(TOMBSTONE, entry.name, new byte[0]);
+						tombstone.segment.garbage.addAndGet(tombstone.getRecordSize());
+						roll();
+					}
+				}
+			}
+		}
+		synchronized(appending) {
+			active.channel().force(false);
+		}
+		segments.remove(segment.id);
+		segment.retire(true);
+		logger.debug("segment {} compacted", segment.id);
+	}
+
+	/**
+	 * Looks the given resource up in the index and acquires a reference to its
+	 * segment.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   the entry of the resource, whose segment must be released once read, 
+	 *   or {@code null} if the resource is not found.
+	 */
+	private Entry open(String resource) {
+		Entry entry = resource != null ? index.get(resource) : null;
+		while(entry != null && !entry.segment.retain()) {
+			// the segment has just been compacted, look the resource up again
+			Entry current = index.get(resource);
+			if(current == entry) {
+				// the segment was retired without relocating the resource
+				return null;
+			}
+			entry = current;
+		}
+		return entry;
+	}
+
+	/**
+	 * Appends a resource to the log and updates the index.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param data
+	 *   the resource data.
+	 * @throws IOException
+	 *   if the log cannot be written.
+	 */
+	private void put(String resource, byte[] data) throws IOException {
+		synchronized(appending) {
+			Entry previous = index.put(resource, append(DATA, resource, data));
+			if(previous != null) {
+				previous.segment.garbage.addAndGet(previous.getRecordSize());
+			}
+			roll();
+		}
+	}
+
+	/**
+	 * Appends a tombstone for a resource to the log and removes it from the
+	 * index.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void remove(String resource) {
+		synchronized(appending) {
+			Entry previous = index.remove(resource);
+			if(previous == null) {
+				return;
+			}
+			logger.debug("removing resource '{}'", resource);
+			previous.segment.garbage.addAndGet(previous.getRecordSize());
+			try {
+				Entry tombstone = append(TOMBSTONE, resource, new byte[0]);
+				tombstone.segment.garbage.addAndGet(tombstone.getRecordSize());
+				roll();
+			} catch(IOException e) {
+				logger.error("error appending tombstone for resource '" + resource + "', it may reappear after a restart", e);
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment; must be called while holding the
+	 * append lock.
+	 *
+	 * @param type
+	 *   the type of the record.
+	 * @param resource
+	 *   the name of the resource.
+	 * @param data
+	 *   the resource data.
+	 * @return
+	 *   the entry of the appended record.
+	 * @throws IOException
+	 *   if the log cannot be written.
+	 */
+	private Entry append(byte type, String resource, byte[] data) throws IOException {
+		if(active == null) {
+			throw new IOException("log in directory " + directory.getAbsolutePath() + " is closed");
+		}
+		byte[] name = resource.getBytes(NAME_CHARSET);
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + name.length + data.length + TRAILER_SIZE);
+		buffer.putInt(RECORD_MAGIC).put(type).putInt(name.length).putLong(data.length).put(name).put(data).putInt((int)crc.getValue());
+		buffer.flip();
+		Segment segment = active;
+		long offset = segment.size;
+		write(segment, buffer, offset);
+		segment.size += buffer.capacity();
+		Entry entry = new Entry(segment, type, resource, offset, name.length, data.length);
+		segment.records.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Seals the active segment and starts a new one if the active segment has
+	 * reached its maximum size; must be called while holding the append lock.
+	 *
+	 * @throws IOException
+	 *   if the footer cannot be written or the new segment cannot be created.
+	 */
+	private void roll() throws IOException {
+		if(active.size >= segmentSize) {
+			seal(active);
+			active = create(next++);
+		}
+	}
+
+	/**
+	 * Seals a segment by appending the footer listing its records, and forces
+	 * it to disk.
+	 *
+	 * @param segment
+	 *   the segment to be sealed.
+	 * @throws IOException
+	 *   if the footer cannot be written.
+	 */
+	private void seal(Segment segment) throws IOException {
+		ByteArrayOutputStream footer = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 8 + 8);
+		for(Entry entry : segment.records) {
+			byte[] name = entry.name.getBytes(NAME_CHARSET);
+			buffer.clear();
+			buffer.put(entry.type).putInt(name.length);
+			footer.write(buffer.array(), 0, buffer.position());
+			footer.write(name);
+			buffer.clear();
+			buffer.putLong(entry.offset).putLong(entry.length);
+			footer.write(buffer.array(), 0, buffer.position());
+		}
+		buffer = ByteBuffer.allocate(FOOTER_END_SIZE);
+		buffer.putInt(segment.records.size()).putLong(segment.size).putInt(FOOTER_MAGIC);
+		footer.write(buffer.array(), 0, buffer.capacity());
+		write(segment, ByteBuffer.wrap(footer.toByteArray()), segment.size);
+		segment.channel().force(true);
+		segment.records = null;
+		segment.sealed = true;
+		logger.debug("sealed segment {} ({} bytes)", segment.id, segment.size);
+	}
+
+	/**
+	 * Rebuilds the index from the segments in the directory: sealed segments
+	 * are read through their footers, while unsealed ones are scanned and
+	 * truncated after their last valid record. The last segment, if unsealed,
+	 * becomes the active one.
+	 *
+	 * @throws IOException
+	 *   if the segments cannot be read.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && getSegmentId(name) >= 0;
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				return Long.compare(getSegmentId(first.getName()), getSegmentId(second.getName()));
+			}
+		});
+		for(int i = 0; i < files.length; ++i) {
+			long id = getSegmentId(files[i].getName());
+			Segment segment = open(id, files[i]);
+			segments.put(id, segment);
+			List<Entry> entries = readFooter(segment);
+			if(entries != null) {
+				segment.sealed = true;
+			} else {
+				entries = scan(segment);
+				segment.records = new ArrayList<Entry>(entries);
+			}
+			for(Entry entry : entries) {
+				apply(entry);
+			}
+			next = id + 1;
+			if(!segment.sealed) {
+				if(i == files.length - 1) {
+					active = segment;
+				} else {
+					seal(segment);
+				}
+			}
+		}
+		if(active == null) {
+			active = create(next++);
+		}
+	}
+
+	/**
+	 * Applies a record read from the log to the index.
+	 *
+	 * @param entry
+	 *   the record.
+	 */
+	private void apply(Entry entry) {
+		Entry previous = entry.type == DATA ? index.put(entry.name, entry) : index.remove(entry.name);
+		if(previous != null) {
+			previous.segment.garbage.addAndGet(previous.getRecordSize());
+		}
+		if(entry.type == TOMBSTONE) {
+			entry.segment.garbage.addAndGet(entry.getRecordSize());
+		}
+	}
+
+	/**
+	 * Reads the footer of a sealed segment.
+	 *
+	 * @param segment
+	 *   the segment.
+	 * @return
+	 *   the records in the segment, or {@code null} if the segment has no valid
+	 *   footer.
+	 * @throws IOException
+	 *   if the segment cannot be read.
+	 */
+	private List<Entry> readFooter(Segment segment) throws IOException {
+		long length = segment.channel().size();
+		if(length < FOOTER_END_SIZE) {
+			return null;
+		}
+		ByteBuffer end = ByteBuffer.allocate(FOOTER_END_SIZE);
+		read(segment, end, length - FOOTER_END_SIZE);
+		end.flip();
+		int count = end.getInt();
+		long offset = end.getLong();
+		if(end.getInt() != FOOTER_MAGIC || count < 0 || offset < 0 || offset > length - FOOTER_END_SIZE) {
+			return null;
+		}
+		ByteBuffer footer = ByteBuffer.allocate((int)(length - FOOTER_END_SIZE - offset));
+		read(segment, footer, offset);
+		footer.flip();
+		List<Entry> entries = new ArrayList<Entry>(count);
+		try {
+			for(int i = 0; i < count; ++i) {
+				byte type = footer.get();
+				byte[] name = new byte[footer.getInt()];
+				footer.get(name);
+				entries.add(new Entry(segment, type, new String(name, NAME_CHARSET), footer.getLong(), name.length, footer.getLong()));
+			}
+		} catch(RuntimeException e) {
+			logger.warn("invalid footer in segment {}", segment.id);
+			return null;
+		}
+		segment.size = offset;
+		return entries;
+	}
+
+	/**
+	 * Scans the records of an unsealed segment, verifying their checksums, and
+	 * truncates the segment after the last valid record.
+	 *
+	 * @param segment
+	 *   the segment.
+	 * @return
+	 *   the valid records in the segment.
+	 * @throws IOException
+	 *   if the segment cannot be read.
+	 */
+	private List<Entry> scan(Segment segment) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		long length = segment.channel().size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while(offset + HEADER_SIZE + TRAILER_SIZE <= length) {
+			header.clear();
+			read(segment, header, offset);
+			header.flip();
+			int magic = header.getInt();
+			byte type = header.get();
+			int nameLength = header.getInt();
+			long dataLength = header.getLong();
+			long recordSize = HEADER_SIZE + (long)nameLength + dataLength + TRAILER_SIZE;
+			if(magic != RECORD_MAGIC || (type != DATA && type != TOMBSTONE) || nameLength <= 0 || dataLength < 0 || recordSize > length - offset || recordSize > Integer.MAX_VALUE) {
+				break;
+			}
+			ByteBuffer record = ByteBuffer.allocate((int)(recordSize - HEADER_SIZE));
+			read(segment, record, offset + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), 0, record.capacity() - TRAILER_SIZE);
+			record.position(record.capacity() - TRAILER_SIZE);
+			if(record.getInt() != (int)crc.getValue()) {
+				break;
+			}
+			String name = new String(record.array(), 0, nameLength, NAME_CHARSET);
+			entries.add(new Entry(segment, type, name, offset, nameLength, dataLength));
+			offset += recordSize;
+		}
+		if(offset < length) {
+			logger.warn("truncating segment {} from {} to {} bytes after last valid record", segment.id, length, offset);
+			segment.channel().truncate(offset);
+		}
+		segment.size = offset;
+		return entries;
+	}
+
+	/**
+	 * Reads the data of a record.
+	 *
+	 * @param entry
+	 *   the record.
+	 * @return
+	 *   the record data.
+	 * @throws IOException
+	 *   if the segment cannot be read.
+	 */
+	private byte[] read(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int)entry.length);
+		read(entry.segment, buffer, entry.getDataOffset());
+		return buffer.array();
+	}
+
+	/**
+	 * Creates a new, empty segment.
+	 *
+	 * @param id
+	 *   the identifier of the segment.
+	 * @return
+	 *   the new segment.
+	 * @throws IOException
+	 *   if the segment file cannot be created.
+	 */
+	private Segment create(long id) throws IOException {
+		Segment segment = open(id, new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+		segment.records = new ArrayList<Entry>();
+		segments.put(id, segment);
+		logger.debug("created segment {}", id);
+		return segment;
+	}
+
+	/**
+	 * Opens a segment file, creating it if missing.
+	 *
+	 * @param id
+	 *   the identifier of the segment.
+	 * @param file
+	 *   the segment file.
+	 * @return
+	 *   the segment.
+	 * @throws IOException
+	 *   if the segment file cannot be opened.
+	 */
+	private static Segment open(long id, File file) throws IOException {
+		return new Segment(id, file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	/**
+	 * Returns the identifier of a segment from its file name.
+	 *
+	 * @param name
+	 *   the segment file name.
+	 * @return
+	 *   the identifier of the segment, or -1 if the name is not valid.
+	 */
+	private static long getSegmentId(String name) {
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch(NumberFormatException | IndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes a buffer fully at the given position of a segment.
+	 *
+	 * @param segment
+	 *   the segment.
+	 * @param buffer
+	 *   the buffer.
+	 * @param position
+	 *   the position.
+	 * @throws IOException
+	 *   if the segment cannot be written.
+	 */
+	private static void write(Segment segment, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += segment.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Fills a buffer reading from the given position of a segment.
+	 *
+	 * @param segment
+	 *   the segment.
+	 * @param buffer
+	 *   the buffer.
+	 * @param position
+	 *   the position.
+	 * @throws IOException
+	 *   if the segment cannot be read, or ends before the buffer is full.
+	 */
+	private static void read(Segment segment, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = segment.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException("unexpected end of segment at position " + position);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * A segment file; the segment is reference counted, so that it is closed
+	 * (and deleted, if compacted) only when the last reader is done with it.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Segment {
+
+		/**
+		 * The identifier of the segment.
+		 */
+		final long id;
+
+		/**
+		 * The segment file.
+		 */
+		final File file;
+
+		/**
+		 * The channel to the segment file; replaced if closed by an interrupt
+		 * while the segment is in use, and guarded by the segment itself when
+		 * replaced or closed.
+		 */
+		private volatile FileChannel channel;
+
+		/**
+		 * The size of the records in the segment (excluding the footer).
+		 */
+		volatile long size = 0;
+
+		/**
+		 * Whether the segment has been sealed.
+		 */
+		volatile boolean sealed = false;
+
+		/**
+		 * The records in the segment, while it is active; guarded by the
+		 * append lock.
+		 */
+		List<Entry> records = null;
+
+		/**
+		 * The size of the records of deleted and overwritten resources, and
+		 * of tombstones.
+		 */
+		final AtomicLong garbage = new AtomicLong(0);
+
+		/**
+		 * The number of references to the segment: one held by the storage
+		 * until the segment is retired, plus one per open reader.
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/**
+		 * Whether the segment file is to be deleted once closed.
+		 */
+		private volatile boolean delete = false;
+
+		/**
+		 * Whether the segment has been retired.
+		 */
+		private final AtomicBoolean retired = new AtomicBoolean(false);
+
+		/**
+		 * Constructor.
+		 *
+		 * @param id
+		 *   the identifier of the segment.
+		 * @param file
+		 *   the segment file.
+		 * @param channel
+		 *   the channel to the segment file.
+		 */
+		Segment(long id, File file, FileChannel channel) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		/**
+		 * Returns the channel to the segment file, reopening it if it has been
+		 * closed by an interrupt.
+		 *
+		 * @return
+		 *   the open channel.
+		 * @throws IOException
+		 *   if the segment has been closed, or cannot be reopened.
+		 */
+		FileChannel channel() throws IOException {
+			FileChannel current = channel;
+			return current.isOpen() ? current : reopen(current);
+		}
+
+		/**
+		 * Reads from the given position of the segment into a buffer; if the
+		 * channel is closed by an interrupt of another thread, the read is 
+		 * retried on a new channel, while the interrupted thread gets the error.
+		 *
+		 * @param buffer
+		 *   the buffer.
+		 * @param position
+		 *   the position.
+		 * @return
+		 *   the number of bytes read, or -1 at the end of the segment.
+		 * @throws IOException
+		 *   if the segment cannot be read.
+		 */
+		int read(ByteBuffer buffer, long position) throws IOException {
+			while(true) {
+				try {
+					return channel().read(buffer, position);
+				} catch(ClosedByInterruptException e) {
+					throw e;
+				} catch(ClosedChannelException e) {
+					logger.trace("channel of segment {} closed during a read, retrying", id);
+				}
+			}
+		}
+
+		/**
+		 * Writes a buffer at the given position of the segment, retrying as 
+		 * {@link #read(ByteBuffer, long)} does.
+		 *
+		 * @param buffer
+		 *   the buffer.
+		 * @param position
+		 *   the position.
+		 * @return
+		 *   the number of bytes written.
+		 * @throws IOException
+		 *   if the segment cannot be written.
+		 */
+		int write(ByteBuffer buffer, long position) throws IOException {
+			while(true) {
+				try {
+					return channel().write(buffer, position);
+				} catch(ClosedByInterruptException e) {
+					throw e;
+				} catch(ClosedChannelException e) {
+					logger.trace("channel of segment {} closed during a write, retrying", id);
+				}
+			}
+		}
+
+		/**
+		 * Replaces a channel closed by an interrupt, unless the segment has been
+		 * closed or the channel already replaced.
+		 *
+		 * @param closed
+		 *   the closed channel.
+		 * @return
+		 *   the open channel.
+		 * @throws IOException
+		 *   if the segment has been closed, or cannot be reopened.
+		 */
+		private synchronized FileChannel reopen(FileChannel closed) throws IOException {
+			if(references.get() == 0) {
+				throw new ClosedChannelException();
+			}
+			if(channel == closed) {
+				logger.debug("reopening segment {} after an interrupt", id);
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			return channel;
+		}
+
+		/**
+		 * Acquires a reference to the segment, unless it has been closed.
+		 *
+		 * @return
+		 *   whether the reference was acquired.
+		 */
+		boolean retain() {
+			int count;
+			do {
+				count = references.get();
+				if(count == 0) {
+					return false;
+				}
+			} while(!references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/**
+		 * Releases a reference to the segment, closing it (and deleting it, if
+		 * so requested) when the last reference is released.
+		 */
+		void release() {
+			if(references.decrementAndGet() == 0) {
+				synchronized(this) {
+					try {
+						channel.close();
+					} catch(IOException e) {
+						logger.warn("error closing segment " + id, e);
+					}
+				}
+				if(delete && !file.delete()) {
+					logger.warn("error deleting segment file {}", file.getAbsolutePath());
+				}
+			}
+		}
+
+		/**
+		 * Releases the reference held by the storage.
+		 *
+		 * @param delete
+		 *   whether the segment file is to be deleted once closed.
+		 */
+		void retire(boolean delete) {
+			this.delete = delete;
+			if(retired.compareAndSet(false, true)) {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * A record in the log.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Entry {
+
+		/**
+		 * The segment holding the record.
+		 */
+		final Segment segment;
+
+		/**
+		 * The type of the record.
+		 */
+		final byte type;
+
+		/**
+		 * The name of the resource.
+		 */
+		final String name;
+
+		/**
+		 * The offset of the record in the segment.
+		 */
+		final long offset;
+
+		/**
+		 * The length of the encoded resource name.
+		 */
+		final int nameLength;
+
+		/**
+		 * The length of the resource data.
+		 */
+		final long length;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param segment
+		 *   the segment holding the record.
+		 * @param type
+		 *   the type of the record.
+		 * @param name
+		 *   the name of the resource.
+		 * @param offset
+		 *   the offset of the record in the segment.
+		 * @param nameLength
+		 *   the length of the encoded resource name.
+		 * @param length
+		 *   the length of the resource data.
+		 */
+		Entry(Segment segment, byte type, String name, long offset, int nameLength, long length) {
+			this.segment = segment;
+			this.type = type;
+			this.name = name;
+			this.offset = offset;
+			this.nameLength = nameLength;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the offset of the resource data in the segment.
+		 *
+		 * @return
+		 *   the offset of the resource data.
+		 */
+		long getDataOffset() {
+			return offset + HEADER_SIZE + nameLength;
+		}
+
+		/**
+		 * Returns the size of the whole record.
+		 *
+		 * @return
+		 *   the size of the record.
+		 */
+		long getRecordSize() {
+			return HEADER_SIZE + nameLength + length + TRAILER_SIZE;
+		}
+
+		/**
+		 * Returns whether the given entry refers to the same record.
+		 *
+		 * @param other
+		 *   the other entry, may be {@code null}.
+		 * @return
+		 *   whether the entries refer to the same record.
+		 */
+		boolean isAt(Entry other) {
+			return other != null && other.segment == segment && other.offset == offset;
+		}
+	}
+
+	/**
+	 * A stream reading the data of a record with positional reads, so that any
+	 * number of readers can share the segment channel; an interrupted reader
+	 * gets an error without affecting the others.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class SegmentInputStream extends InputStream {
+
+		/**
+		 * The segment holding the record.
+		 */
+		private final Segment segment;
+
+		/**
+		 * The current position in the segment.
+		 */
+		private long position;
+
+		/**
+		 * The end of the record data in the segment.
+		 */
+		private final long end;
+
+		/**
+		 * Whether the stream has been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor; the segment must have been retained.
+		 *
+		 * @param entry
+		 *   the record.
+		 */
+		SegmentInputStream(Entry entry) {
+			this(entry, 0, -1);
+		}
+
+		/**
+		 * Constructor for a stream reading a range of the record data; the 
+		 * segment must have been retained.
+		 *
+		 * @param entry
+		 *   the record.
+		 * @param offset
+		 *   the offset of the range in the record data.
+		 * @param length
+		 *   the length of the range, or a negative value for the rest of the 
+		 *   record data.
+		 */
+		SegmentInputStream(Entry entry, long offset, long length) {
+			this.segment = entry.segment;
+			long start = Math.min(Math.max(0, offset), entry.length);
+			long count = length < 0 ? entry.length - start : Math.min(length, entry.length - start);
+			this.position = entry.getDataOffset() + start;
+			this.end = position + count;
+		}
+
+		/**
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		/**
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(closed) {
+				throw new IOException("stream closed");
+			}
+			if(position >= end) {
+				return -1;
+			}
+			if(len == 0) {
+				return 0;
+			}
+			int read = segment.read(ByteBuffer.wrap(b, off, (int)Math.min(len, end - position)), position);
+			if(read < 0) {
+				throw new EOFException("unexpected end of segment " + segment.id);
+			}
+			position += read;
+			return read;
+		}
+
+		/**
+		 * @see java.io.InputStream#skip(long)
+		 */
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		/**
+		 * @see java.io.InputStream#available()
+		 */
+		@Override
+		public int available() {
+			return (int)Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		/**
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() {
+			if(!closed) {
+				closed = true;
+				segment.release();
+			}
+		}
+	}
+
+	/**
+	 * The stream buffering a resource until it is closed, when it is appended
+	 * to the log.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class LogOutputStream extends CacheOutputStream<ByteArrayOutputStream> implements Abortable {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 */
+		LogOutputStream(String resource) {
+			super(new ByteArrayOutputStream());
+			this.resource = resource;
+		}
+
+		/**
+		 * @see org.dihedron.patterns.cache.CacheOutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			super.write(b);
+		}
+
+		/**
+		 * @see org.dihedron.patterns.cache.CacheOutputStream#write(byte[])
+		 */
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+
+		/**
+		 * @see org.dihedron.patterns.cache.CacheOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			check(len);
+			super.write(b, off, len);
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				super.close();
+				put(resource, getWrappedStream().toByteArray());
+			}
+		}
+
+		/**
+		 * Checks that the given number of bytes can be written, so that the 
+		 * resource does not exceed the maximum segment size; if it does, the
+		 * resource is discarded.
+		 * 
+		 * @param length
+		 *   the number of bytes about to be written.
+		 * @throws IOException
+		 *   if the stream is closed or the resource would be too large.
+		 */
+		private void check(int length) throws IOException {
+			if(closed) {
+				throw new IOException("stream closed");
+			}
+			if(getSize() + length > segmentSize) {
+				abort();
+				logger.error("resource '{}' exceeds the maximum segment size ({} bytes)", resource, segmentSize);
+				throw new IOException("resource '" + resource + "' exceeds the maximum segment size (" + segmentSize + " bytes)");
+			}
+		}
+
+		/**
+		 * Discards the buffered data, so nothing is appended to the log.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() {
+			closed = true;
+			getWrappedStream().reset();
+		}
+	}
+}
@@ -7,20 +7,26 @@ package org.dihedron.patterns.cache.storage;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
-import org.dihedron.core.streams.Streams;
 import org.dihedron.core.strings.Strings;
+import org.dihedron.patterns.cache.Abortable;
 import org.dihedron.patterns.cache.CacheException;
 import org.dihedron.patterns.cache.CacheOutputStream;
 import org.slf4j.Logger;
@@ -28,7 +34,23 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * A class proving in-memory storage.
+ * A class proving in-memory storage; by default the storage is unbounded, but
+ * it can be given a maximum size (in bytes) and/or a maximum number of entries,
+ * in which case resources that have not been used recently are evicted as new
+ * ones are stored, so that the overall footprint stays within the given budget.
+ * <p>
+ * The storage is lock-free: resources are kept in a concurrent map as entries
+ * whose data, once the output stream is closed, are published as an immutable
+ * array, so that readers never block and never copy under a lock. Resources 
+ * being written are not visible until their output stream is closed; until
+ * then, readers keep seeing the previous version (if any). Bounded storages
+ * approximate LRU with the CLOCK (second chance) algorithm: resources are 
+ * queued in the order they are stored, and using a resource only sets a flag 
+ * on its entry; when the storage is over budget, resources are taken from the
+ * head of the queue, and those used since they were last visited are given a
+ * second chance at the tail instead of being evicted, so that each eviction
+ * costs amortised constant time. Evictions are serialised among writers, and
+ * only happen when the storage is over budget.
  * 
  * @author Andrea Funto'
  */
@@ -41,15 +63,228 @@ public class MemoryStorage extends AbstractStorage {
 	private static final Logger logger = LoggerFactory.getLogger(MemoryStorage.class);
 	
 	/** 
+	 * The value used to indicate that a storage limit (size or number of entries)
+	 * is not enforced.
+	 */
+	public static final long UNBOUNDED = -1;
+	
+	/**
+	 * An interface for objects that want to be notified when resources are 
+	 * evicted from a bounded storage, e.g. to move them to a slower storage 
+	 * instead of losing them.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	public interface EvictionListener {
+		
+		/**
+		 * Invoked after a resource has been evicted from the storage; the 
+		 * method is called on the thread that caused the eviction, without 
+		 * holding any lock on the storage. 
+		 * 
+		 * @param resource
+		 *   the name of the evicted resource.
+		 * @param data
+		 *   the resource data; the array is shared with the readers of the 
+		 *   resource and must not be modified.
+		 */
+		void onEviction(String resource, byte[] data);
+	}
+	
+	/**
+	 * An interface for objects that want to be notified when a resource they
+	 * are writing is published, e.g. to recognise its data when evicted.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	interface PublicationListener {
+		
+		/**
+		 * Invoked when the output stream of a resource is closed, right before
+		 * its data are published (and possibly evicted).
+		 * 
+		 * @param resource
+		 *   the name of the resource.
+		 * @param data
+		 *   the resource data, the same array later passed to the eviction 
+		 *   listener; it must not be modified.
+		 */
+		void onPublication(String resource, byte[] data);
+	}
+
+	/**
 	 * A map containing all cache resources. 
 	 */
-	private Map<String, CacheOutputStream<ByteArrayOutputStream>> contents = Collections.synchronizedMap(new HashMap<String, CacheOutputStream<ByteArrayOutputStream>>());
+	private final ConcurrentMap<String, Entry> contents = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The sorted names of the resources in the map, so that listing and deleting
+	 * resources by regular expression only visits the range of names beginning
+	 * with its literal prefix.
+	 */
+	private final NavigableSet<String> names = new ConcurrentSkipListSet<String>();
+
+	/**
+	 * The number of stale entries (removed or replaced) that the eviction queue
+	 * may hold, on top of the number of resources, before it is purged.
+	 */
+	private static final int PURGE_THRESHOLD = 1024;
+
+	/**
+	 * The entries of bounded storages, in the order they are visited by the
+	 * eviction; entries that have been removed or replaced are dropped when 
+	 * they are reached, or when the queue is purged.
+	 */
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * The number of entries in the eviction queue.
+	 */
+	private final AtomicInteger queued = new AtomicInteger(0);
+
+	/**
+	 * The lock serialising evictions and purges of the eviction queue.
+	 */
+	private final Object evicting = new Object();
+
+	/**
+	 * The maximum overall size (in bytes) of the resources in the storage, or
+	 * {@link #UNBOUNDED} if no limit is enforced.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * The maximum number of resources in the storage, or {@link #UNBOUNDED} if
+	 * no limit is enforced.
+	 */
+	private final long maxEntries;
+
+	/**
+	 * The overall size of the resources whose output stream has been closed.
+	 */
+	private final AtomicLong bytes = new AtomicLong(0);
+
+	/**
+	 * The number of resources evicted so far to stay within the storage limits.
+	 */
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * The overall size of the resources evicted so far.
+	 */
+	private final AtomicLong evictedBytes = new AtomicLong(0);
+	
+	/**
+	 * The (optional) listener to be notified of evictions.
+	 */
+	private volatile EvictionListener listener = null;
 	
 	/**
 	 * Constructor.
 	 */
 	public MemoryStorage() {
-		logger.debug("creating memory storage");
+		this(UNBOUNDED, UNBOUNDED);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes
+	 *   the maximum overall size (in bytes) of the resources in the storage, or
+	 *   {@link #UNBOUNDED} if no limit should be enforced.
+	 * @param maxEntries
+	 *   the maximum number of resources in the storage, or {@link #UNBOUNDED} if
+	 *   no limit should be enforced.
+	 */
+	public MemoryStorage(long maxBytes, long maxEntries) {
+		logger.debug("creating memory storage (max bytes: {}, max entries: {})", maxBytes, maxEntries);
+		this.maxBytes = maxBytes > 0 ? maxBytes : UNBOUNDED;
+		this.maxEntries = maxEntries > 0 ? maxEntries : UNBOUNDED;
+	}
+
+	/**
+	 * Returns the maximum overall size of the resources in the storage.
+	 *
+	 * @return
+	 *   the maximum size in bytes, or {@link #UNBOUNDED}.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the maximum number of resources in the storage.
+	 *
+	 * @return
+	 *   the maximum number of resources, or {@link #UNBOUNDED}.
+	 */
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Returns whether the storage enforces any limit on its size or number of
+	 * entries.
+	 *
+	 * @return
+	 *   {@code true} if the storage is bounded, {@code false} otherwise.
+	 */
+	public boolean isBounded() {
+		return maxBytes != UNBOUNDED || maxEntries != UNBOUNDED;
+	}
+
+	/**
+	 * Sets the listener to be notified when resources are evicted from the
+	 * storage.
+	 * 
+	 * @param listener
+	 *   the listener, or {@code null} to remove the current one.
+	 */
+	public void setEvictionListener(EvictionListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Returns the overall size of the resources in the storage; resources are
+	 * accounted for when their output stream is closed.
+	 *
+	 * @return
+	 *   the overall size of the resources in the storage, in bytes.
+	 */
+	public long getSizeInBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the number of resources evicted so far to stay within the storage
+	 * limits.
+	 *
+	 * @return
+	 *   the number of evicted resources.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the overall size of the resources evicted so far to stay within
+	 * the storage limits.
+	 *
+	 * @return
+	 *   the overall size of the evicted resources, in bytes.
+	 */
+	public long getEvictedBytes() {
+		return evictedBytes.get();
+	}
+	
+	/**
+	 * Returns the number of entries in the eviction queue, including stale ones.
+	 *
+	 * @return
+	 *   the size of the eviction queue.
+	 */
+	int getEvictionQueueSize() {
+		return queued.get();
 	}
 	
 	/**
@@ -60,33 +295,41 @@ public class MemoryStorage extends AbstractStorage {
 		return contents.isEmpty();
 	}
 	
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		return contents.size();
+	}
+
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
 	 */
 	@Override
 	public boolean contains(String resource) {
-		boolean result = contents.containsKey(resource);
+		boolean result = resource != null && contents.containsKey(resource);
 		logger.debug("storage {} resource '{}'", (result ? "contains" : "doesn't contain"), resource);
 		return result;
 	}
 
+	/**
+	 * Iterates lazily over the live set of names.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return iterate(names, regex);
+	}
+
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
 	 */
 	@Override
 	public String[] list(Regex regex) {
-		List<String> matched = new ArrayList<String>();
-		if(regex != null) {
-			for (String resource : contents.keySet()) {
-				if(regex.matches(resource)) {
-					logger.trace("regular expression matches input string '{}'", resource);
-					matched.add(resource);
-				}
-			}
-		} else {
-			matched.addAll(contents.keySet());
-		}
-		return matched.toArray(new String[0]);
+		List<String> matched = select(names, regex);
+		return matched.toArray(new String[matched.size()]);
 	}	
 
 	/**
@@ -94,12 +337,26 @@ public class MemoryStorage extends AbstractStorage {
 	 */
 	@Override
 	public OutputStream store(String resource) throws CacheException {
+		return store(resource, null);
+	}
+	
+	/**
+	 * Stores a resource, notifying the given listener when it is published.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param listener
+	 *   the listener to be notified when the resource is published, or 
+	 *   {@code null}.
+	 * @return
+	 *   the stream to write the resource to, or {@code null} if the name is 
+	 *   not valid.
+	 * @see #store(String)
+	 */
+	OutputStream store(String resource, PublicationListener listener) {
 		if(Strings.isValid(resource)) {
-			Streams.safelyClose(contents.get(resource));
 			logger.debug("storing resource '{}'", resource);
-			CacheOutputStream<ByteArrayOutputStream> stream = new CacheOutputStream<ByteArrayOutputStream>(new ByteArrayOutputStream());
-			contents.put(resource, stream);
-			return stream; 
+			return new MemoryOutputStream(resource, listener); 
 		}
 		return null;
 	}
@@ -110,9 +367,30 @@ public class MemoryStorage extends AbstractStorage {
 	@Override
 	public InputStream retrieve(String resource) {
 		if(Strings.isValid(resource)) {
-			CacheOutputStream<ByteArrayOutputStream> stream = contents.get(resource);
-			if(stream != null) {
-				return new ByteArrayInputStream(stream.getWrappedStream().toByteArray());
+			Entry entry = contents.get(resource);
+			if(entry != null) {
+				touch(entry);
+				return new ByteArrayInputStream(entry.data);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns a view on a slice of the resource data, without copying them.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		if(Strings.isValid(resource)) {
+			Entry entry = contents.get(resource);
+			if(entry != null) {
+				touch(entry);
+				byte[] data = entry.data;
+				int start = (int)Math.min(Math.max(0, offset), data.length);
+				int count = length < 0 ? data.length - start : (int)Math.min(length, data.length - start);
+				return new ByteArrayInputStream(data, start, count);
 			}
 		}
 		return null;
@@ -124,9 +402,9 @@ public class MemoryStorage extends AbstractStorage {
 	@Override
 	public long retrieveSize(String resource) {
 		if(Strings.isValid(resource)) {
-			CacheOutputStream<ByteArrayOutputStream> stream = contents.get(resource);
-			if(stream != null) {
-				return stream.getSize();
+			Entry entry = contents.get(resource);
+			if(entry != null) {
+				return entry.data.length;
 			}
 		}
 		return -1;
@@ -137,13 +415,9 @@ public class MemoryStorage extends AbstractStorage {
 	 */
 	@Override
 	public void delete(Regex regex) {
-		Set<String> resources = new HashSet<String>(contents.keySet());
-		for (String resource : resources) {
-			if(regex.matches(resource)){
-				logger.debug("removing resource '{}'", resource);
-				Streams.safelyClose(contents.get(resource));
-				contents.remove(resource);
-			}
+		for (String resource : select(names, regex)) {
+			logger.debug("removing resource '{}'", resource);
+			remove(resource);
 		}
 	}
 		
@@ -151,19 +425,19 @@ public class MemoryStorage extends AbstractStorage {
 	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
 	 */
 	@Override
-	public void delete(String resource, boolean caseSensitive) {
-		Set<String> resources = new HashSet<String>(contents.keySet());
-		for (String string : resources) {
-			if(caseSensitive && string.equals(resource)) {
-				logger.debug("removing resource '{}'", resource);
-				Streams.safelyClose(contents.get(resource));
-				contents.remove(resource);
-			} else if(!caseSensitive && string.equalsIgnoreCase(resource)){
+	public void delete(String resource, boolean caseInsensitive) {
+		if(resource == null) {
+			return;
+		}
+		if(!caseInsensitive) {
+			if(remove(resource) != null) {
 				logger.debug("removing resource '{}'", resource);
-				Streams.safelyClose(contents.get(resource));
-				contents.remove(resource);				
-			} else {
-				logger.trace("keeping resource '{}'", resource);
+			}
+		} else {
+			for (String string : names) {
+				if(string.equalsIgnoreCase(resource) && remove(string) != null) {
+					logger.debug("removing resource '{}'", string);
+				}
 			}
 		}
 	}
@@ -175,8 +449,306 @@ public class MemoryStorage extends AbstractStorage {
 	public void clear() {
 		logger.debug("clearing storage");
 		for(String resource : contents.keySet()) {
-			Streams.safelyClose(contents.get(resource));
+			remove(resource);
+		}
+	}
+
+	/**
+	 * Removes the given resource from the map, updating the overall size of the
+	 * resources in the storage.
+	 *
+	 * @param resource
+	 *   the name of the resource to remove.
+	 * @return
+	 *   the removed entry, or {@code null} if not found.
+	 */
+	private Entry remove(String resource) {
+		Entry entry = contents.remove(resource);
+		if(entry != null) {
+			discard(resource, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Updates the names of the resources and the overall size of the resources
+	 * in the storage after the given entry has been removed from the map.
+	 * 
+	 * @param resource
+	 *   the name of the resource.
+	 * @param entry
+	 *   the entry that has been removed from the map.
+	 */
+	private void discard(String resource, Entry entry) {
+		if(!contents.containsKey(resource)) {
+			names.remove(resource);
+			// the resource may have been stored again in the meantime
+			if(contents.containsKey(resource)) {
+				names.add(resource);
+			}
+		}
+		bytes.addAndGet(-entry.data.length);
+	}
+	
+	/**
+	 * Marks the given entry as used since the eviction last visited it; only 
+	 * bounded storages track usage, and the flag is only written when not yet
+	 * set, so that reads of popular resources do not keep writing shared state.
+	 * 
+	 * @param entry
+	 *   the entry being used.
+	 */
+	private void touch(Entry entry) {
+		if(isBounded() && !entry.referenced) {
+			entry.referenced = true;
+		}
+	}
+
+	/**
+	 * Adds the given entry to the tail of the eviction queue, purging the queue
+	 * of stale entries if they have grown beyond the number of resources.
+	 * 
+	 * @param entry
+	 *   the entry to enqueue.
+	 */
+	private void enqueue(Entry entry) {
+		queue.add(entry);
+		if(queued.incrementAndGet() > Math.max(PURGE_THRESHOLD, 2 * contents.size())) {
+			synchronized(evicting) {
+				if(queued.get() > Math.max(PURGE_THRESHOLD, 2 * contents.size())) {
+					for(Iterator<Entry> iterator = queue.iterator(); iterator.hasNext(); ) {
+						Entry element = iterator.next();
+						if(contents.get(element.resource) != element) {
+							iterator.remove();
+							queued.decrementAndGet();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the storage holds more than the given number of entries 
+	 * or bytes.
+	 * 
+	 * @param entries
+	 *   the maximum number of entries, or {@link #UNBOUNDED}.
+	 * @param size
+	 *   the maximum overall size of the entries, or {@link #UNBOUNDED}.
+	 * @return
+	 *   whether the storage is over the given budget.
+	 */
+	private boolean isOverBudget(long entries, long size) {
+		return (entries != UNBOUNDED && contents.size() > entries) || (size != UNBOUNDED && bytes.get() > size);
+	}
+
+	/**
+	 * Evicts resources not used recently until the storage is within the given
+	 * limits, visiting the eviction queue from its head; resources used since 
+	 * they were last visited are moved to the tail instead. Evictions are 
+	 * serialised, and resources that are replaced while the eviction is in 
+	 * progress are left alone.
+	 *
+	 * @param entries
+	 *   the maximum number of entries to be left in the storage, or
+	 *   {@link #UNBOUNDED}.
+	 * @param size
+	 *   the maximum overall size of the entries left in the storage, or
+	 *   {@link #UNBOUNDED}.
+	 * @param stored
+	 *   the entry that has just been stored, which is only evicted once no 
+	 *   other entry is left, i.e. if it does not fit in the storage on its own;
+	 *   may be {@code null}.
+	 * @return
+	 *   the evicted entries, or {@code null} if no resource was evicted.
+	 */
+	private List<Entry> evict(long entries, long size, Entry stored) {
+		if(!isOverBudget(entries, size)) {
+			return null;
+		}
+		List<Entry> evicted = null;
+		synchronized(evicting) {
+			// every entry is visited at most twice, unless used concurrently
+			for(int visits = 2 * queued.get(); visits > 0 && isOverBudget(entries, size); --visits) {
+				Entry entry = queue.poll();
+				if(entry == null) {
+					break;
+				}
+				queued.decrementAndGet();
+				if(contents.get(entry.resource) != entry) {
+					// stale: removed or replaced meanwhile
+					continue;
+				}
+				if(entry.referenced || (entry == stored && queued.get() > 0)) {
+					entry.referenced = false;
+					queue.add(entry);
+					queued.incrementAndGet();
+					continue;
+				}
+				if(!contents.remove(entry.resource, entry)) {
+					continue;
+				}
+				discard(entry.resource, entry);
+				long length = entry.data.length;
+				evictions.incrementAndGet();
+				evictedBytes.addAndGet(length);
+				logger.debug("evicted resource '{}' ({} bytes) from memory storage", entry.resource, length);
+				if(entry == stored) {
+					logger.warn("resource '{}' ({} bytes) exceeds the storage size limit ({} bytes)", entry.resource, length, maxBytes);
+				}
+				if(evicted == null) {
+					evicted = new ArrayList<Entry>();
+				}
+				evicted.add(entry);
+			}
+		}
+		return evicted;
+	}
+	
+	/**
+	 * Notifies the eviction listener (if any) of the given evicted resources.
+	 * 
+	 * @param evicted
+	 *   the evicted entries, may be {@code null}.
+	 */
+	private void notifyEvictions(List<Entry> evicted) {
+		EvictionListener listener = this.listener;
+		if(listener != null && evicted != null) {
+			for(Entry entry : evicted) {
+				try {
+					listener.onEviction(entry.resource, entry.data);
+				} catch(RuntimeException e) {
+					logger.warn("error notifying eviction of resource '" + entry.resource + "'", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * An entry in the map, holding the immutable data of the resource.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Entry {
+		
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+		
+		/**
+		 * The data of the resource.
+		 */
+		private final byte[] data;
+		
+		/**
+		 * Whether the resource has been used since the eviction last visited it.
+		 */
+		private volatile boolean referenced;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param resource
+		 *   the name of the resource.
+		 * @param data
+		 *   the data of the resource.
+		 */
+		Entry(String resource, byte[] data) {
+			this.resource = resource;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * The stream used to write resources into the storage; when it is closed,
+	 * the resource data are published as an immutable entry replacing the 
+	 * previous version (if any), its size is accounted for in the storage 
+	 * overall size, and the least recently used resources are evicted if the 
+	 * storage is over budget.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class MemoryOutputStream extends CacheOutputStream<ByteArrayOutputStream> implements Abortable {
+
+		/**
+		 * The name of the resource being written.
+		 */
+		private final String resource;
+		
+		/**
+		 * The listener to be notified when the resource is published, if any.
+		 */
+		private final PublicationListener listener;
+		
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource being written.
+		 * @param listener
+		 *   the listener to be notified when the resource is published, or 
+		 *   {@code null}.
+		 */
+		MemoryOutputStream(String resource, PublicationListener listener) {
+			super(new ByteArrayOutputStream());
+			this.resource = resource;
+			this.listener = listener;
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if(!closed.compareAndSet(false, true)) {
+				return;
+			}
+			Entry published = new Entry(resource, getWrappedStream().toByteArray());
+			if(listener != null) {
+				listener.onPublication(resource, published.data);
+			}
+			// account for the new entry before discarding the previous one, so
+			// that the overall size never goes below the actual one
+			bytes.addAndGet(published.data.length);
+			Entry previous = contents.put(resource, published);
+			names.add(resource);
+			// the resource may have been removed in the meantime, without its 
+			// name, which had not been added yet
+			if(!contents.containsKey(resource)) {
+				names.remove(resource);
+				// and stored again
+				if(contents.containsKey(resource)) {
+					names.add(resource);
+				}
+			}
+			if(previous != null) {
+				discard(resource, previous);
+			}
+			if(isBounded()) {
+				enqueue(published);
+				notifyEvictions(evict(maxEntries, maxBytes, published));
+			}
+		}
+
+		/**
+		 * Drops the data written so far; the previous version of the resource,
+		 * if any, is left in place.
+		 * 
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() {
+			if(closed.compareAndSet(false, true)) {
+				getWrappedStream().reset();
+			}
 		}
-		contents.clear();
 	}	
 }
@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.strings.Strings;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage keeping resource data outside of the Java heap, in direct memory
+ * managed by a {@link SlabAllocator}; resources are written as chains of fixed
+ * size chunks and read back through read-only views on the same chunks, so
+ * retrieving a resource never copies its data onto the heap and cached data
+ * does not count towards garbage collection pauses.
+ * Resources become visible when the stream returned by {@link #store(String)}
+ * is closed; a resource that is deleted or replaced while being read stays
+ * valid until all its readers have closed their streams.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class OffHeapStorage extends AbstractStorage {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(OffHeapStorage.class);
+
+	/**
+	 * The default capacity of the storage (256 megabytes).
+	 */
+	public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+	/**
+	 * The allocator providing off-heap memory.
+	 */
+	private final SlabAllocator allocator;
+
+	/**
+	 * A map containing all cache resources, sorted by name.
+	 */
+	private final ConcurrentNavigableMap<String, Entry> contents = new ConcurrentSkipListMap<String, Entry>();
+
+	/**
+	 * Constructor; creates a storage with the default capacity.
+	 */
+	public OffHeapStorage() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   the maximum amount of off-heap memory the storage can use, in bytes.
+	 */
+	public OffHeapStorage(long capacity) {
+		this(new SlabAllocator(capacity));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param allocator
+	 *   the allocator that will provide off-heap memory to the storage.
+	 */
+	public OffHeapStorage(SlabAllocator allocator) {
+		logger.debug("creating off-heap storage with capacity {} bytes", allocator.getCapacity());
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Returns the allocator providing off-heap memory to the storage.
+	 *
+	 * @return
+	 *   the allocator.
+	 */
+	public SlabAllocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return contents.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return Strings.isValid(resource) && contents.containsKey(resource);
+	}
+
+	/**
+	 * Iterates lazily over the live set of names.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return iterate(contents.navigableKeySet(), regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		List<String> matched = select(contents.navigableKeySet(), regex);
+		return matched.toArray(new String[matched.size()]);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		if(Strings.isValid(resource)) {
+			logger.debug("storing resource '{}' off-heap", resource);
+			return new OffHeapOutputStream(resource);
+		}
+		return null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		if(Strings.isValid(resource)) {
+			Entry entry = contents.get(resource);
+			if(entry != null && entry.acquire()) {
+				return new OffHeapInputStream(entry);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		if(Strings.isValid(resource)) {
+			Entry entry = contents.get(resource);
+			if(entry != null) {
+				return entry.size;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		for(String resource : list(regex)) {
+			remove(resource);
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public void delete(String resource, boolean caseInsensitive) {
+		if(resource != null) {
+			if(caseInsensitive) {
+				for(String element : contents.keySet()) {
+					if(element.equalsIgnoreCase(resource)) {
+						remove(element);
+					}
+				}
+			} else {
+				remove(resource);
+			}
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public void clear() {
+		logger.debug("clearing off-heap storage");
+		for(String resource : contents.keySet()) {
+			remove(resource);
+		}
+	}
+
+	/**
+	 * Removes a resource from the storage, releasing its memory as soon as it
+	 * is no longer being read.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void remove(String resource) {
+		Entry entry = contents.remove(resource);
+		if(entry != null) {
+			logger.debug("removing resource '{}'", resource);
+			entry.release();
+		}
+	}
+
+	/**
+	 * An immutable resource, made of a chain of chunks; the entry is reference
+	 * counted, with the storage holding one reference and each open reader one
+	 * more: chunks are returned to the allocator when the count drops to zero.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class Entry {
+
+		/**
+		 * The chunks holding the resource data.
+		 */
+		private final ByteBuffer[] chunks;
+
+		/**
+		 * The resource size, in bytes.
+		 */
+		private final long size;
+
+		/**
+		 * The reference count.
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/**
+		 * Constructor.
+		 *
+		 * @param chunks
+		 *   the chunks holding the resource data.
+		 * @param size
+		 *   the resource size, in bytes.
+		 */
+		Entry(List<ByteBuffer> chunks, long size) {
+			this.chunks = chunks.toArray(new ByteBuffer[chunks.size()]);
+			this.size = size;
+		}
+
+		/**
+		 * Acquires a reference to the entry, unless it has already been freed.
+		 *
+		 * @return
+		 *   whether the reference was acquired.
+		 */
+		boolean acquire() {
+			for(;;) {
+				int count = references.get();
+				if(count == 0) {
+					return false;
+				}
+				if(references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Releases a reference to the entry, returning its chunks to the
+		 * allocator when no references are left.
+		 */
+		void release() {
+			if(references.decrementAndGet() == 0) {
+				for(ByteBuffer chunk : chunks) {
+					allocator.release(chunk);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The stream used to write a resource into off-heap chunks; the resource
+	 * is published in the storage when the stream is closed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class OffHeapOutputStream extends OutputStream implements Abortable {
+
+		/**
+		 * The name of the resource being written.
+		 */
+		private final String resource;
+
+		/**
+		 * The chunks written so far.
+		 */
+		private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+		/**
+		 * The chunk currently being written, if any.
+		 */
+		private ByteBuffer current = null;
+
+		/**
+		 * The number of bytes written so far.
+		 */
+		private long size = 0;
+
+		/**
+		 * Whether the stream has been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource being written.
+		 */
+		OffHeapOutputStream(String resource) {
+			this.resource = resource;
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		/**
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if(closed) {
+				throw new IOException("stream already closed");
+			}
+			while(length > 0) {
+				if(current == null || !current.hasRemaining()) {
+					current = allocator.allocate();
+					if(current == null) {
+						discard();
+						logger.error("no off-heap memory left to store resource '{}'", resource);
+						throw new IOException("no off-heap memory left to store resource '" + resource + "'");
+					}
+					chunks.add(current);
+				}
+				int count = Math.min(length, current.remaining());
+				current.put(buffer, offset, count);
+				offset += count;
+				length -= count;
+				size += count;
+			}
+		}
+
+		/**
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				List<ByteBuffer> views = new ArrayList<ByteBuffer>(chunks.size());
+				for(ByteBuffer chunk : chunks) {
+					chunk.flip();
+					views.add(chunk);
+				}
+				Entry previous = contents.put(resource, new Entry(views, size));
+				if(previous != null) {
+					previous.release();
+				}
+				logger.trace("stored {} bytes off-heap for resource '{}'", size, resource);
+			}
+		}
+
+		/**
+		 * Returns the chunks written so far to the allocator.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() {
+			if(!closed) {
+				discard();
+			}
+		}
+
+		/**
+		 * Returns all chunks to the allocator and marks the stream as closed.
+		 */
+		private void discard() {
+			closed = true;
+			for(ByteBuffer chunk : chunks) {
+				allocator.release(chunk);
+			}
+			chunks.clear();
+		}
+	}
+
+	/**
+	 * A stream reading a resource through read-only views on its chunks.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class OffHeapInputStream extends InputStream {
+
+		/**
+		 * The entry being read.
+		 */
+		private Entry entry;
+
+		/**
+		 * The index of the chunk being read.
+		 */
+		private int index = 0;
+
+		/**
+		 * A read-only view on the chunk being read.
+		 */
+		private ByteBuffer current;
+
+		/**
+		 * The number of bytes left to read.
+		 */
+		private long left;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param entry
+		 *   the entry to read, on which a reference has already been acquired.
+		 */
+		OffHeapInputStream(Entry entry) {
+			this.entry = entry;
+			this.left = entry.size;
+			this.current = entry.chunks.length > 0 ? entry.chunks[0].asReadOnlyBuffer() : null;
+		}
+
+		/**
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			byte[] buffer = new byte[1];
+			return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+		}
+
+		/**
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if(entry == null) {
+				throw new IOException("stream already closed");
+			}
+			if(length == 0) {
+				return 0;
+			}
+			if(left == 0) {
+				return -1;
+			}
+			int read = 0;
+			while(length > 0 && left > 0) {
+				if(!current.hasRemaining()) {
+					current = entry.chunks[++index].asReadOnlyBuffer();
+				}
+				int count = Math.min(length, current.remaining());
+				current.get(buffer, offset, count);
+				offset += count;
+				length -= count;
+				left -= count;
+				read += count;
+			}
+			return read;
+		}
+
+		/**
+		 * Skips whole chunks without reading them.
+		 * 
+		 * @see java.io.InputStream#skip(long)
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			if(entry == null) {
+				throw new IOException("stream already closed");
+			}
+			long skipped = 0;
+			while(n > 0 && left > 0) {
+				if(!current.hasRemaining()) {
+					current = entry.chunks[++index].asReadOnlyBuffer();
+				}
+				int count = (int)Math.min(n, current.remaining());
+				current.position(current.position() + count);
+				n -= count;
+				left -= count;
+				skipped += count;
+			}
+			return skipped;
+		}
+
+		/**
+		 * @see java.io.InputStream#available()
+		 */
+		@Override
+		public int available() {
+			return (int)Math.min(Integer.MAX_VALUE, left);
+		}
+
+		/**
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() {
+			if(entry != null) {
+				entry.release();
+				entry = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.dihedron.core.License;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simple allocator of fixed-size chunks of off-heap memory; memory is reserved
+ * from the operating system in large direct buffers (slabs), which are lazily
+ * allocated as needed up to a maximum number and are then sliced into chunks of
+ * equal size. Released chunks are kept in a free list and recycled, so direct
+ * memory is never returned to the system and never involves the garbage
+ * collector once allocated. This class is thread-safe.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class SlabAllocator {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(SlabAllocator.class);
+
+	/**
+	 * The default size of a chunk (64 kilobytes).
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The default size of a slab (16 megabytes).
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The size of each chunk, in bytes.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * The number of chunks in each slab.
+	 */
+	private final int chunksPerSlab;
+
+	/**
+	 * The maximum number of slabs that can be allocated.
+	 */
+	private final int maxSlabs;
+
+	/**
+	 * The number of slabs allocated so far.
+	 */
+	private int slabs = 0;
+
+	/**
+	 * The number of chunks currently in use.
+	 */
+	private long used = 0;
+
+	/**
+	 * The list of free chunks.
+	 */
+	private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   the maximum amount of off-heap memory to allocate, in bytes; it is
+	 *   rounded up to a multiple of the slab size.
+	 */
+	public SlabAllocator(long capacity) {
+		this(capacity, DEFAULT_SLAB_SIZE, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   the maximum amount of off-heap memory to allocate, in bytes; it is
+	 *   rounded up to a multiple of the slab size.
+	 * @param slabSize
+	 *   the size of each slab, in bytes; it is rounded down to a multiple of the
+	 *   chunk size.
+	 * @param chunkSize
+	 *   the size of each chunk, in bytes.
+	 */
+	public SlabAllocator(long capacity, int slabSize, int chunkSize) {
+		if(capacity <= 0 || slabSize <= 0 || chunkSize <= 0 || chunkSize > slabSize) {
+			logger.error("invalid allocator parameters (capacity: {}, slab size: {}, chunk size: {})", capacity, slabSize, chunkSize);
+			throw new IllegalArgumentException("invalid allocator parameters");
+		}
+		this.chunkSize = chunkSize;
+		this.chunksPerSlab = slabSize / chunkSize;
+		long slabBytes = (long)chunksPerSlab * chunkSize;
+		this.maxSlabs = (int)Math.min(Integer.MAX_VALUE, (capacity + slabBytes - 1) / slabBytes);
+		logger.debug("creating slab allocator with {} slabs of {} chunks of {} bytes", maxSlabs, chunksPerSlab, chunkSize);
+	}
+
+	/**
+	 * Returns the size of each chunk.
+	 *
+	 * @return
+	 *   the size of each chunk, in bytes.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the maximum amount of memory that can be allocated.
+	 *
+	 * @return
+	 *   the allocator capacity, in bytes.
+	 */
+	public long getCapacity() {
+		return (long)maxSlabs * chunksPerSlab * chunkSize;
+	}
+
+	/**
+	 * Returns the amount of off-heap memory reserved from the system so far.
+	 *
+	 * @return
+	 *   the amount of reserved memory, in bytes.
+	 */
+	public synchronized long getReserved() {
+		return (long)slabs * chunksPerSlab * chunkSize;
+	}
+
+	/**
+	 * Returns the amount of memory in chunks that are currently in use.
+	 *
+	 * @return
+	 *   the amount of memory in use, in bytes.
+	 */
+	public synchronized long getUsed() {
+		return used * chunkSize;
+	}
+
+	/**
+	 * Allocates a chunk; if no free chunk is available and the maximum number of
+	 * slabs has not been reached yet, a new slab is reserved.
+	 *
+	 * @return
+	 *   a cleared chunk, or {@code null} if the allocator is exhausted.
+	 */
+	public synchronized ByteBuffer allocate() {
+		if(free.isEmpty()) {
+			if(slabs == maxSlabs) {
+				logger.warn("off-heap memory exhausted ({} slabs in use)", slabs);
+				return null;
+			}
+			ByteBuffer slab = ByteBuffer.allocateDirect(chunksPerSlab * chunkSize);
+			for(int i = 0; i < chunksPerSlab; ++i) {
+				slab.limit((i + 1) * chunkSize).position(i * chunkSize);
+				free.push(slab.slice());
+			}
+			++slabs;
+			logger.debug("reserved slab #{} ({} bytes)", slabs, chunksPerSlab * chunkSize);
+		}
+		ByteBuffer chunk = free.pop();
+		chunk.clear();
+		++used;
+		return chunk;
+	}
+
+	/**
+	 * Returns a chunk to the free list.
+	 *
+	 * @param chunk
+	 *   a chunk obtained through {@link #allocate()}; it must not be used any
+	 *   more after being released.
+	 */
+	public synchronized void release(ByteBuffer chunk) {
+		if(chunk != null) {
+			free.push(chunk);
+			--used;
+		}
+	}
+}
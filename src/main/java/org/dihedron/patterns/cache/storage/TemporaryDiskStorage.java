@@ -6,27 +6,56 @@
 package org.dihedron.patterns.cache.storage;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.Abortable;
 import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * This class implements the mechanics to persist cache resources onto disk.
+ * This class implements the mechanics to persist cache resources onto disk, in
+ * temporary files that do not survive the process.
+ * <p>
+ * Each instance names its files after a unique prefix, and holds a lock on a
+ * file named after the same prefix for as long as it is alive; the files are
+ * removed by {@link #shutdown()} or, failing that, by a shutdown hook, and the
+ * files left behind by instances that died without cleaning up (whose lock is
+ * no longer held) are removed when a new instance is created on the same
+ * directory. Files of deleted or overwritten resources are truncated and kept
+ * aside, up to a maximum, to be recycled for new resources instead of being
+ * deleted and created anew; since files being read are only recycled once all
+ * their readers have been closed, readers always see the data they opened.
+ * This class is thread-safe.
+ * </p>
  * 
  * @author Andrea Funto'
  */
@@ -49,6 +78,34 @@ public class TemporaryDiskStorage extends AbstractStorage {
 	public static final boolean DEFAULT_CREATE_IF_MISSING = true;
 	
 	/** 
+	 * The default maximum number of files kept aside for recycling.
+	 */
+	public static final int DEFAULT_MAX_SPARE_FILES = 32;
+
+	/**
+	 * The extension of the files holding the resources.
+	 */
+	private static final String FILE_SUFFIX = ".tmp";
+
+	/**
+	 * The extension of the files locked by live instances.
+	 */
+	private static final String LOCK_SUFFIX = ".lock";
+
+	/**
+	 * The number of instances created so far in this process, used to tell them
+	 * apart.
+	 */
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	/**
+	 * The instances of this process that have not been cleaned up yet; their
+	 * lock files are never opened by the sweep, since closing any channel on a
+	 * file drops all the locks the process holds on it.
+	 */
+	private static final Set<String> live = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
 	 * The directory where the cache is kept. 
 	 */
 	private File directory;
@@ -60,9 +117,47 @@ public class TemporaryDiskStorage extends AbstractStorage {
 	private String instance;
 	
 	/**
-	 * The index of the cache contents.
+	 * The index of the cache contents, sorted by resource name so that listing
+	 * resources by regular expression only visits the range of names beginning
+	 * with its literal prefix.
+	 */
+	private ConcurrentNavigableMap<String, Entry> index = new ConcurrentSkipListMap<String, Entry>();
+
+	/**
+	 * The empty files kept aside for recycling.
+	 */
+	private final Queue<File> spares = new ConcurrentLinkedQueue<File>();
+
+	/**
+	 * The number of files kept aside for recycling, including those being
+	 * truncated.
+	 */
+	private final AtomicInteger spareCount = new AtomicInteger();
+
+	/**
+	 * The maximum number of files kept aside for recycling.
 	 */
-	private Map<String, File> index = new HashMap<String, File>();
+	private volatile int maxSpareFiles = DEFAULT_MAX_SPARE_FILES;
+
+	/**
+	 * The number of files created so far, used to name them.
+	 */
+	private final AtomicLong files = new AtomicLong();
+
+	/**
+	 * The task removing the files of this instance.
+	 */
+	private Cleaner cleaner;
+
+	/**
+	 * The thread running the cleaner at shutdown, if not run before.
+	 */
+	private Thread hook;
+
+	/**
+	 * Whether the storage has been shut down.
+	 */
+	private volatile boolean shutdown = false;
 
 	/**
 	 * Constructor; creates the cache storage in the default directory.
@@ -113,7 +208,7 @@ public class TemporaryDiskStorage extends AbstractStorage {
 	 *   parameters is not compatible with the creation of the cache.
 	 */
 	public TemporaryDiskStorage(File path, boolean createIfMissing) throws CacheException {
-		instance = ManagementFactory.getRuntimeMXBean().getName();
+		instance = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9@._]", "_") + "-" + instances.incrementAndGet();
 		if(path == null) {
 			throw new CacheException("Null file specified for the cache storage");
 		}		
@@ -139,6 +234,19 @@ public class TemporaryDiskStorage extends AbstractStorage {
 				throw new CacheException("Directory " + path.getAbsolutePath() + " does not exist");				
 			}
 		}
+		sweep();
+		File lock = new File(directory, instance + LOCK_SUFFIX);
+		live.add(instance);
+		try {
+			FileChannel channel = FileChannel.open(lock.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			cleaner = new Cleaner(directory, instance, channel, channel.lock());
+		} catch(IOException e) {
+			live.remove(instance);
+			logger.error("error locking file '" + lock.getAbsolutePath() + "'", e);
+			throw new CacheException("Error locking file " + lock.getAbsolutePath(), e);
+		}
+		hook = new Thread(cleaner, "TemporaryDiskStorage-" + instance);
+		Runtime.getRuntime().addShutdownHook(hook);
 	}
 		
 	/**
@@ -167,6 +275,101 @@ public class TemporaryDiskStorage extends AbstractStorage {
 		return directory;
 	}
 		
+	/**
+	 * Returns the maximum number of files kept aside for recycling.
+	 *
+	 * @return
+	 *   the maximum number of spare files.
+	 */
+	public int getMaxSpareFiles() {
+		return maxSpareFiles;
+	}
+
+	/**
+	 * Sets the maximum number of files of deleted or overwritten resources kept
+	 * aside for recycling; any excess files are deleted.
+	 *
+	 * @param maxSpareFiles
+	 *   the maximum number of spare files; 0 disables recycling.
+	 * @return
+	 *   the storage itself, for method chaining.
+	 */
+	public TemporaryDiskStorage setMaxSpareFiles(int maxSpareFiles) {
+		this.maxSpareFiles = Math.max(0, maxSpareFiles);
+		while(spareCount.get() > this.maxSpareFiles) {
+			File file = spares.poll();
+			if(file == null) {
+				break;
+			}
+			spareCount.decrementAndGet();
+			delete(file);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of files currently kept aside for recycling.
+	 *
+	 * @return
+	 *   the number of spare files.
+	 */
+	public int getSpareFileCount() {
+		return spareCount.get();
+	}
+
+	/**
+	 * Creates empty files and keeps them aside for recycling, up to the maximum
+	 * number of spare files, so that the first resources stored do not pay for
+	 * the creation of their files.
+	 *
+	 * @param count
+	 *   the number of files to create.
+	 * @return
+	 *   the storage itself, for method chaining.
+	 * @throws CacheException
+	 *   if the files cannot be created.
+	 */
+	public TemporaryDiskStorage preallocate(int count) throws CacheException {
+		for(int i = 0; i < count; ++i) {
+			if(spareCount.incrementAndGet() > maxSpareFiles) {
+				spareCount.decrementAndGet();
+				break;
+			}
+			File file = newFile();
+			try {
+				if(!file.createNewFile()) {
+					throw new IOException("file already exists");
+				}
+			} catch(IOException e) {
+				spareCount.decrementAndGet();
+				logger.error("error allocating temporary file '" + file.getAbsolutePath() + "'", e);
+				throw new CacheException("error allocating temporary file '" + file.getAbsolutePath() + "'", e);
+			}
+			spares.offer(file);
+		}
+		return this;
+	}
+
+	/**
+	 * Deletes all the files of the storage and releases its lock; the storage
+	 * must not be used afterwards. If not invoked, the files are deleted when
+	 * the process exits normally.
+	 */
+	public void shutdown() {
+		if(shutdown) {
+			return;
+		}
+		shutdown = true;
+		index.clear();
+		spares.clear();
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch(IllegalStateException e) {
+			// the process is exiting, the hook is running
+		}
+		cleaner.run();
+	}
+
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
 	 */
@@ -175,12 +378,30 @@ public class TemporaryDiskStorage extends AbstractStorage {
 		return index.isEmpty();
 	}	
 
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#size()
+	 */
+	@Override
+	public long size() {
+		return index.size();
+	}
+
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
 	 */
 	@Override
 	public boolean contains(String resource) {
-		return index.containsKey(resource);
+		return resource != null && index.containsKey(resource);
+	}
+
+	/**
+	 * Iterates lazily over the live index.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#iterator(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public Iterator<String> iterator(Regex regex) {
+		return iterate(index.navigableKeySet(), regex);
 	}
 	
 	/**
@@ -193,35 +414,38 @@ public class TemporaryDiskStorage extends AbstractStorage {
 			return index.keySet().toArray(new String[0]);
 		} else {		
 			logger.debug("returning list of resources matching /{}/", regex);
-			List<String> matched = new ArrayList<String>();
-			for(String key : index.keySet()) {
-				if(regex.matches(key)) {
-					matched.add(key);
-				}				
-			}
-			return matched.toArray(new String[0]);
+			List<String> matched = select(index.navigableKeySet(), regex);
+			return matched.toArray(new String[matched.size()]);
 		}
 	}	
 	
 	/**
-	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String, java.io.InputStream)
+	 * Writes the resource into a new (or recycled) file, which replaces the
+	 * previous version of the resource, if any, when the stream is closed; 
+	 * storing is not allowed after {@link #shutdown()}.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
 	 */	
 	@Override
 	public OutputStream store(String resource) throws CacheException {
-		File file = null;
+		if(resource == null) {
+			return null;
+		}
+		if(shutdown) {
+			throw new CacheException("storage in '" + directory.getAbsolutePath() + "' has been shut down");
+		}
+		File file = spares.poll();
+		if(file != null) {
+			spareCount.decrementAndGet();
+		} else {
+			file = newFile();
+		}
 		try {
-			delete(resource, true);
-			file = File.createTempFile(instance, null, directory);
-			file.deleteOnExit();
 			logger.debug("storing '{}' into cache as '{}'", resource, file.getAbsolutePath());
-			index.put(resource, file);
-			return new FileOutputStream(file);
+			return new TemporaryOutputStream(resource, file);
 		} catch (FileNotFoundException e) {
 			logger.error("error opening output stream", e);
 			throw new CacheException("error opening output stream to '" + file.getAbsolutePath() + "'", e);
-		} catch (IOException e) {
-			logger.error("error allocating temporary file", e);
-			throw new CacheException("error allocating temporary file", e);
 		}
 	}
 	
@@ -230,12 +454,26 @@ public class TemporaryDiskStorage extends AbstractStorage {
 	 */
 	@Override
 	public InputStream retrieve(String resource) {
-		try {
-			if(index.containsKey(resource)) {
-				return new FileInputStream(index.get(resource));
+		return retrieve(resource, 0, -1);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		Entry entry = acquire(resource);
+		if(entry != null) {
+			try {
+				InputStream stream = open(entry.file, offset, length);
+				if(stream != null) {
+					return new EntryInputStream(stream, entry);
+				}
+				logger.error("resource '{}' does not exist", resource);
+			} catch (IOException e) {
+				logger.error("error opening resource '" + resource + "'", e);
 			}
-		} catch (FileNotFoundException e) {
-			logger.error("resource '{}' does not exist", resource);
+			entry.release();
 		}
 		return null;
 	}
@@ -245,8 +483,13 @@ public class TemporaryDiskStorage extends AbstractStorage {
 	 */
 	@Override
 	public long retrieveSize(String resource) {
-		if(index.containsKey(resource)) {
-			return index.get(resource).length();
+		Entry entry = acquire(resource);
+		if(entry != null) {
+			try {
+				return entry.file.length();
+			} finally {
+				entry.release();
+			}
 		}
 		return -1;
 	}
@@ -258,20 +501,29 @@ public class TemporaryDiskStorage extends AbstractStorage {
 		logger.debug("deleting files that match /{}/ from cache", regex);
 		for(String resource : list(regex)) {
 			logger.debug("removing '{}' from cache", resource);
-			delete(resource, true);
+			delete(resource, false);
 		}
 	}
 
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
 	 */
-	public void delete(String resource, boolean caseSensitive){
+	public void delete(String resource, boolean caseInsensitive){
+		if(resource == null) {
+			return;
+		}
 		logger.debug("deleting resource '{}' from cache", resource);
-		if(index.containsKey(resource)) {
-			File file = index.get(resource);
-			logger.debug("removing '{}' from cache", file.getName());
-			boolean result = file.delete();
-			logger.debug("file {}removed from cache", (result ? "" : "not "));
+		if(!caseInsensitive) {
+			Entry entry = index.remove(resource);
+			if(entry != null) {
+				entry.retire();
+			}
+			return;
+		}
+		for(Map.Entry<String, Entry> entry : index.entrySet()) {
+			if(entry.getKey().equalsIgnoreCase(resource) && index.remove(entry.getKey(), entry.getValue())) {
+				entry.getValue().retire();
+			}
 		}		
 	}
 	
@@ -282,7 +534,398 @@ public class TemporaryDiskStorage extends AbstractStorage {
 		logger.debug("clearing cache");				
 		for(String resource : list()) {
 			logger.debug("removing '{}' from cache", resource);
-			delete(resource, true);
+			delete(resource, false);
+		}
+	}
+
+	/**
+	 * Returns the entry of the given resource, registering a reader on it so
+	 * that its file is not recycled until released.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   the entry, or {@code null} if the resource is not in the storage.
+	 */
+	private Entry acquire(String resource) {
+		if(resource == null) {
+			return null;
+		}
+		for(;;) {
+			Entry entry = index.get(resource);
+			// retired entries have already been replaced or removed from the index
+			if(entry == null || entry.acquire()) {
+				return entry;
+			}
+		}
+	}
+
+	/**
+	 * Returns a new file, with a unique name beginning with the prefix of this
+	 * instance.
+	 *
+	 * @return
+	 *   the new file; it is not created on disk.
+	 */
+	private File newFile() {
+		return new File(directory, instance + "-" + files.incrementAndGet() + FILE_SUFFIX);
+	}
+
+	/**
+	 * Truncates a file no longer in use and keeps it aside for recycling, or
+	 * deletes it if there are enough spare files already.
+	 *
+	 * @param file
+	 *   the file.
+	 */
+	private void recycle(File file) {
+		if(!shutdown && spareCount.incrementAndGet() <= maxSpareFiles) {
+			try(RandomAccessFile truncator = new RandomAccessFile(file, "rw")) {
+				truncator.setLength(0);
+				spares.offer(file);
+				logger.trace("file '{}' kept aside for recycling", file.getName());
+				return;
+			} catch(IOException e) {
+				logger.warn("error truncating file '" + file.getAbsolutePath() + "'", e);
+			}
+		}
+		spareCount.decrementAndGet();
+		delete(file);
+	}
+
+	/**
+	 * Deletes a file, logging any failure.
+	 *
+	 * @param file
+	 *   the file.
+	 */
+	private static void delete(File file) {
+		if(!file.delete() && file.exists()) {
+			logger.warn("could not delete file '{}'", file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Removes the files left behind by instances that died without cleaning up,
+	 * i.e. whose lock file exists but is not locked anymore; the lock files of
+	 * the live instances of this process are skipped without being opened.
+	 */
+	private void sweep() {
+		File[] locks = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(LOCK_SUFFIX);
+			}
+		});
+		if(locks == null) {
+			return;
+		}
+		for(File lock : locks) {
+			String owner = lock.getName().substring(0, lock.getName().length() - LOCK_SUFFIX.length());
+			if(live.contains(owner)) {
+				continue;
+			}
+			FileChannel channel = null;
+			FileLock acquired = null;
+			try {
+				channel = FileChannel.open(lock.toPath(), StandardOpenOption.WRITE);
+				acquired = channel.tryLock();
+				if(acquired != null) {
+					logger.info("removing files left behind in {} by instance '{}'", directory.getAbsolutePath(), owner);
+					new Cleaner(directory, owner, channel, acquired).run();
+				}
+			} catch(OverlappingFileLockException e) {
+				// held by an instance of this process loaded by another class loader
+			} catch(IOException e) {
+				logger.warn("error checking lock file '" + lock.getAbsolutePath() + "'", e);
+			} finally {
+				if(acquired == null && channel != null) {
+					// the cleaner owns the channel only if the lock was acquired
+					try {
+						channel.close();
+					} catch(IOException e) {
+						logger.warn("error closing lock file '" + lock.getAbsolutePath() + "'", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A resource in the storage, with the number of open readers of its file;
+	 * once retired (because the resource was deleted or overwritten), the file
+	 * is recycled as soon as it has no readers.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class Entry {
+
+		/**
+		 * The file holding the resource.
+		 */
+		private final File file;
+
+		/**
+		 * The number of open readers.
+		 */
+		private int readers = 0;
+
+		/**
+		 * Whether the entry has been removed from the index.
+		 */
+		private boolean retired = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param file
+		 *   the file holding the resource.
+		 */
+		Entry(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Registers a reader, unless the entry has been retired.
+		 *
+		 * @return
+		 *   whether the reader has been registered.
+		 */
+		synchronized boolean acquire() {
+			if(retired) {
+				return false;
+			}
+			++readers;
+			return true;
+		}
+
+		/**
+		 * Unregisters a reader, recycling the file if it was the last one on a
+		 * retired entry.
+		 */
+		void release() {
+			boolean recycle;
+			synchronized(this) {
+				recycle = --readers == 0 && retired;
+			}
+			if(recycle) {
+				recycle(file);
+			}
+		}
+
+		/**
+		 * Retires the entry, recycling the file if there are no readers; must be
+		 * called after removing the entry from the index.
+		 */
+		void retire() {
+			boolean recycle;
+			synchronized(this) {
+				retired = true;
+				recycle = readers == 0;
+			}
+			if(recycle) {
+				recycle(file);
+			}
+		}
+	}
+
+	/**
+	 * The stream reading a resource, releasing its entry when closed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static class EntryInputStream extends FilterInputStream {
+
+		/**
+		 * The entry of the resource.
+		 */
+		private final Entry entry;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param stream
+		 *   the stream reading the file.
+		 * @param entry
+		 *   the entry of the resource.
+		 */
+		EntryInputStream(InputStream stream, Entry entry) {
+			super(stream);
+			this.entry = entry;
+		}
+
+		/**
+		 * @see java.io.FilterInputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					entry.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The stream writing a resource into its file, and publishing it in the
+	 * index when closed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class TemporaryOutputStream extends CacheOutputStream<FileOutputStream> implements Abortable {
+
+		/**
+		 * The name of the resource being written.
+		 */
+		private final String resource;
+
+		/**
+		 * The file being written.
+		 */
+		private final File file;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource being written.
+		 * @param file
+		 *   the file being written.
+		 * @throws FileNotFoundException
+		 *   if the file cannot be opened for writing.
+		 */
+		TemporaryOutputStream(String resource, File file) throws FileNotFoundException {
+			super(new FileOutputStream(file));
+			this.resource = resource;
+			this.file = file;
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					super.close();
+				} catch(IOException e) {
+					logger.error("error committing resource '" + resource + "' to '" + file.getAbsolutePath() + "'", e);
+					recycle(file);
+					throw e;
+				}
+				Entry previous = index.put(resource, new Entry(file));
+				if(previous != null) {
+					previous.retire();
+				}
+			}
+		}
+
+		/**
+		 * Recycles the file, leaving the previous version in place.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					recycle(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The task deleting the files of an instance and its lock file.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static class Cleaner implements Runnable {
+
+		/**
+		 * The directory of the storage.
+		 */
+		private final File directory;
+
+		/**
+		 * The prefix of the files of the instance.
+		 */
+		private final String instance;
+
+		/**
+		 * The channel on the lock file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The lock on the lock file.
+		 */
+		private final FileLock lock;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param directory
+		 *   the directory of the storage.
+		 * @param instance
+		 *   the prefix of the files of the instance.
+		 * @param channel
+		 *   the channel on the lock file.
+		 * @param lock
+		 *   the lock on the lock file.
+		 */
+		Cleaner(File directory, String instance, FileChannel channel, FileLock lock) {
+			this.directory = directory;
+			this.instance = instance;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			File[] files = directory.listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.getName().startsWith(instance + "-") && file.getName().endsWith(FILE_SUFFIX);
+				}
+			});
+			if(files != null) {
+				for(File file : files) {
+					delete(file);
+				}
+			}
+			// the lock file is deleted while still locked, so no other instance
+			// can take it over in the meanwhile
+			delete(new File(directory, instance + LOCK_SUFFIX));
+			try {
+				lock.release();
+				channel.close();
+			} catch(IOException e) {
+				logger.warn("error releasing lock of instance '" + instance + "'", e);
+			} finally {
+				live.remove(instance);
+			}
 		}		
 	}
 }
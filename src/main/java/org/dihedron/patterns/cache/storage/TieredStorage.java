@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.core.strings.Strings;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.CacheOutputStream;
+import org.dihedron.patterns.cache.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage composed of a fast, bounded memory tier on top of a slower but
+ * larger (typically disk-based) tier. New resources are written to the memory
+ * tier; when the memory tier evicts them, they are demoted to the lower tier
+ * instead of being dropped. Resources retrieved from the lower tier are promoted
+ * into the memory tier (provided they are not too large), so that the working
+ * set is served from memory while the long tail is kept on disk.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TieredStorage extends AbstractStorage implements MemoryStorage.EvictionListener {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TieredStorage.class);
+
+	/**
+	 * The memory tier.
+	 */
+	private final MemoryStorage memory;
+
+	/**
+	 * The lower tier.
+	 */
+	private final Storage lower;
+
+	/**
+	 * The maximum size of resources promoted from the lower tier into memory.
+	 */
+	private final long maxPromotedSize;
+
+	/**
+	 * The data of the resources that are in the memory tier only, and must be
+	 * written to the lower tier when evicted from memory, by name; since each
+	 * published version has its own data array, the eviction of an older 
+	 * version of a resource never takes the mark of a newer one.
+	 */
+	private final ConcurrentMap<String, byte[]> dirty = new ConcurrentHashMap<String, byte[]>();
+	
+	/**
+	 * The listener marking the resources written to the memory tier as dirty
+	 * when published, before they can be evicted.
+	 */
+	private final MemoryStorage.PublicationListener publisher = new MemoryStorage.PublicationListener() {
+		@Override
+		public void onPublication(String resource, byte[] data) {
+			dirty.put(resource, data);
+		}
+	};
+
+	/**
+	 * The number of stripes resource names are hashed onto to detect writes 
+	 * racing with promotions.
+	 */
+	private static final int STRIPES = 64;
+
+	/**
+	 * The number of writes committed on the resources of each stripe; a 
+	 * promotion only goes ahead if no resource of its stripe has been written 
+	 * since the promoted copy was looked up in the lower tier. Each element is
+	 * guarded by the corresponding lock.
+	 */
+	private final long[] versions = new long[STRIPES];
+
+	/**
+	 * The locks guarding the versions of the stripes, and making the check of a 
+	 * version atomic with the publication of a promoted copy.
+	 */
+	private final Object[] locks = new Object[STRIPES];
+
+	/**
+	 * Constructor; resources up to a quarter of the memory tier size are
+	 * promoted into memory when retrieved from the lower tier.
+	 *
+	 * @param memory
+	 *   the memory tier; it should be bounded.
+	 * @param lower
+	 *   the lower tier.
+	 */
+	public TieredStorage(MemoryStorage memory, Storage lower) {
+		this(memory, lower, memory.getMaxBytes() != MemoryStorage.UNBOUNDED ? memory.getMaxBytes() / 4 : Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param memory
+	 *   the memory tier; it should be bounded.
+	 * @param lower
+	 *   the lower tier.
+	 * @param maxPromotedSize
+	 *   the maximum size of resources promoted from the lower tier into memory
+	 *   when retrieved; larger resources are always served from the lower tier.
+	 */
+	public TieredStorage(MemoryStorage memory, Storage lower, long maxPromotedSize) {
+		if(!memory.isBounded()) {
+			logger.warn("memory tier is unbounded, resources will never be demoted");
+		}
+		this.memory = memory;
+		this.lower = lower;
+		this.maxPromotedSize = maxPromotedSize;
+		for(int i = 0; i < STRIPES; ++i) {
+			locks[i] = new Object();
+		}
+		this.memory.setEvictionListener(this);
+	}
+
+	/**
+	 * Returns the memory tier.
+	 *
+	 * @return
+	 *   the memory tier.
+	 */
+	public MemoryStorage getMemoryTier() {
+		return memory;
+	}
+
+	/**
+	 * Returns the lower tier.
+	 *
+	 * @return
+	 *   the lower tier.
+	 */
+	public Storage getLowerTier() {
+		return lower;
+	}
+
+	/**
+	 * Writes all resources that are only in the memory tier to the lower tier,
+	 * e.g. before shutting down; resources are kept in memory.
+	 *
+	 * @throws CacheException
+	 *   if a resource cannot be written to the lower tier.
+	 */
+	public void flush() throws CacheException {
+		for(Map.Entry<String, byte[]> entry : dirty.entrySet()) {
+			String resource = entry.getKey();
+			if(dirty.remove(resource, entry.getValue())) {
+				try {
+					write(resource, new ByteArrayInputStream(entry.getValue()));
+				} catch(IOException e) {
+					dirty.putIfAbsent(resource, entry.getValue());
+					logger.error("error flushing resource '" + resource + "' to lower tier", e);
+					throw new CacheException("error flushing resource '" + resource + "' to lower tier", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Demotes a resource evicted from the memory tier to the lower tier, unless
+	 * the lower tier already has an up-to-date copy, or the evicted version has
+	 * already been replaced.
+	 *
+	 * @see org.dihedron.patterns.cache.storage.MemoryStorage.EvictionListener#onEviction(java.lang.String, byte[])
+	 */
+	@Override
+	public void onEviction(String resource, byte[] data) {
+		if(dirty.remove(resource, data)) {
+			logger.debug("demoting resource '{}' ({} bytes) to lower tier", resource, data.length);
+			try {
+				write(resource, new ByteArrayInputStream(data));
+			} catch(IOException | CacheException e) {
+				logger.error("error demoting resource '" + resource + "' to lower tier, resource lost", e);
+			}
+		}
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return memory.isEmpty() && lower.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return memory.contains(resource) || lower.contains(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		Set<String> resources = new TreeSet<String>();
+		Collections.addAll(resources, memory.list(regex));
+		String[] names = lower.list(regex);
+		if(names != null) {
+			Collections.addAll(resources, names);
+		}
+		return resources.toArray(new String[resources.size()]);
+	}
+
+	/**
+	 * Stores the resource in the memory tier; when the stream is closed, any 
+	 * copy in the lower tier is removed, since it would be stale, while it is 
+	 * left in place if the stream is aborted.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		if(Strings.isValid(resource)) {
+			return new TieredOutputStream(resource, memory.store(resource, publisher));
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves the resource from the memory tier if available, otherwise from
+	 * the lower tier, in which case the resource is promoted into memory.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		InputStream stream = memory.retrieve(resource);
+		if(stream == null) {
+			long size = lower.retrieveSize(resource);
+			if(size >= 0 && size <= maxPromotedSize) {
+				promote(resource, size);
+				stream = memory.retrieve(resource);
+			}
+			if(stream == null) {
+				stream = lower.retrieve(resource);
+			}
+		}
+		return stream;
+	}
+
+	/**
+	 * Retrieves the range from the memory tier if the resource is available 
+	 * there, otherwise from the lower tier; the resource is not promoted, since
+	 * that would mean reading it whole.
+	 *
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		InputStream stream = memory.retrieve(resource, offset, length);
+		return stream != null ? stream : lower.retrieve(resource, offset, length);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		long size = memory.retrieveSize(resource);
+		return size != -1 ? size : lower.retrieveSize(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		for(String resource : memory.list(regex)) {
+			dirty.remove(resource);
+		}
+		memory.delete(regex);
+		lower.delete(regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public void delete(String resource, boolean caseInsensitive) {
+		for(String element : dirty.keySet()) {
+			if(caseInsensitive ? element.equalsIgnoreCase(resource) : element.equals(resource)) {
+				dirty.remove(element);
+			}
+		}
+		memory.delete(resource, caseInsensitive);
+		lower.delete(resource, caseInsensitive);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public void clear() {
+		dirty.clear();
+		memory.clear();
+		lower.clear();
+	}
+
+	/**
+	 * Copies a resource from the lower tier into the memory tier, unless it is
+	 * written while being promoted: the version of its stripe is taken before
+	 * opening the lower tier copy, and checked again when publishing the copy,
+	 * so that the stale copy never replaces a newer version.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param size
+	 *   the size of the resource.
+	 */
+	private void promote(String resource, long size) {
+		int stripe = stripe(resource);
+		long version;
+		synchronized(locks[stripe]) {
+			version = versions[stripe];
+		}
+		OutputStream output = null;
+		try(InputStream input = lower.retrieve(resource)) {
+			if(input == null) {
+				return;
+			}
+			logger.debug("promoting resource '{}' ({} bytes) to memory tier", resource, size);
+			output = memory.store(resource);
+			Streams.copy(input, output);
+			synchronized(locks[stripe]) {
+				if(versions[stripe] != version) {
+					logger.debug("resource '{}' written while being promoted, promotion skipped", resource);
+					return;
+				}
+				OutputStream promoted = output;
+				output = null;
+				promoted.close();
+			}
+		} catch(IOException | CacheException e) {
+			logger.warn("error promoting resource '" + resource + "' to memory tier", e);
+		} finally {
+			if(output != null) {
+				try {
+					CacheHelper.abort(memory, resource, output);
+				} catch(IOException e) {
+					logger.warn("error discarding promoted copy of resource '" + resource + "'", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the stripe of the given resource.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @return
+	 *   the index of the stripe.
+	 */
+	private static int stripe(String resource) {
+		return (resource.hashCode() & Integer.MAX_VALUE) % STRIPES;
+	}
+
+	/**
+	 * Writes a resource to the lower tier.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param input
+	 *   the resource data.
+	 * @throws IOException
+	 *   if an error occurs writing the data.
+	 * @throws CacheException
+	 *   if the lower tier cannot store the resource.
+	 */
+	private void write(String resource, InputStream input) throws IOException, CacheException {
+		try(OutputStream output = lower.store(resource)) {
+			Streams.copy(input, output);
+		}
+	}
+
+	/**
+	 * The stream writing a resource to the memory tier; when closed, the copy
+	 * in the lower tier (if any) is removed and the resource is published, as 
+	 * one step with respect to promotions.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class TieredOutputStream extends CacheOutputStream<OutputStream> implements Abortable {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param stream
+		 *   the stream to the memory tier.
+		 */
+		TieredOutputStream(String resource, OutputStream stream) {
+			super(stream);
+			this.resource = resource;
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				int stripe = stripe(resource);
+				synchronized(locks[stripe]) {
+					++versions[stripe];
+					// removed before publishing, so that a demotion of the new
+					// version on publication is not removed as well
+					lower.delete(resource, false);
+					super.close();
+				}
+			}
+		}
+
+		/**
+		 * Discards the resource in the memory tier, leaving any previous version
+		 * in either tier in place.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() throws IOException {
+			if(!closed) {
+				closed = true;
+				CacheHelper.abort(memory, resource, getWrappedStream());
+			}
+		}
+	}
+}
@@ -4,22 +4,31 @@
 
 package org.dihedron.patterns.cache.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.BoundedInputStream;
 import org.dihedron.core.streams.NullOutputStream;
+import org.dihedron.core.streams.Streams;
 import org.dihedron.core.strings.Strings;
 import org.dihedron.core.url.URLFactory;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +48,17 @@ import org.slf4j.LoggerFactory;
  * kind of storage you don't need to get a resource twice, you can simply put its 
  * address into the cache, and then delegate the data retrieval to the storage 
  * engine at the time when the actual data is needed.
+ * <p>
+ * Optionally, a backing storage can be provided: in this case the storage 
+ * behaves like an HTTP-aware cache, keeping the bodies of the resources in the 
+ * backing storage along with their validators ({@code ETag}, {@code 
+ * Last-Modified}) and freshness information ({@code Cache-Control: max-age}, 
+ * {@code Expires}); fresh resources are served from the backing storage 
+ * without contacting the server, stale ones are revalidated with a conditional
+ * request ({@code If-None-Match}, {@code If-Modified-Since}) so that unchanged
+ * resources cost a {@code 304 Not Modified} instead of a full transfer. If the
+ * server cannot be reached, the stale copy is served.
+ * </p>
  *    
  * @author Andrea Funto'
  */
@@ -50,16 +70,28 @@ public class URLStorage extends AbstractStorage {
 	 */
 	private final static Logger logger = LoggerFactory.getLogger(URLStorage.class);
 
+	/**
+	 * The HTTP status returned when the requested range is beyond the end of
+	 * the resource.
+	 */
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	
 	/**
 	 * A proxy address, if connections cannot be direct.
 	 */
 	private Proxy proxy = null;
 	
 	/**
-	 * A hash set containing the URLs of the resources proxied by this virtual
-	 * storage; these are the URLs of the actual resources on the remote server.
+	 * The optional storage where the bodies of the resources are kept.
+	 */
+	private Storage backing = null;
+	
+	/**
+	 * A map containing the URLs of the resources proxied by this virtual 
+	 * storage (these are the URLs of the actual resources on the remote server),
+	 * each with the validators of the copy in the backing storage, if any.
 	 */
-	private Set<String> resources = new HashSet<>();
+	private ConcurrentNavigableMap<String, Validators> resources = new ConcurrentSkipListMap<>();
 	
 	/**
 	 * Constructor.
@@ -77,6 +109,42 @@ public class URLStorage extends AbstractStorage {
 		this.proxy = proxy;
 	}
 	
+	/**
+	 * Constructor.
+	 *
+	 * @param backing
+	 *   the storage where the bodies of the resources are kept and revalidated
+	 *   against the server.
+	 */
+	public URLStorage(Storage backing) {
+		this(null, backing);
+	}
+	
+	/**
+	 * Constructor.
+	 *
+	 * @param proxy
+	 *   a proxy address, if the connection should not be direct.
+	 * @param backing
+	 *   the storage where the bodies of the resources are kept and revalidated
+	 *   against the server.
+	 */
+	public URLStorage(Proxy proxy, Storage backing) {
+		this.proxy = proxy;
+		this.backing = backing;
+	}
+	
+	/**
+	 * Returns the storage where the bodies of the resources are kept.
+	 * 
+	 * @return
+	 *   the backing storage, or {@code null} if resources are always fetched 
+	 *   from the server.
+	 */
+	public Storage getBackingStorage() {
+		return backing;
+	}
+	
 	/**
 	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
 	 */
@@ -91,12 +159,7 @@ public class URLStorage extends AbstractStorage {
 	@Override
 	public String[] list(Regex regex) {
 		if(regex != null && !resources.isEmpty()) {
-			List<String> matches = new ArrayList<>();
-			for(String resource : resources) {
-				if(regex.matches(resource)) {
-					matches.add(resource);
-				}
-			}
+			List<String> matches = select(resources.navigableKeySet(), regex);
 			return matches.toArray(new String[matches.size()]);
 		}
 		return null;
@@ -108,40 +171,96 @@ public class URLStorage extends AbstractStorage {
 	@Override
 	public boolean contains(String resource) {
 		if(Strings.isValid(resource)) {
-			return resources.contains(resource);
+			return resources.containsKey(resource);
 		}
 		return false;
 	}
 
 	/**
+	 * Retrieves the resource from the remote server or, if there is a backing 
+	 * storage, from the backing storage after making sure that its copy is 
+	 * up to date.
+	 * 
 	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
 	 */
 	@Override
 	public InputStream retrieve(String resource) {
+		return retrieve(resource, 0, -1);
+	}
+	
+	/**
+	 * Retrieves a range of the resource; if there is a backing storage, the 
+	 * range is read from the backing storage after making sure that its copy 
+	 * is up to date, otherwise only the range is requested to the remote server
+	 * through an HTTP {@code Range} request. Servers that ignore the range and 
+	 * return the whole resource are supported as well, by skipping the data 
+	 * before the range as it comes in.
+	 * 
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
 		InputStream stream = null;
+		Validators validators = Strings.isValid(resource) ? resources.get(resource) : null;
+		if(validators == null) {
+			return null;
+		}
+		boolean whole = offset <= 0 && length < 0;
 		try {
-			if(contains(resource)) {
+			if(backing == null) {
 				logger.trace("retrieving resource at URL '{}'", resource);
-				URL url = URLFactory.makeURL(resource);
-				stream = url.openConnection(proxy != null ? proxy : Proxy.NO_PROXY).getInputStream();
+				stream = whole ? connect(resource).getInputStream() : request(resource, Math.max(0, offset), length);
+			} else {
+				synchronized(validators) {
+					if(validators.isFresh() && backing.contains(resource)) {
+						logger.trace("resource at URL '{}' is fresh", resource);
+					} else {
+						revalidate(resource, validators);
+					}
+				}
+				stream = whole ? backing.retrieve(resource) : backing.retrieve(resource, offset, length);
 			}
 		} catch (MalformedURLException e) {
 			logger.error("error parsing URL", e);
-		} catch (IOException e) {
-			logger.error("error opening connection", e);
+		} catch (IOException | CacheException e) {
+			if(backing != null && backing.contains(resource)) {
+				logger.warn("error revalidating resource at URL '" + resource + "', serving stale copy", e);
+				stream = whole ? backing.retrieve(resource) : backing.retrieve(resource, offset, length);
+			} else {
+				logger.error("error opening connection", e);
+			}
 		}
 		return stream;
 	}
 	
 	/**
-	 * This implementation would not be able to retrieve the actual web resource 
-	 * size without fully downloading it, so it returns -1 as if there were no 
-	 * such resource in cache.
+	 * Returns the size of the copy in the backing storage, if available, 
+	 * otherwise the size declared by the server (for HTTP resources, through a
+	 * {@code HEAD} request), or -1 if the size is not known.
 	 * 
 	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
 	 */
 	@Override
 	public long retrieveSize(String resource) {
+		if(!contains(resource)) {
+			return -1;
+		}
+		if(backing != null && backing.contains(resource)) {
+			return backing.retrieveSize(resource);
+		}
+		try {
+			URLConnection connection = connect(resource);
+			if(connection instanceof HttpURLConnection) {
+				((HttpURLConnection)connection).setRequestMethod("HEAD");
+				try {
+					return connection.getContentLengthLong();
+				} finally {
+					((HttpURLConnection)connection).disconnect();
+				}
+			}
+		} catch (IOException e) {
+			logger.error("error retrieving size of resource at URL '" + resource + "'", e);
+		}
 		return -1;
 	}
 
@@ -157,7 +276,9 @@ public class URLStorage extends AbstractStorage {
 	@Override
 	public OutputStream store(String resource) {
 		if(Strings.isValid(resource)) {
-			resources.add(resource);
+			if(resources.put(resource, new Validators()) != null && backing != null) {
+				backing.delete(resource, false);
+			}
 			return new NullOutputStream();
 		}
 		return null;
@@ -172,6 +293,9 @@ public class URLStorage extends AbstractStorage {
 		if(matches != null) {
 			for(String match : matches) {
 				resources.remove(match);
+				if(backing != null) {
+					backing.delete(match, false);
+				}
 			}
 		}
 	}
@@ -183,7 +307,7 @@ public class URLStorage extends AbstractStorage {
 	public void delete(String resource, boolean caseInsensitive) {
 		if(resource != null) {
 			List<String> removables = new ArrayList<>();
-			for(String element : resources) {
+			for(String element : resources.keySet()) {
 				
 				if(caseInsensitive ? element.equalsIgnoreCase(resource) : element.equals(resource)) {
 					// NOTE: do not remove from set while iterating: this has
@@ -192,7 +316,12 @@ public class URLStorage extends AbstractStorage {
 					removables.add(element);
 				}
 			}			
-			resources.removeAll(removables);
+			for(String removable : removables) {
+				resources.remove(removable);
+				if(backing != null) {
+					backing.delete(removable, false);
+				}
+			}
 		}		
 	}
 
@@ -201,6 +330,194 @@ public class URLStorage extends AbstractStorage {
 	 */
 	@Override
 	public void clear() {
+		if(backing != null) {
+			for(String resource : resources.keySet()) {
+				backing.delete(resource, false);
+			}
+		}
 		resources.clear();
 	}
+	
+	/**
+	 * Opens a connection to the given resource.
+	 * 
+	 * @param resource
+	 *   the URL of the resource.
+	 * @return
+	 *   the (not yet connected) connection.
+	 * @throws IOException
+	 *   if the URL is invalid or the connection cannot be opened.
+	 */
+	private URLConnection connect(String resource) throws IOException {
+		URL url = URLFactory.makeURL(resource);
+		return url.openConnection(proxy != null ? proxy : Proxy.NO_PROXY);
+	}
+	
+	/**
+	 * Requests a range of the given resource to the server; if the server does
+	 * not honour the {@code Range} header, the data before the range are 
+	 * skipped locally.
+	 * 
+	 * @param resource
+	 *   the URL of the resource.
+	 * @param offset
+	 *   the offset of the first byte to be read.
+	 * @param length
+	 *   the maximum number of bytes to be read, or a negative value to read up
+	 *   to the end of the resource.
+	 * @return
+	 *   a stream reading the range of the resource.
+	 * @throws IOException
+	 *   if the resource cannot be retrieved.
+	 */
+	private InputStream request(String resource, long offset, long length) throws IOException {
+		if(length == 0) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		URLConnection connection = connect(resource);
+		if(connection instanceof HttpURLConnection) {
+			HttpURLConnection http = (HttpURLConnection)connection;
+			http.setRequestProperty("Range", "bytes=" + offset + "-" + (length < 0 ? "" : String.valueOf(offset + length - 1)));
+			switch(http.getResponseCode()) {
+			case HttpURLConnection.HTTP_PARTIAL:
+				logger.trace("server returned range of resource at URL '{}'", resource);
+				InputStream stream = http.getInputStream();
+				return length < 0 ? stream : new BoundedInputStream(stream, length);
+			case HTTP_RANGE_NOT_SATISFIABLE:
+				logger.trace("range is beyond the end of resource at URL '{}'", resource);
+				Streams.safelyClose(http.getErrorStream());
+				return new ByteArrayInputStream(new byte[0]);
+			default:
+				logger.trace("server ignored range request for resource at URL '{}'", resource);
+				break;
+			}
+		}
+		return slice(connection.getInputStream(), offset, length);
+	}
+	
+	/**
+	 * Checks with the server whether the copy of the resource in the backing 
+	 * storage is still valid, through a conditional request, and downloads the 
+	 * resource into the backing storage if it is not.
+	 * 
+	 * @param resource
+	 *   the URL of the resource.
+	 * @param validators
+	 *   the validators of the copy in the backing storage.
+	 * @throws IOException
+	 *   if the resource cannot be retrieved.
+	 * @throws CacheException
+	 *   if the resource cannot be stored.
+	 */
+	private void revalidate(String resource, Validators validators) throws IOException, CacheException {
+		URLConnection connection = connect(resource);
+		boolean cached = backing.contains(resource);
+		if(cached) {
+			if(validators.etag != null) {
+				connection.setRequestProperty("If-None-Match", validators.etag);
+			}
+			if(validators.lastModified > 0) {
+				connection.setIfModifiedSince(validators.lastModified);
+			}
+		}
+		if(connection instanceof HttpURLConnection && cached && ((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			logger.trace("resource at URL '{}' not modified", resource);
+			Streams.safelyClose(((HttpURLConnection)connection).getErrorStream());
+			validators.update(connection, true);
+			return;
+		}
+		logger.trace("downloading resource at URL '{}'", resource);
+		try(InputStream input = connection.getInputStream()) {
+			OutputStream output = backing.store(resource);
+			try {
+				long copied = Streams.copy(input, output);
+				long length = connection.getContentLengthLong();
+				if(length >= 0 && copied != length) {
+					throw new IOException("truncated download from URL '" + resource + "': " + copied + " of " + length + " bytes");
+				}
+				logger.trace("downloaded {} bytes from URL '{}'", copied, resource);
+			} catch(IOException | RuntimeException e) {
+				// never commit a partial body, the previous copy (if any) is kept
+				CacheHelper.abort(backing, resource, output);
+				throw e;
+			}
+			output.close();
+		}
+		// only trust the new validators once the body they describe is in place
+		validators.update(connection, false);
+	}
+	
+	/**
+	 * The validators and freshness information of the copy of a resource in the
+	 * backing storage.
+	 * 
+	 * @author Andrea Funto'
+	 */
+	private static class Validators {
+		
+		/**
+		 * The entity tag of the copy, if any.
+		 */
+		private String etag;
+		
+		/**
+		 * The last modification time of the copy as declared by the server, or
+		 * 0 if unknown.
+		 */
+		private long lastModified;
+		
+		/**
+		 * The time until which the copy can be served without revalidation, in
+		 * milliseconds since the epoch.
+		 */
+		private long expires;
+		
+		/**
+		 * Returns whether the copy can be served without revalidation.
+		 * 
+		 * @return
+		 *   whether the copy is fresh.
+		 */
+		boolean isFresh() {
+			return System.currentTimeMillis() < expires;
+		}
+		
+		/**
+		 * Updates the validators from the response headers.
+		 * 
+		 * @param connection
+		 *   the connection with the response.
+		 * @param notModified
+		 *   whether the response is a {@code 304 Not Modified}, in which case 
+		 *   the validators are only updated if present.
+		 */
+		void update(URLConnection connection, boolean notModified) {
+			String etag = connection.getHeaderField("ETag");
+			if(etag != null || !notModified) {
+				this.etag = etag;
+			}
+			long lastModified = connection.getLastModified();
+			if(lastModified > 0 || !notModified) {
+				this.lastModified = lastModified;
+			}
+			this.expires = 0;
+			String control = connection.getHeaderField("Cache-Control");
+			if(control != null) {
+				for(String directive : control.toLowerCase(Locale.ROOT).split(",")) {
+					directive = directive.trim();
+					if(directive.equals("no-cache") || directive.equals("no-store")) {
+						return;
+					} else if(directive.startsWith("max-age=")) {
+						try {
+							this.expires = System.currentTimeMillis() + 1000 * Long.parseLong(directive.substring("max-age=".length()).trim());
+						} catch(NumberFormatException e) {
+							logger.warn("invalid max-age directive '{}'", directive);
+						}
+						return;
+					}
+				}
+			}
+			this.expires = connection.getExpiration();
+		}
+	}
 }
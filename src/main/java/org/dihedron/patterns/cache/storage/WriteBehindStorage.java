@@ -0,0 +1,616 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.strings.Strings;
+import org.dihedron.patterns.cache.Abortable;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheOutputStream;
+import org.dihedron.patterns.cache.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that buffers resources in memory and writes them to an underlying
+ * (slower) storage asynchronously, so that writers do not pay the latency of
+ * the underlying storage. Resources are buffered when their output stream is
+ * closed, and are then flushed in batches by a background writer thread;
+ * until they have been flushed, they are served from the buffer, so that
+ * readers always see the latest written data. The buffer is bounded: when it
+ * is full, closing an output stream blocks until enough buffered resources
+ * have been flushed. Resources that are deleted or stored again before being
+ * flushed are never written to the underlying storage.
+ * <p>
+ * If a resource cannot be written to the underlying storage, the error is
+ * logged and the resource is dropped from the buffer; {@link #getFailureCount()}
+ * tells how many resources were lost this way.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class WriteBehindStorage extends AbstractStorage {
+
+	/**
+	 * The default maximum overall size of the buffered resources.
+	 */
+	public static final int DEFAULT_CAPACITY = 32 * 1024 * 1024;
+
+	/**
+	 * The default maximum number of resources flushed in a batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindStorage.class);
+
+	/**
+	 * The counter used to name the writer threads.
+	 */
+	private static final AtomicInteger writers = new AtomicInteger(0);
+
+	/**
+	 * The underlying storage.
+	 */
+	private final Storage storage;
+
+	/**
+	 * The maximum overall size of the buffered resources.
+	 */
+	private final int capacity;
+
+	/**
+	 * The maximum number of resources flushed in a batch.
+	 */
+	private final int batchSize;
+
+	/**
+	 * The space left in the buffer, in bytes.
+	 */
+	private final Semaphore space;
+
+	/**
+	 * The buffered resources, by name; they are removed once flushed.
+	 */
+	private final ConcurrentNavigableMap<String, Pending> buffered = new ConcurrentSkipListMap<String, Pending>();
+
+	/**
+	 * The resources waiting to be flushed, in the order they were buffered.
+	 */
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+
+	/**
+	 * The number of resources buffered and not yet flushed (or discarded).
+	 */
+	private int outstanding = 0;
+
+	/**
+	 * The lock guarding the number of outstanding resources, and the setting
+	 * of the shutdown flag.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * The number of resources that could not be written to the underlying
+	 * storage.
+	 */
+	private final AtomicLong failures = new AtomicLong(0);
+
+	/**
+	 * The background writer thread.
+	 */
+	private final Thread writer;
+
+	/**
+	 * Whether the storage has been shut down; only set while holding the lock,
+	 * so that no resource is buffered once the shutdown has begun.
+	 */
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 */
+	public WriteBehindStorage(Storage storage) {
+		this(storage, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage
+	 *   the underlying storage.
+	 * @param capacity
+	 *   the maximum overall size of the buffered resources, in bytes; resources
+	 *   larger than the buffer take up the whole buffer.
+	 * @param batchSize
+	 *   the maximum number of resources flushed in a batch.
+	 */
+	public WriteBehindStorage(Storage storage, int capacity, int batchSize) {
+		this.storage = storage;
+		this.capacity = Math.max(1, capacity);
+		this.batchSize = Math.max(1, batchSize);
+		this.space = new Semaphore(this.capacity, true);
+		this.writer = new Thread(new Writer(), "write-behind-" + writers.incrementAndGet());
+		this.writer.setDaemon(true);
+		this.writer.start();
+		logger.debug("created write-behind storage (capacity: {} bytes, batch size: {})", this.capacity, this.batchSize);
+	}
+
+	/**
+	 * Returns the underlying storage.
+	 *
+	 * @return
+	 *   the underlying storage.
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Returns the number of resources buffered and not yet flushed.
+	 *
+	 * @return
+	 *   the number of resources buffered and not yet flushed.
+	 */
+	public int getPendingCount() {
+		synchronized(lock) {
+			return outstanding;
+		}
+	}
+
+	/**
+	 * Returns the number of resources that could not be written to the
+	 * underlying storage and were lost.
+	 *
+	 * @return
+	 *   the number of lost resources.
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Waits until all resources buffered so far have been flushed to the
+	 * underlying storage.
+	 *
+	 * @throws InterruptedException
+	 *   if the thread is interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		synchronized(lock) {
+			while(outstanding > 0) {
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the buffered resources and stops the background writer; after
+	 * the storage has been shut down, resources are written synchronously to
+	 * the underlying storage.
+	 *
+	 * @throws InterruptedException
+	 *   if the thread is interrupted while waiting for the resources to be
+	 *   flushed.
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized(lock) {
+			shutdown = true;
+		}
+		flush();
+		writer.interrupt();
+		writer.join();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return buffered.isEmpty() && storage.isEmpty();
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#list(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public String[] list(Regex regex) {
+		Set<String> resources = new TreeSet<String>(select(buffered.navigableKeySet(), regex));
+		String[] stored = storage.list(regex);
+		if(stored != null) {
+			Collections.addAll(resources, stored);
+		}
+		return resources.toArray(new String[resources.size()]);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#contains(java.lang.String)
+	 */
+	@Override
+	public boolean contains(String resource) {
+		return resource != null && (buffered.containsKey(resource) || storage.contains(resource));
+	}
+
+	/**
+	 * Returns a stream buffering the resource in memory; the resource is made
+	 * visible and queued for flushing when the stream is closed, which blocks
+	 * if the buffer is full.
+	 *
+	 * @see org.dihedron.patterns.cache.Storage#store(java.lang.String)
+	 */
+	@Override
+	public OutputStream store(String resource) throws CacheException {
+		if(Strings.isValid(resource)) {
+			logger.debug("buffering resource '{}'", resource);
+			return new WriteBehindOutputStream(resource);
+		}
+		return null;
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieve(java.lang.String)
+	 */
+	@Override
+	public InputStream retrieve(String resource) {
+		Pending pending = resource != null ? buffered.get(resource) : null;
+		if(pending != null) {
+			return new ByteArrayInputStream(pending.data);
+		}
+		return storage.retrieve(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.storage.AbstractStorage#retrieve(java.lang.String, long, long)
+	 */
+	@Override
+	public InputStream retrieve(String resource, long offset, long length) {
+		Pending pending = resource != null ? buffered.get(resource) : null;
+		if(pending != null) {
+			int start = (int)Math.min(Math.max(0, offset), pending.data.length);
+			int count = length < 0 ? pending.data.length - start : (int)Math.min(length, pending.data.length - start);
+			return new ByteArrayInputStream(pending.data, start, count);
+		}
+		return storage.retrieve(resource, offset, length);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#retrieveSize(java.lang.String)
+	 */
+	@Override
+	public long retrieveSize(String resource) {
+		Pending pending = resource != null ? buffered.get(resource) : null;
+		if(pending != null) {
+			return pending.data.length;
+		}
+		return storage.retrieveSize(resource);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(org.dihedron.core.regex.Regex)
+	 */
+	@Override
+	public void delete(Regex regex) {
+		for(String resource : select(buffered.navigableKeySet(), regex)) {
+			cancel(resource);
+		}
+		storage.delete(regex);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#delete(java.lang.String, boolean)
+	 */
+	@Override
+	public void delete(String resource, boolean caseInsensitive) {
+		if(resource == null) {
+			return;
+		}
+		if(caseInsensitive) {
+			for(String element : buffered.keySet()) {
+				if(element.equalsIgnoreCase(resource)) {
+					cancel(element);
+				}
+			}
+		} else {
+			cancel(resource);
+		}
+		storage.delete(resource, caseInsensitive);
+	}
+
+	/**
+	 * @see org.dihedron.patterns.cache.Storage#clear()
+	 */
+	@Override
+	public void clear() {
+		for(String resource : buffered.keySet()) {
+			cancel(resource);
+		}
+		storage.clear();
+	}
+
+	/**
+	 * Buffers the given resource and queues it for flushing, superseding any
+	 * previous version of the resource not yet flushed.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param data
+	 *   the resource data.
+	 * @throws IOException
+	 *   if the thread is interrupted while waiting for space in the buffer, or
+	 *   if the storage has been shut down and the resource cannot be written.
+	 */
+	private void buffer(String resource, byte[] data) throws IOException {
+		if(shutdown) {
+			write(resource, data);
+			return;
+		}
+		int permits = Math.min(Math.max(1, data.length), capacity);
+		if(!space.tryAcquire(permits)) {
+			logger.debug("write-behind buffer full, waiting to buffer resource '{}'", resource);
+			try {
+				space.acquire(permits);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting to buffer resource '" + resource + "'");
+			}
+		}
+		boolean enqueue;
+		synchronized(lock) {
+			// checked again under the lock, since the storage may have been 
+			// shut down while waiting for space: once counted as outstanding,
+			// the resource is waited for by the shutdown's flush
+			enqueue = !shutdown;
+			if(enqueue) {
+				++outstanding;
+			}
+		}
+		if(!enqueue) {
+			space.release(permits);
+			write(resource, data);
+			return;
+		}
+		Pending pending = new Pending(resource, data, permits);
+		Pending previous = buffered.put(resource, pending);
+		if(previous != null) {
+			previous.cancel();
+		}
+		queue.add(pending);
+	}
+
+	/**
+	 * Removes the given resource from the buffer, so that it is not flushed.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 */
+	private void cancel(String resource) {
+		Pending pending = buffered.remove(resource);
+		if(pending != null) {
+			// waits for the resource to be flushed if it is being written
+			pending.cancel();
+		}
+	}
+
+	/**
+	 * Writes a resource to the underlying storage.
+	 *
+	 * @param resource
+	 *   the name of the resource.
+	 * @param data
+	 *   the resource data.
+	 * @throws IOException
+	 *   if the resource cannot be written.
+	 */
+	private void write(String resource, byte[] data) throws IOException {
+		try(OutputStream output = storage.store(resource)) {
+			if(output == null) {
+				throw new IOException("underlying storage refused resource '" + resource + "'");
+			}
+			output.write(data);
+		} catch(CacheException e) {
+			throw new IOException("error storing resource '" + resource + "' into underlying storage", e);
+		}
+	}
+
+	/**
+	 * Flushes a buffered resource to the underlying storage, unless it has been
+	 * cancelled, then releases its space in the buffer.
+	 *
+	 * @param pending
+	 *   the buffered resource.
+	 */
+	private void flush(Pending pending) {
+		try {
+			synchronized(pending) {
+				if(!pending.cancelled) {
+					write(pending.resource, pending.data);
+					logger.trace("flushed resource '{}' ({} bytes)", pending.resource, pending.data.length);
+				}
+			}
+		} catch(IOException | RuntimeException e) {
+			failures.incrementAndGet();
+			logger.error("error flushing resource '" + pending.resource + "' to underlying storage, resource lost", e);
+		} finally {
+			buffered.remove(pending.resource, pending);
+			space.release(pending.permits);
+			synchronized(lock) {
+				if(--outstanding == 0) {
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A resource buffered and waiting to be flushed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private static final class Pending {
+
+		/**
+		 * The name of the resource.
+		 */
+		final String resource;
+
+		/**
+		 * The resource data.
+		 */
+		final byte[] data;
+
+		/**
+		 * The space taken up in the buffer.
+		 */
+		final int permits;
+
+		/**
+		 * Whether the resource has been deleted or superseded and should not be
+		 * flushed; guarded by the object lock.
+		 */
+		boolean cancelled = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 * @param data
+		 *   the resource data.
+		 * @param permits
+		 *   the space taken up in the buffer.
+		 */
+		Pending(String resource, byte[] data, int permits) {
+			this.resource = resource;
+			this.data = data;
+			this.permits = permits;
+		}
+
+		/**
+		 * Marks the resource as not to be flushed; if it is being flushed, waits
+		 * for the write to complete.
+		 */
+		synchronized void cancel() {
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * The background writer, flushing buffered resources in batches.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class Writer implements Runnable {
+
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			List<Pending> batch = new ArrayList<Pending>(batchSize);
+			while(true) {
+				Pending first = null;
+				try {
+					first = shutdown ? queue.poll(100, TimeUnit.MILLISECONDS) : queue.take();
+				} catch(InterruptedException e) {
+					continue;
+				}
+				if(first == null) {
+					// a resource counted as outstanding may not be queued yet
+					synchronized(lock) {
+						if(shutdown && outstanding == 0) {
+							logger.debug("write-behind writer stopped");
+							return;
+						}
+					}
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				logger.trace("flushing batch of {} resources", batch.size());
+				for(Pending pending : batch) {
+					flush(pending);
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * The stream buffering a resource in memory until it is closed.
+	 *
+	 * @author Andrea Funto'
+	 */
+	private class WriteBehindOutputStream extends CacheOutputStream<ByteArrayOutputStream> implements Abortable {
+
+		/**
+		 * The name of the resource.
+		 */
+		private final String resource;
+
+		/**
+		 * Whether the stream has already been closed.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param resource
+		 *   the name of the resource.
+		 */
+		WriteBehindOutputStream(String resource) {
+			super(new ByteArrayOutputStream());
+			this.resource = resource;
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				super.close();
+				buffer(resource, getWrappedStream().toByteArray());
+			}
+		}
+
+		/**
+		 * Discards the buffered data, so nothing is queued for writing.
+		 *
+		 * @see org.dihedron.patterns.cache.Abortable#abort()
+		 */
+		@Override
+		public void abort() {
+			closed = true;
+			getWrappedStream().reset();
+		}
+	}
+}
@@ -46,6 +46,22 @@ public class RegexTest {
 		System.out.println("test took " + (System.currentTimeMillis() - start) + " ms");
 	}	
 	
+	@Test
+	public void testLiteralPrefix() {
+		assertTrue(new Regex("reports/2015-.*").getLiteralPrefix().equals("reports/2015-"));
+		assertTrue(new Regex("^pipp\\d*\\.pdf").getLiteralPrefix().equals("pipp"));
+		assertTrue(new Regex("file\\.txt").getLiteralPrefix().equals("file.txt"));
+		assertTrue(new Regex("\\Qa.b\\E.*").getLiteralPrefix().equals("a.b"));
+		assertTrue(new Regex("abc?d").getLiteralPrefix().equals("ab"));
+		assertTrue(new Regex("abc+d").getLiteralPrefix().equals("abc"));
+		assertTrue(new Regex("ab{2}").getLiteralPrefix().equals("a"));
+		assertTrue(new Regex("ab(c|d)").getLiteralPrefix().equals("ab"));
+		assertTrue(new Regex("ab[c|d]").getLiteralPrefix().equals("ab"));
+		assertTrue(new Regex("abc|abd").getLiteralPrefix().isEmpty());
+		assertTrue(new Regex(".*\\.pdf").getLiteralPrefix().isEmpty());
+		assertTrue(new Regex("pipp.*", false).getLiteralPrefix().isEmpty());
+	}
+	
 	private void runTest(final RegexFactory factory) throws InterruptedException {		
 		
 		// prepare tasks
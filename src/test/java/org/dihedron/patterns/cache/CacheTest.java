@@ -5,9 +5,28 @@ package org.dihedron.patterns.cache;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dihedron.core.License;
+import org.dihedron.core.streams.NullOutputStream;
+import org.dihedron.core.streams.Streams;
 import org.dihedron.patterns.cache.handlers.FileRetriever;
 import org.dihedron.patterns.cache.storage.MemoryStorage;
 import org.junit.Test;
@@ -46,4 +65,409 @@ public class CacheTest {
 			logger.info("resource: " + resource);
 		}
 	}
+	
+	@Test
+	public void testConcurrentMisses() throws Exception {
+		
+		final Cache cache = new Cache(new MemoryStorage());
+		final AtomicInteger loads = new AtomicInteger(0);
+		final CacheMissHandler handler = new CacheMissHandler() {
+			@Override
+			public InputStream getAsStream() throws CacheException {
+				loads.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new CacheException(e);
+				}
+				return new ByteArrayInputStream(new byte[1024]);
+			}
+		};
+		
+		
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger successes = new AtomicInteger(0);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for(int i = 0; i < threads; ++i) {
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					try(InputStream input = cache.get("resource", handler)) {
+						if(input != null && CacheHelper.getIntoByteArray(cache, "resource").length == 1024) {
+							successes.incrementAndGet();
+						}
+					}
+					return null;
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(loads.get() == 1);
+		assertTrue(successes.get() == threads);
+	}
+	
+	@Test
+	public void testExpiry() throws Exception {
+		Cache cache = new Cache(new MemoryStorage());
+		CacheHelper.putFromByteArray(cache, "forever", new byte[10]);
+		try(OutputStream output = cache.put("short", 50)) {
+			output.write(new byte[10]);
+		}
+		cache.setDefaultTimeToLive(50);
+		CacheMissHandler handler = new FileRetriever(new File("src/test/resources/test.pdf"));
+		cache.get("loaded", handler).close();
+		assertTrue(cache.size() == 3);
+		Thread.sleep(100);
+		
+		// expired resources are removed lazily on access...
+		assertTrue(!cache.contains("short"));
+		assertTrue(cache.size() == 2);
+		
+		// ... or by the reaper, which only removes the expired ones
+		assertTrue(cache.reap(10) == 1);
+		assertTrue(cache.size() == 1);
+		assertTrue(cache.contains("forever"));
+		
+		// a resource stored again gets a new deadline
+		cache.setDefaultTimeToLive(Cache.NEVER_EXPIRES);
+		try(OutputStream output = cache.put("again", 50)) {
+			output.write(new byte[10]);
+		}
+		CacheHelper.putFromByteArray(cache, "again", new byte[10]);
+		Thread.sleep(100);
+		assertTrue(cache.reap(10) == 0);
+		assertTrue(cache.contains("again"));
+		
+		cache.startReaper(10, 100);
+		try {
+			for(int i = 0; i < 20; ++i) {
+				try(OutputStream output = cache.put("temporary_" + i, 20)) {
+					output.write(new byte[10]);
+				}
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while(cache.size() > 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(cache.size() == 2);
+		} finally {
+			cache.stopReaper();
+		}
+	}
+	
+	@Test
+	public void testExpiryFootprint() throws Exception {
+		ExpiryTracker tracker = new ExpiryTracker();
+		
+		// re-puts with long time to live do not grow the queue without bounds
+		for(int i = 0; i < 100000; ++i) {
+			tracker.expireAfter("resource" + (i % 10), 3600000);
+		}
+		assertTrue(tracker.getQueueSize() < 2000);
+		for(int i = 0; i < 10000; ++i) {
+			tracker.expireAfter("other" + i, 3600000);
+			tracker.forget("other" + i, false);
+		}
+		assertTrue(tracker.getQueueSize() < 2000);
+		assertTrue(!tracker.isExpired("resource1"));
+		
+		// live expirations survive purges
+		tracker.expireAfter("resource1", 1);
+		Thread.sleep(10);
+		assertTrue(tracker.poll(2000).contains("resource1"));
+	}
+	
+	@Test
+	public void testAsync() throws Exception {
+		Cache cache = new Cache(new MemoryStorage());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			cache.setExecutor(executor);
+			final CountDownLatch release = new CountDownLatch(1);
+			CacheMissHandler handler = new CacheMissHandler() {
+				@Override
+				public InputStream getAsStream() throws CacheException {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new CacheException("interrupted", e);
+					}
+					return new ByteArrayInputStream(new byte[100]);
+				}
+			};
+			
+			// misses are loaded off the caller thread
+			List<Future<InputStream>> futures = new ArrayList<Future<InputStream>>();
+			for(int i = 0; i < 4; ++i) {
+				futures.add(cache.getAsync("resource_" + i, handler));
+			}
+			for(Future<InputStream> future : futures) {
+				assertTrue(!future.isDone());
+			}
+			release.countDown();
+			for(Future<InputStream> future : futures) {
+				try(InputStream input = future.get(10, TimeUnit.SECONDS)) {
+					assertTrue(input != null);
+				}
+			}
+			assertTrue(cache.size() == 4);
+			
+			// hits are completed immediately
+			Future<InputStream> hit = cache.getAsync("resource_0", handler);
+			assertTrue(hit.isDone());
+			hit.get().close();
+			assertTrue(cache.getAsync("missing").get() == null);
+			
+			assertTrue(cache.putAsync("stored", new ByteArrayInputStream(new byte[50])).get(10, TimeUnit.SECONDS) == 50);
+			assertTrue(cache.getSize("stored") == 50);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testStatistics() throws Exception {
+		Cache cache = new Cache(new MemoryStorage());
+		CacheMissHandler found = new FileRetriever(new File("src/test/resources/test.pdf"));
+		CacheMissHandler missing = new FileRetriever(new File("src/test/resources/missing.pdf"));
+		long size = new File("src/test/resources/test.pdf").length();
+		
+		try(InputStream input = cache.get("resource", missing, found)) {
+			Streams.copy(input, new NullOutputStream());
+		}
+		try(InputStream input = cache.get("resource", missing, found)) {
+			Streams.copy(input, new NullOutputStream());
+		}
+		assertTrue(cache.get("other") == null);
+		CacheHelper.putFromByteArray(cache, "stored", new byte[100]);
+		
+		CacheStatistics.Snapshot snapshot = cache.getStatistics().snapshot();
+		logger.info("statistics: {}", snapshot);
+		assertTrue(snapshot.getStorage().equals(MemoryStorage.class.getName()));
+		assertTrue(snapshot.getHits() == 1);
+		assertTrue(snapshot.getMisses() == 2);
+		assertTrue(snapshot.getLoads() == 1);
+		assertTrue(snapshot.getBytesServed() == 2 * size);
+		assertTrue(snapshot.getBytesStored() == size + 100);
+		assertTrue(snapshot.getHandlerSuccesses(FileRetriever.class.getName()) == 1);
+		assertTrue(snapshot.getHandlerFailures(FileRetriever.class.getName()) == 1);
+		assertTrue(snapshot.getLoadLatencyPercentile(99) >= snapshot.getAverageLoadTime());
+	}
+	
+	@Test
+	public void testNegativeCaching() throws Exception {
+		final AtomicLong now = new AtomicLong(1000000);
+		Cache cache = new Cache(new MemoryStorage(), new FailureTracker.Clock() {
+			@Override
+			public long currentTimeMillis() {
+				return now.get();
+			}
+		}).setNegativeTimeToLive(200, 1000);
+		final AtomicInteger calls = new AtomicInteger();
+		final boolean[] available = { false };
+		CacheMissHandler origin = new CacheMissHandler() {
+			@Override
+			public InputStream getAsStream() {
+				calls.incrementAndGet();
+				return available[0] ? new ByteArrayInputStream(new byte[10]) : null;
+			}
+		};
+		
+		// known-missing resources are served without asking the handler again
+		assertTrue(cache.get("resource", origin) == null);
+		assertTrue(cache.get("resource", origin) == null);
+		assertTrue(calls.get() == 1);
+		
+		// after the back-off the handler is asked again, and the back-off doubles
+		now.addAndGet(200);
+		assertTrue(cache.get("resource", origin) == null);
+		assertTrue(calls.get() == 2);
+		now.addAndGet(399);
+		assertTrue(cache.get("resource", origin) == null);
+		assertTrue(calls.get() == 2);
+		now.addAndGet(1);
+		available[0] = true;
+		try(InputStream input = cache.get("resource", origin)) {
+			assertTrue(input != null);
+		}
+		assertTrue(calls.get() == 3);
+		
+		// storing a resource resets its back-off
+		cache.delete("resource", false);
+		available[0] = false;
+		assertTrue(cache.get("resource", origin) == null);
+		CacheHelper.putFromByteArray(cache, "resource", new byte[5]);
+		cache.delete("resource", false);
+		available[0] = true;
+		try(InputStream input = cache.get("resource", origin)) {
+			assertTrue(input != null);
+		}
+		assertTrue(calls.get() == 5);
+		
+		// handlers backing off are skipped, the others are still asked
+		CacheMissHandler fallback = new FileRetriever(new File("src/test/resources/test.pdf"));
+		available[0] = false;
+		try(InputStream input = cache.get("other", origin, fallback)) {
+			assertTrue(input != null);
+		}
+		assertTrue(calls.get() == 6);
+		cache.delete("other", false);
+		try(InputStream input = cache.get("other", origin, fallback)) {
+			assertTrue(input != null);
+		}
+		assertTrue(calls.get() == 6);
+		
+		// bundled handlers back off across instances targeting the same source
+		for(int i = 0; i < 2; ++i) {
+			try(InputStream input = cache.get("absent", new FileRetriever(new File("src/test/resources/absent.pdf")), new FileRetriever(new File("src/test/resources/test.pdf")))) {
+				assertTrue(input != null);
+			}
+			cache.delete("absent", false);
+		}
+		assertTrue(cache.getStatistics().snapshot().getHandlerFailures(FileRetriever.class.getName()) == 1);
+	}
+	
+	@Test
+	public void testStreamThrough() throws Exception {
+		MemoryStorage storage = new MemoryStorage();
+		Cache cache = new Cache(storage).setStreamThrough(true);
+		assertTrue(cache.isStreamThrough());
+		final byte[] data = new byte[100000];
+		for(int i = 0; i < data.length; ++i) {
+			data[i] = (byte)i;
+		}
+		CacheMissHandler origin = new CacheMissHandler() {
+			@Override
+			public InputStream getAsStream() {
+				return new ByteArrayInputStream(data);
+			}
+		};
+		
+		// the resource is delivered while being stored, and committed at the end
+		byte[] buffer = new byte[4096];
+		try(InputStream input = cache.get("resource", origin)) {
+			assertTrue(input.read(buffer) > 0);
+			// the resource is not visible until committed
+			assertTrue(storage.retrieveSize("resource") == -1);
+			int total = 0;
+			for(int read = buffer.length; read != -1; read = input.read(buffer)) {
+				total += read;
+			}
+			assertTrue(total == data.length);
+		}
+		assertTrue(storage.retrieveSize("resource") == data.length);
+		assertTrue(Arrays.equals(CacheHelper.getIntoByteArray(cache, "resource"), data));
+		
+		// closing the stream early discards the resource
+		try(InputStream input = cache.get("partial", origin)) {
+			assertTrue(input.read(buffer) > 0);
+		}
+		assertTrue(!storage.contains("partial"));
+		
+		// reading exactly the whole resource is not enough, its end must be 
+		// reached for it to be committed
+		try(InputStream input = cache.get("exact", origin)) {
+			assertTrue(Arrays.equals(readFully(input, data.length), data));
+		}
+		assertTrue(!storage.contains("exact"));
+		try(InputStream input = cache.get("exact", origin)) {
+			assertTrue(Arrays.equals(readFully(input, data.length), data));
+			assertTrue(input.read() == -1);
+		}
+		assertTrue(storage.retrieveSize("exact") == data.length);
+		
+		// closing the stream does not wait for a stalled handler
+		final CountDownLatch stall = new CountDownLatch(1);
+		CacheMissHandler stalled = new CacheMissHandler() {
+			@Override
+			public InputStream getAsStream() {
+				return new FilterInputStream(new ByteArrayInputStream(data, 0, 10)) {
+					@Override
+					public int read() throws IOException {
+						int read = super.read();
+						return read == -1 ? stall() : read;
+					}
+					
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int read = super.read(b, off, len);
+						return read == -1 ? stall() : read;
+					}
+					
+					private int stall() throws IOException {
+						try {
+							stall.await(10, TimeUnit.SECONDS);
+						} catch(InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+						return -1;
+					}
+				};
+			}
+		};
+		long start = System.nanoTime();
+		try(InputStream input = cache.get("stalled", stalled)) {
+			assertTrue(readFully(input, 10).length == 10);
+		} finally {
+			stall.countDown();
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertTrue(!storage.contains("stalled"));
+		
+		// a caller asking again while holding its own stream does not deadlock
+		cache.setLoadTimeout(100);
+		assertTrue(cache.getLoadTimeout() == 100);
+		try(InputStream input = cache.get("reentrant", origin)) {
+			assertTrue(input.read(buffer) > 0);
+			assertTrue(cache.get("reentrant", origin) == null);
+		}
+		cache.setLoadTimeout(0);
+		assertTrue(cache.getLoadTimeout() == Cache.DEFAULT_LOAD_TIMEOUT);
+		
+		// a handler failing midway reports an error, and nothing is stored
+		CacheMissHandler broken = new CacheMissHandler() {
+			@Override
+			public InputStream getAsStream() {
+				return new FilterInputStream(new ByteArrayInputStream(data, 0, 10)) {
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int read = super.read(b, off, len);
+						if(read == -1) {
+							throw new IOException("connection reset");
+						}
+						return read;
+					}
+				};
+			}
+		};
+		try(InputStream input = cache.get("broken", broken)) {
+			assertTrue(input.read(buffer) == 10);
+			input.read(buffer);
+			assertTrue(false);
+		} catch(IOException e) {
+			assertTrue(!storage.contains("broken"));
+		}
+		
+		// concurrent requests are released once the stream is closed
+		try(InputStream input = cache.get("partial", origin)) {
+			assertTrue(input.read(buffer) > 0);
+		}
+		cache.setStreamThrough(false);
+		try(InputStream input = cache.get("partial", origin)) {
+			assertTrue(input != null);
+		}
+		assertTrue(storage.contains("partial"));
+	}
+	
+	private static byte[] readFully(InputStream input, int length) throws IOException {
+		byte[] data = new byte[length];
+		for(int total = 0; total < length; ) {
+			total += input.read(data, total, length - total);
+		}
+		return data;
+	}
 }
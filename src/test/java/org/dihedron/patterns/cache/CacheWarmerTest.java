@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.patterns.cache.handlers.InMemoryByteArrayRetriever;
+import org.dihedron.patterns.cache.storage.MemoryStorage;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class CacheWarmerTest {
+
+	@Test
+	public void testWarmUp() throws Exception {
+		Cache cache = new Cache(new MemoryStorage());
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger notifications = new AtomicInteger();
+		CacheMissHandler handler = new InMemoryByteArrayRetriever(new byte[10]);
+
+		// record the accesses of a previous run
+		cache.startRecording(10);
+		for(String resource : new String[] { "b", "a", "b", "c", "b", "a" }) {
+			cache.get(resource, handler).close();
+		}
+		List<String> manifest = cache.stopRecording();
+		assertTrue(manifest.equals(Arrays.asList("b", "a", "c")));
+		assertTrue(cache.stopRecording().isEmpty());
+
+		// the manifest survives a round trip to its file format
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		CacheWarmer.writeManifest(manifest, output);
+		List<String> resources = new ArrayList<String>(CacheWarmer.readManifest(new ByteArrayInputStream(("# comment\n\n" + output.toString("UTF-8")).getBytes("UTF-8"))));
+		assertTrue(resources.equals(manifest));
+
+		// warm up a cold cache, with one resource already present and one missing
+		cache = new Cache(new MemoryStorage());
+		cache.put("c").close();
+		resources.add("missing");
+		CacheWarmer.Progress progress = new CacheWarmer(cache)
+			.setParallelism(2)
+			.setRate(100)
+			.setProgressListener(new CacheWarmer.ProgressListener() {
+				@Override
+				public void onProgress(String resource, CacheWarmer.Progress progress) {
+					notifications.incrementAndGet();
+				}
+			})
+			.warm(resources, new CacheWarmer.HandlerFactory() {
+				@Override
+				public CacheMissHandler[] getHandlers(String resource) {
+					requests.incrementAndGet();
+					if(resource.equals("missing")) {
+						return new CacheMissHandler[] { new CacheMissHandler() {
+							@Override
+							public InputStream getAsStream() {
+								return null;
+							}
+						}};
+					}
+					return new CacheMissHandler[] { new InMemoryByteArrayRetriever(new byte[10]) };
+				}
+			});
+		assertTrue(progress.isDone());
+		assertTrue(progress.getTotal() == 4);
+		assertTrue(progress.getLoaded() == 2);
+		assertTrue(progress.getPresent() == 1);
+		assertTrue(progress.getFailed() == 1);
+		assertTrue(requests.get() == 3);
+		assertTrue(notifications.get() == 4);
+		assertTrue(cache.getSize("a") == 10 && cache.getSize("b") == 10);
+
+		// prefetching is neither a hit nor a miss
+		assertTrue(cache.getStatistics().snapshot().getHits() == 0);
+		assertTrue(cache.getStatistics().snapshot().getMisses() == 0);
+	}
+}
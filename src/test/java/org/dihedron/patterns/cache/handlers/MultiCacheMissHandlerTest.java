@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.handlers;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dihedron.core.License;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheMissHandler;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class MultiCacheMissHandlerTest {
+
+	private static class TrackedStream extends ByteArrayInputStream {
+		
+		private final CountDownLatch closed = new CountDownLatch(1);
+		
+		TrackedStream(int value) {
+			super(new byte[] { (byte)value });
+		}
+		
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+	}
+	
+	private static class DelayedHandler implements CacheMissHandler {
+		
+		private final long delay;
+		
+		private final TrackedStream stream;
+		
+		private volatile boolean started = false;
+		
+		DelayedHandler(long delay, TrackedStream stream) {
+			this.delay = delay;
+			this.stream = stream;
+		}
+		
+		@Override
+		public InputStream getAsStream() throws CacheException {
+			started = true;
+			long deadline = System.currentTimeMillis() + delay;
+			// ignore interruptions, like a handler blocked on a socket would
+			while(System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					// keep waiting
+				}
+			}
+			return stream;
+		}
+	}
+	
+	@Test
+	public void testParallel() throws Exception {
+		TrackedStream slow = new TrackedStream(1);
+		TrackedStream fast = new TrackedStream(2);
+		MultiCacheMissHandler handler = new MultiCacheMissHandler(new CacheMissHandler[] { new DelayedHandler(500, slow), new DelayedHandler(0, null), new DelayedHandler(50, fast) });
+		handler.setMode(MultiCacheMissHandler.Mode.PARALLEL);
+		long start = System.currentTimeMillis();
+		try(InputStream stream = handler.getAsStream()) {
+			assertTrue(stream.read() == 2);
+		}
+		assertTrue(System.currentTimeMillis() - start < 500);
+		// the loser closes its stream when it eventually completes
+		assertTrue(slow.closed.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testHedged() throws Exception {
+		TrackedStream slow = new TrackedStream(1);
+		TrackedStream fast = new TrackedStream(2);
+		DelayedHandler unused = new DelayedHandler(0, new TrackedStream(3));
+		MultiCacheMissHandler handler = new MultiCacheMissHandler(new CacheMissHandler[] { new DelayedHandler(1000, slow), new DelayedHandler(0, fast), unused });
+		handler.setMode(MultiCacheMissHandler.Mode.HEDGED);
+		handler.setHedgeDelay(50);
+		long start = System.currentTimeMillis();
+		try(InputStream stream = handler.getAsStream()) {
+			assertTrue(stream.read() == 2);
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertTrue(!unused.started);
+		assertTrue(slow.closed.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testFailures() throws Exception {
+		CacheMissHandler failing = new CacheMissHandler() {
+			@Override
+			public InputStream getAsStream() throws CacheException {
+				throw new CacheException("unavailable");
+			}
+		};
+		MultiCacheMissHandler handler = new MultiCacheMissHandler(new CacheMissHandler[] { failing, new DelayedHandler(0, null) });
+		handler.setMode(MultiCacheMissHandler.Mode.HEDGED);
+		try {
+			handler.getAsStream();
+			fail("an exception should have been thrown");
+		} catch(CacheException e) {
+			// expected
+		}
+		handler = new MultiCacheMissHandler(new CacheMissHandler[] { new DelayedHandler(0, null), new DelayedHandler(10, null) });
+		handler.setMode(MultiCacheMissHandler.Mode.PARALLEL);
+		assertTrue(handler.getAsStream() == null);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.Cache;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.Storage;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class BloomFilterStorageTest {
+
+	/**
+	 * A memory storage counting the lookups that reach it.
+	 */
+	private static class CountingStorage extends MemoryStorage {
+		final AtomicInteger lookups = new AtomicInteger();
+
+		@Override
+		public boolean contains(String resource) {
+			lookups.incrementAndGet();
+			return super.contains(resource);
+		}
+
+		@Override
+		public InputStream retrieve(String resource) {
+			lookups.incrementAndGet();
+			return super.retrieve(resource);
+		}
+	}
+
+	@Test
+	public void testNegativeLookups() throws Exception {
+		CountingStorage underlying = new CountingStorage();
+		write(underlying, "existing");
+		BloomFilterStorage storage = new BloomFilterStorage(underlying, 1000, 0.01);
+
+		// resources stored before the filter was built are found
+		assertTrue(storage.contains("existing"));
+		write(storage, "file1");
+		write(storage, "file2");
+		assertTrue(storage.contains("file1"));
+		assertTrue(storage.retrieveSize("file2") == 3);
+
+		// misses are answered without reaching the underlying storage
+		underlying.lookups.set(0);
+		for(int i = 0; i < 1000; ++i) {
+			assertFalse(storage.contains("missing" + i));
+		}
+		assertTrue(underlying.lookups.get() < 50);
+		assertTrue(storage.getNegativeLookupCount() > 950);
+
+		// the first probe in the cache is short-circuited as well
+		Cache cache = new Cache(storage);
+		underlying.lookups.set(0);
+		assertTrue(cache.get("missing") == null);
+		assertTrue(underlying.lookups.get() == 0);
+
+		// deleted resources are removed from the filter
+		storage.delete("file1", false);
+		storage.delete(new Regex("FILE.*", false));
+		storage.delete("EXISTING", true);
+		assertTrue(storage.isEmpty());
+		underlying.lookups.set(0);
+		assertFalse(storage.contains("file1") || storage.contains("file2") || storage.contains("existing"));
+		assertTrue(underlying.lookups.get() == 0);
+
+		// resources being written survive a rebuild
+		OutputStream output = storage.store("pending");
+		storage.rebuild();
+		output.write(new byte[] { 1 });
+		output.close();
+		assertTrue(storage.contains("pending"));
+		storage.clear();
+		assertFalse(storage.contains("pending"));
+	}
+
+	@Test
+	public void testCountingFilter() {
+		CountingBloomFilter filter = new CountingBloomFilter(100, 0.01);
+		for(int i = 0; i < 100; ++i) {
+			filter.add("element" + i);
+		}
+		for(int i = 0; i < 100; ++i) {
+			assertTrue(filter.mightContain("element" + i));
+		}
+		for(int i = 0; i < 100; i += 2) {
+			filter.remove("element" + i);
+		}
+		int positives = 0;
+		for(int i = 0; i < 100; ++i) {
+			if(i % 2 == 1) {
+				assertTrue(filter.mightContain("element" + i));
+			} else if(filter.mightContain("element" + i)) {
+				++positives;
+			}
+		}
+		assertTrue(positives < 5);
+
+		// saturated counters are never decremented, so there are no false negatives
+		for(int i = 0; i < 20; ++i) {
+			filter.add("hot");
+		}
+		for(int i = 0; i < 19; ++i) {
+			filter.remove("hot");
+		}
+		assertTrue(filter.mightContain("hot"));
+	}
+
+	private static void write(Storage storage, String resource) throws CacheException, IOException {
+		try(OutputStream output = storage.store(resource)) {
+			output.write(new byte[] { 1, 2, 3 });
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.Storage;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class CompressedStorageTest {
+
+	private void store(Storage storage, String resource, byte[] data) throws Exception {
+		Streams.copy(new ByteArrayInputStream(data), storage.store(resource), true);
+	}
+	
+	private byte[] retrieve(Storage storage, String resource) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Streams.copy(storage.retrieve(resource), output, true);
+		return output.toByteArray();
+	}
+	
+	@Test
+	public void test() throws Exception {
+		StringBuilder buffer = new StringBuilder();
+		for(int i = 0; buffer.length() < 200 * 1024; ++i) {
+			buffer.append("<entry key=\"key").append(i).append("\">value ").append(i % 17).append("</entry>\n");
+		}
+		byte[] text = buffer.toString().getBytes("UTF-8");
+		byte[] noise = new byte[100 * 1024];
+		new Random(42).nextBytes(noise);
+		
+		MemoryStorage memory = new MemoryStorage();
+		CompressedStorage storage = new CompressedStorage(memory);
+		store(storage, "text.xml", text);
+		store(storage, "noise.bin", noise);
+		store(storage, "empty", new byte[0]);
+		store(storage, "small", new byte[] { 1, 2, 3 });
+		
+		assertTrue(storage.size() == 4);
+		assertArrayEquals(text, retrieve(storage, "text.xml"));
+		assertArrayEquals(noise, retrieve(storage, "noise.bin"));
+		assertArrayEquals(new byte[0], retrieve(storage, "empty"));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, retrieve(storage, "small"));
+		
+		// compressible resources shrink, incompressible ones only get the header
+		assertTrue(storage.retrieveSize("text.xml") == text.length);
+		assertTrue(storage.retrievePhysicalSize("text.xml") < text.length / 5);
+		assertTrue(storage.retrieveSize("noise.bin") == noise.length);
+		assertTrue(storage.retrievePhysicalSize("noise.bin") == noise.length + 1);
+		
+		// sizes are read back from the stored resources when not known
+		storage = new CompressedStorage(memory);
+		assertTrue(storage.retrieveSize("text.xml") == text.length);
+		assertTrue(storage.retrieveSize("noise.bin") == noise.length);
+		assertTrue(storage.retrieveSize("empty") == 0);
+		assertTrue(storage.retrieveSize("missing") == -1);
+		ByteArrayOutputStream range = new ByteArrayOutputStream();
+		Streams.copy(storage.retrieve("text.xml", 1000, 10), range, true);
+		assertArrayEquals(Arrays.copyOfRange(text, 1000, 1010), range.toByteArray());
+		
+		storage.delete(new Regex(".*\\.xml"));
+		assertTrue(!storage.contains("text.xml"));
+		assertTrue(storage.retrieveSize("text.xml") == -1);
+		storage.clear();
+		assertTrue(memory.isEmpty());
+	}
+	
+	@Test
+	public void testFailure() throws Exception {
+		MemoryStorage memory = new MemoryStorage() {
+			@Override
+			public OutputStream store(String resource) throws CacheException {
+				return new FilterOutputStream(super.store(resource)) {
+					@Override
+					public void write(int b) throws IOException {
+						throw new IOException("device full");
+					}
+				};
+			}
+		};
+		CompressedStorage storage = new CompressedStorage(memory);
+		
+		// resources that cannot be completed are not committed
+		OutputStream output = storage.store("small");
+		output.write(new byte[] { 1, 2, 3 });
+		try {
+			output.close();
+			assertTrue(false);
+		} catch(IOException e) {
+			assertTrue(!storage.contains("small"));
+		}
+		output.close();
+		assertTrue(!storage.contains("small"));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.patterns.cache.Cache;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.Storage;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class DeduplicatingStorageTest {
+
+	private byte[] data(int value, int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte)value);
+		return data;
+	}
+	
+	private byte[] retrieve(Storage storage, String resource) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Streams.copy(storage.retrieve(resource), output, true);
+		return output.toByteArray();
+	}
+	
+	@Test
+	public void test() throws Exception {
+		MemoryStorage backing = new MemoryStorage();
+		DeduplicatingStorage storage = new DeduplicatingStorage(backing, 1000);
+		Cache cache = new Cache(storage);
+		
+		// identical contents are stored once, also past the spill threshold
+		CacheHelper.putFromByteArray(cache, "v1/library.jar", data(1, 5000));
+		CacheHelper.putFromByteArray(cache, "latest/library.jar", data(1, 5000));
+		CacheHelper.putFromByteArray(cache, "small", data(2, 10));
+		assertTrue(storage.size() == 3);
+		assertTrue(storage.getContentCount() == 2);
+		assertTrue(backing.list(new Regex(DeduplicatingStorage.BLOB_PREFIX + ".*")).length == 2);
+		assertArrayEquals(data(1, 5000), retrieve(storage, "latest/library.jar"));
+		assertTrue(storage.retrieveSize("v1/library.jar") == 5000);
+		
+		// copies only add a reference
+		cache.copyAs("small", "tenant/small");
+		assertTrue(storage.getContentCount() == 2);
+		assertArrayEquals(data(2, 10), retrieve(storage, "tenant/small"));
+		
+		// replacing or deleting resources releases their contents
+		Streams.copy(new ByteArrayInputStream(data(3, 10)), storage.store("latest/library.jar"), true);
+		assertTrue(storage.getContentCount() == 3);
+		storage.delete("v1/library.jar", false);
+		assertTrue(storage.getContentCount() == 2);
+		assertTrue(!storage.contains("v1/library.jar"));
+		
+		// references survive a restart
+		storage = new DeduplicatingStorage(backing);
+		assertTrue(storage.size() == 3);
+		assertTrue(storage.getContentCount() == 2);
+		assertArrayEquals(data(3, 10), retrieve(storage, "latest/library.jar"));
+		storage.delete(new Regex(".*small"));
+		assertTrue(storage.getContentCount() == 1);
+		storage.clear();
+		assertTrue(storage.isEmpty());
+		assertTrue(backing.isEmpty());
+	}
+	
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final AtomicInteger blobs = new AtomicInteger();
+		MemoryStorage backing = new MemoryStorage() {
+			@Override
+			public OutputStream store(String resource) throws CacheException {
+				OutputStream stream = super.store(resource);
+				if(!resource.startsWith(DeduplicatingStorage.BLOB_PREFIX) || blobs.incrementAndGet() > 1) {
+					return stream;
+				}
+				// the first write of contents fails midway
+				return new FilterOutputStream(stream) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len / 2);
+						entered.countDown();
+						try {
+							proceed.await();
+						} catch(InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+						throw new IOException("device full");
+					}
+				};
+			}
+		};
+		final DeduplicatingStorage storage = new DeduplicatingStorage(backing);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> first = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try(OutputStream output = storage.store("first")) {
+						output.write(data(1, 100));
+					}
+					return null;
+				}
+			});
+			entered.await();
+			Future<?> second = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try(OutputStream output = storage.store("second")) {
+						output.write(data(1, 100));
+					}
+					return null;
+				}
+			});
+			
+			// writers of identical contents never link to a partial copy
+			Thread.sleep(100);
+			assertTrue(!second.isDone() && !storage.contains("second"));
+			proceed.countDown();
+			try {
+				first.get();
+				assertTrue(false);
+			} catch(ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			
+			// and take over when the writer fails
+			second.get();
+			assertTrue(!storage.contains("first"));
+			assertArrayEquals(data(1, 100), retrieve(storage, "second"));
+			assertTrue(storage.getContentCount() == 1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -6,11 +6,18 @@ package org.dihedron.patterns.cache.storage;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
@@ -30,7 +37,11 @@ public class DiskStorageTest {
 	private void cleanup(File directory) {
 		if(directory != null && directory.exists() && directory.isDirectory()){
 			for (File file : directory.listFiles()) {
-				file.delete();
+				if(file.isDirectory()) {
+					cleanup(file);
+				} else {
+					file.delete();
+				}
 			} 
 			directory.delete();
 		}		
@@ -107,4 +118,299 @@ public class DiskStorageTest {
 		}
 	}
 	
+	@Test
+	public void testSharded() throws Exception {		
+		
+		File directory = null;
+		try {
+			directory = new File("target/testShardedDir");
+			cleanup(directory);
+			
+			// start with a flat cache, then reopen it with a sharded layout
+			DiskStorage storage = new DiskStorage(directory);
+			copy("file1.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			copy("file2.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			copy("File3.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			assertTrue(storage.size() == 3);
+			
+			
+			storage = new DiskStorage(directory, true, 2);
+			assertTrue(storage.size() == 3);
+			assertTrue(storage.contains("file1.pdf"));
+			assertTrue(storage.retrieveSize("file2.pdf") == new File("src/test/resources/test.pdf").length());
+			assertTrue(storage.list(new Regex(".*2\\.pdf")).length == 1);
+			for(File file : directory.listFiles()) {
+				assertTrue(file.isDirectory());
+			}
+			
+			
+			copy("file4.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			assertTrue(storage.size() == 4);
+			assertTrue(storage.getFile("file4.pdf").getParentFile().getParentFile().getParentFile().equals(directory));
+			
+			
+			storage.delete("file3.pdf", true);
+			assertFalse(storage.contains("File3.pdf"));
+			assertTrue(storage.size() == 3);
+			
+			
+			storage.delete(new Regex("file[12]\\.pdf", true));
+			assertTrue(storage.size() == 1);
+			assertFalse(storage.isEmpty());
+			
+			
+			storage.clear();
+			assertTrue(storage.isEmpty());
+		} finally {
+			cleanup(directory);
+		}
+	}
+	
+	@Test
+	public void testIndexed() throws Exception {		
+		
+		File directory = null;
+		try {
+			directory = new File("target/testIndexedDir");
+			cleanup(directory);
+			long size = new File("src/test/resources/test.pdf").length();
+			
+			DiskStorage storage = new DiskStorage(directory, true, 1, true);
+			assertTrue(storage.isIndexed());
+			assertTrue(storage.isEmpty());
+			copy("file1.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			copy("file2.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			copy("File3.pdf", storage, new FileInputStream(new File("src/test/resources/test.pdf")));
+			assertTrue(storage.size() == 3);
+			assertTrue(storage.contains("file2.pdf"));
+			assertFalse(storage.contains("file4.pdf"));
+			assertTrue(storage.retrieveSize("file1.pdf") == size);
+			assertTrue(new File(directory, DiskStorage.INDEX_FILE).exists());
+			
+			
+			// the index is reloaded from its journal 
+			storage.close();
+			storage = new DiskStorage(directory, true, 1, true);
+			assertTrue(storage.size() == 3);
+			assertTrue(storage.list().length == 3);
+			assertTrue(storage.retrieveSize("File3.pdf") == size);
+			
+			
+			storage.delete("file3.pdf", true);
+			assertFalse(storage.contains("File3.pdf"));
+			storage.delete(new Regex("file1\\.pdf"));
+			assertTrue(storage.size() == 1);
+			assertTrue(storage.retrieve("file1.pdf") == null);
+			
+			
+			storage.close();
+			storage = new DiskStorage(directory, true, 1, true);
+			assertTrue(storage.size() == 1);
+			assertTrue(storage.contains("file2.pdf"));
+			
+			
+			// after a clean close the journal is trusted, and the files are not
+			// looked at; the index can be rebuilt explicitly
+			storage.close();
+			File orphan = storage.getFile("file5.pdf");
+			orphan.getParentFile().mkdirs();
+			try(OutputStream output = new FileOutputStream(orphan)) {
+				output.write(new byte[] { 1, 2, 3 });
+			}
+			storage = new DiskStorage(directory, true, 1, true);
+			assertTrue(storage.size() == 1);
+			assertFalse(storage.contains("file5.pdf"));
+			storage.reindex();
+			assertTrue(storage.size() == 2);
+			
+			
+			// files committed but not journaled (e.g. after a crash, when the 
+			// storage is not closed) are picked up
+			orphan = storage.getFile("file6.pdf");
+			orphan.getParentFile().mkdirs();
+			try(OutputStream output = new FileOutputStream(orphan)) {
+				output.write(new byte[] { 1, 2, 3 });
+			}
+			storage.getFile("file2.pdf").delete();
+			storage = new DiskStorage(directory, true, 1, true);
+			assertTrue(storage.size() == 2);
+			assertTrue(storage.retrieveSize("file6.pdf") == 3);
+			assertFalse(storage.contains("file2.pdf"));
+			
+			
+			storage.clear();
+			assertTrue(storage.isEmpty());
+			storage.close();
+			assertTrue(new DiskStorage(directory, true, 1, false).isEmpty());
+		} finally {
+			cleanup(directory);
+		}
+	}
+	
+	@Test
+	public void testAtomicReplace() throws Exception {		
+		
+		File directory = null;
+		try {
+			directory = new File("target/testAtomicDir");
+			cleanup(directory);
+			
+			DiskStorage storage = new DiskStorage(directory, true, 1, true);
+			try(OutputStream output = storage.store("file1")) {
+				output.write(new byte[] { 1, 1, 1 });
+			}
+			InputStream reader = storage.retrieve("file1");
+			
+			// while being written, the new version is not visible
+			OutputStream output = storage.store("file1");
+			output.write(new byte[] { 2, 2, 2, 2, 2 });
+			assertTrue(storage.retrieveSize("file1") == 3);
+			assertTrue(storage.list().length == 1);
+			output.close();
+			assertTrue(storage.retrieveSize("file1") == 5);
+			try(InputStream input = storage.retrieve("file1")) {
+				assertTrue(input.read() == 2);
+			}
+			
+			// readers keep reading the version they opened
+			assertTrue(reader.read() == 1);
+			reader.close();
+			
+			// temporary files of writes in progress elsewhere are left alone, 
+			// while stale ones are swept on startup 
+			storage.store("file2").write(new byte[] { 3 });
+			storage.close();
+			storage = new DiskStorage(directory, true, 1, false);
+			assertTrue(storage.list().length == 1);
+			assertTrue(storage.retrieveSize("file2") == -1);
+			List<File> temporaries = new ArrayList<File>();
+			for(File shard : directory.listFiles()) {
+				if(shard.isDirectory()) {
+					for(File file : shard.listFiles()) {
+						if(file.getName().startsWith(DiskStorage.TEMP_PREFIX)) {
+							temporaries.add(file);
+						}
+					}
+				}
+			}
+			assertTrue(temporaries.size() == 1);
+			assertTrue(temporaries.get(0).setLastModified(System.currentTimeMillis() - DiskStorage.TEMP_FILE_GRACE_PERIOD - 1000));
+			storage = new DiskStorage(directory, true, 1, false);
+			assertFalse(temporaries.get(0).exists());
+		} finally {
+			cleanup(directory);
+		}
+	}
+	
+	@Test
+	public void testRange() throws Exception {		
+		
+		File directory = null;
+		try {
+			directory = new File("target/testRangeDir");
+			cleanup(directory);
+			
+			DiskStorage storage = new DiskStorage(directory, true, 1, true);
+			try(OutputStream output = storage.store("file1")) {
+				output.write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+			}
+			try(InputStream input = storage.retrieve("file1", 3, 4)) {
+				byte[] buffer = new byte[10];
+				assertTrue(input.read(buffer) == 4);
+				assertTrue(buffer[0] == 3 && buffer[3] == 6);
+				assertTrue(input.read() == -1);
+			}
+			try(InputStream input = storage.retrieve("file1", 8, -1)) {
+				assertTrue(input.read() == 8 && input.read() == 9 && input.read() == -1);
+			}
+			try(InputStream input = storage.retrieve("file1", 20, 5)) {
+				assertTrue(input.read() == -1);
+			}
+			assertTrue(storage.retrieve("file2", 0, 5) == null);
+			storage.close();
+		} finally {
+			cleanup(directory);
+		}
+	}
+	
+	@Test
+	public void testCaseSensitive() throws Exception {		
+		
+		File directory = null;
+		try {
+			directory = new File("target/testCaseDir");
+			cleanup(directory);
+			
+			for(boolean indexed : new boolean[] { false, true }) {
+				DiskStorage storage = new DiskStorage(directory, true, 1, indexed);
+				for(String name : new String[] { "file1.pdf", "FILE1.pdf", "File1.PDF" }) {
+					try(OutputStream output = storage.store(name)) {
+						output.write(1);
+					}
+				}
+				assertTrue(storage.list().length == 3);
+				
+				// variants differing only by case are replaced on commit
+				storage.setCaseSensitive(true);
+				try(OutputStream output = storage.store("file1.PDF")) {
+					output.write(2);
+				}
+				assertTrue(storage.list().length == 1);
+				assertTrue(storage.contains("file1.PDF") && !storage.contains("file1.pdf"));
+				storage.close();
+				cleanup(directory);
+			}
+		} finally {
+			cleanup(directory);
+		}
+	}
+	
+	@Test
+	public void testIterator() throws Exception {		
+		
+		File directory = null;
+		try {
+			directory = new File("target/testIteratorDir");
+			cleanup(directory);
+			
+			for(int levels = 0; levels <= 2; ++levels) {
+				DiskStorage storage = new DiskStorage(directory, true, levels);
+				for(int i = 0; i < 20; ++i) {
+					try(OutputStream output = storage.store("file" + i + (i % 2 == 0 ? ".pdf" : ".txt"))) {
+						output.write(i);
+					}
+				}
+				Set<String> names = new HashSet<String>();
+				for(String name : storage) {
+					assertTrue(names.add(name));
+				}
+				assertTrue(names.size() == 20 && names.contains("file0.pdf") && names.contains("file19.txt"));
+				
+				names.clear();
+				for(Iterator<String> iterator = storage.iterator(new Regex(".*\\.pdf")); iterator.hasNext(); ) {
+					names.add(iterator.next());
+				}
+				assertTrue(names.size() == 10 && names.contains("file18.pdf"));
+				
+				// iterators abandoned halfway release their directory when closed
+				File descriptors = new File("/proc/self/fd");
+				int open = descriptors.isDirectory() ? descriptors.list().length : 0;
+				for(int i = 0; i < 100; ++i) {
+					Iterator<String> iterator = storage.iterator();
+					assertTrue(iterator.hasNext());
+					((Closeable)iterator).close();
+					assertFalse(iterator.hasNext());
+				}
+				if(descriptors.isDirectory()) {
+					assertTrue(descriptors.list().length == open);
+				}
+				
+				storage.clear();
+				assertFalse(storage.iterator().hasNext());
+				cleanup(directory);
+			}
+		} finally {
+			cleanup(directory);
+		}
+	}
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.CacheException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class LogStructuredStorageTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("log-storage", null);
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testStoreAndRecover() throws Exception {
+		LogStructuredStorage storage = new LogStructuredStorage(directory, 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		assertTrue(storage.isEmpty());
+		for(int i = 0; i < 100; ++i) {
+			write(storage, "file" + i, content(i, 100));
+		}
+		assertTrue(storage.size() == 100);
+		assertTrue(storage.getSegmentCount() > 1);
+		assertTrue(storage.retrieveSize("file42") == 100);
+		assertTrue(Arrays.equals(read(storage, "file42"), content(42, 100)));
+		assertTrue(storage.list(new Regex("file1\\d")).length == 10);
+
+		// overwrite and delete some resources
+		write(storage, "file1", content(1000, 50));
+		storage.delete(new Regex("file9\\d"));
+		storage.delete("FILE2", true);
+		assertTrue(storage.size() == 89);
+		assertFalse(storage.contains("file95"));
+		assertTrue(storage.retrieve("file95") == null);
+
+		// a stream opened before a resource is overwritten still reads the old data
+		InputStream input = storage.retrieve("file3");
+		write(storage, "file3", content(3000, 10));
+		assertTrue(Arrays.equals(readFully(input), content(3, 100)));
+		storage.close();
+
+		// the index is rebuilt from the footers and the last segment
+		storage = new LogStructuredStorage(directory, 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		assertTrue(storage.size() == 89);
+		assertFalse(storage.contains("file95"));
+		assertFalse(storage.contains("file2"));
+		assertTrue(Arrays.equals(read(storage, "file1"), content(1000, 50)));
+		assertTrue(Arrays.equals(read(storage, "file3"), content(3000, 10)));
+		assertTrue(Arrays.equals(read(storage, "file50"), content(50, 100)));
+		storage.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		LogStructuredStorage storage = new LogStructuredStorage(directory, 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		for(int i = 0; i < 100; ++i) {
+			write(storage, "file" + i, content(i, 100));
+		}
+		for(int i = 0; i < 100; ++i) {
+			if(i % 4 != 0) {
+				storage.delete("file" + i, false);
+			}
+		}
+		long before = storage.getSizeOnDisk();
+		assertTrue(storage.compact() > 0);
+		assertTrue(storage.getSizeOnDisk() < before);
+		assertTrue(storage.size() == 25);
+		for(int i = 0; i < 100; i += 4) {
+			assertTrue(Arrays.equals(read(storage, "file" + i), content(i, 100)));
+		}
+		storage.close();
+
+		// deleted resources do not reappear after compaction and restart
+		storage = new LogStructuredStorage(directory, 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		assertTrue(storage.size() == 25);
+		assertFalse(storage.contains("file1"));
+		assertTrue(Arrays.equals(read(storage, "file96"), content(96, 100)));
+
+		storage.clear();
+		assertTrue(storage.isEmpty());
+		assertTrue(storage.getSegmentCount() == 1);
+		
+		// resources larger than a segment are rejected
+		OutputStream output = storage.store("large");
+		output.write(new byte[1000]);
+		try {
+			output.write(new byte[100]);
+			assertTrue(false);
+		} catch(IOException e) {
+			output.close();
+			assertFalse(storage.contains("large"));
+		}
+		
+		// resources cannot be read after the storage is closed
+		write(storage, "file1", content(1, 10));
+		storage.close();
+		assertFalse(storage.contains("file1"));
+		assertTrue(storage.retrieve("file1") == null);
+		assertTrue(storage.retrieve("file1", 0, 5) == null);
+	}
+
+	@Test
+	public void testTornWrite() throws Exception {
+		LogStructuredStorage storage = new LogStructuredStorage(directory, 1024 * 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		write(storage, "file1", content(1, 100));
+		write(storage, "file2", content(2, 100));
+		storage.close();
+
+		// simulate a crash in the middle of an append
+		File[] segments = directory.listFiles();
+		assertTrue(segments.length == 1);
+		try(OutputStream output = new FileOutputStream(segments[0], true)) {
+			output.write(new byte[] { 0x4C, 0x4F, 0x47, 0x52, 0, 0, 0, 5 });
+		}
+		long length = segments[0].length();
+
+		storage = new LogStructuredStorage(directory, 1024 * 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		assertTrue(storage.size() == 2);
+		assertTrue(segments[0].length() == length - 8);
+		write(storage, "file3", content(3, 100));
+		assertTrue(Arrays.equals(read(storage, "file3"), content(3, 100)));
+		storage.close();
+	}
+
+	@Test
+	public void testInterruptedReader() throws Exception {
+		LogStructuredStorage storage = new LogStructuredStorage(directory, 1024 * 1024, 0.5, LogStructuredStorage.NO_BACKGROUND_COMPACTION);
+		try {
+			write(storage, "file1", content(1, 100));
+			InputStream other = storage.retrieve("file1");
+			InputStream input = storage.retrieve("file1");
+			Thread.currentThread().interrupt();
+			try {
+				input.read();
+				assertTrue(false);
+			} catch(IOException e) {
+				// the interrupted reader fails
+			} finally {
+				assertTrue(Thread.interrupted());
+				input.close();
+			}
+			// readers, new and old, and the appender are not affected
+			assertTrue(Arrays.equals(readFully(other), content(1, 100)));
+			assertTrue(Arrays.equals(read(storage, "file1"), content(1, 100)));
+			write(storage, "file2", content(2, 100));
+			assertTrue(Arrays.equals(read(storage, "file2"), content(2, 100)));
+		} finally {
+			storage.close();
+		}
+	}
+
+	private static byte[] content(int seed, int length) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; ++i) {
+			data[i] = (byte)(seed + i);
+		}
+		return data;
+	}
+
+	private static void write(LogStructuredStorage storage, String resource, byte[] data) throws IOException, CacheException {
+		try(OutputStream output = storage.store(resource)) {
+			output.write(data);
+		}
+	}
+
+	private static byte[] read(LogStructuredStorage storage, String resource) throws IOException {
+		return readFully(storage.retrieve(resource));
+	}
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		try(InputStream stream = input; ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+			byte[] buffer = new byte[64];
+			int read;
+			while((read = stream.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+	}
+}
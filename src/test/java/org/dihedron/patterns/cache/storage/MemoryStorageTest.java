@@ -6,15 +6,26 @@ package org.dihedron.patterns.cache.storage;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.dihedron.core.License;
 import org.dihedron.core.regex.Regex;
 import org.dihedron.core.streams.Streams;
 import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -55,16 +66,16 @@ public class MemoryStorageTest {
 		
 		
 		
-		Streams.copy(new FileInputStream(file), storage.store("file1.pdf"));
+		Streams.copy(new FileInputStream(file), storage.store("file1.pdf"), true);
 //		storage.store("file1.pdf", new FileInputStream(file));		
 		assertFalse(storage.isEmpty());
 		assertTrue(storage.size() == 1);
 		
 		
 		
-		Streams.copy(new FileInputStream(file), storage.store("file2.pdf"));
-		Streams.copy(new FileInputStream(file), storage.store("file3.pdf"));
-		Streams.copy(new FileInputStream(file), storage.store("file4.pdf"));
+		Streams.copy(new FileInputStream(file), storage.store("file2.pdf"), true);
+		Streams.copy(new FileInputStream(file), storage.store("file3.pdf"), true);
+		Streams.copy(new FileInputStream(file), storage.store("file4.pdf"), true);
 //		storage.store("file2.pdf", new FileInputStream(file)); 
 //		storage.store("file3.pdf", new FileInputStream(file));
 //		storage.store("file4.pdf", new FileInputStream(file));
@@ -114,4 +125,218 @@ public class MemoryStorageTest {
 		storage.delete(new Regex(".*\\.pdf", true));
 		assertTrue(storage.isEmpty());
 	}
+	
+	@Test
+	public void testPrefixListing() throws CacheException, IOException {
+		MemoryStorage storage = new MemoryStorage();
+		for(String resource : new String[] { "a/1.txt", "b/1.txt", "b/2.pdf", "b0.txt", "c/1.txt" }) {
+			Streams.copy(new ByteArrayInputStream(resource.getBytes()), storage.store(resource), true);
+		}
+		String[] list = storage.list(new Regex("b/.*\\.txt"));
+		assertTrue(list.length == 1 && list[0].equals("b/1.txt"));
+		assertTrue(storage.list(new Regex("b.*")).length == 3);
+		assertTrue(storage.list(new Regex(".*\\.txt")).length == 4);
+		assertTrue(storage.list(new Regex("B/.*", false)).length == 2);
+		assertTrue(storage.list(new Regex("d/.*")).length == 0);
+		
+		storage.delete(new Regex("b/.*"));
+		assertTrue(storage.list().length == 3);
+		assertFalse(storage.contains("b/1.txt"));
+		assertTrue(storage.contains("b0.txt"));
+	}
+	
+	@Test
+	public void testIterator() throws CacheException, IOException {
+		MemoryStorage storage = new MemoryStorage();
+		for(String resource : new String[] { "a/1.txt", "b/1.txt", "b/2.pdf", "b0.txt", "c/1.txt" }) {
+			try(OutputStream output = storage.store(resource)) {
+				output.write(1);
+			}
+		}
+		List<String> names = new ArrayList<String>();
+		for(Iterator<String> iterator = storage.iterator(new Regex("b.*\\.txt")); iterator.hasNext(); ) {
+			names.add(iterator.next());
+		}
+		assertTrue(names.size() == 2 && names.get(0).equals("b/1.txt") && names.get(1).equals("b0.txt"));
+		
+		// the iterator is a live view of the storage
+		Iterator<String> iterator = storage.iterator();
+		assertTrue(iterator.next().equals("a/1.txt"));
+		storage.delete("c/1.txt", false);
+		try(OutputStream output = storage.store("d/1.txt")) {
+			output.write(1);
+		}
+		names.clear();
+		while(iterator.hasNext()) {
+			names.add(iterator.next());
+		}
+		assertTrue(names.size() == 4 && !names.contains("c/1.txt") && names.contains("d/1.txt"));
+	}
+	
+	@Test
+	public void testRange() throws CacheException, IOException {
+		MemoryStorage storage = new MemoryStorage();
+		try(OutputStream output = storage.store("file")) {
+			output.write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		}
+		InputStream input = storage.retrieve("file", 2, 3);
+		assertTrue(input.available() == 3);
+		assertTrue(input.read() == 2 && input.read() == 3 && input.read() == 4 && input.read() == -1);
+		assertTrue(storage.retrieve("file", 7, -1).available() == 3);
+		assertTrue(storage.retrieve("file", 7, 100).available() == 3);
+		assertTrue(storage.retrieve("file", 100, 1).available() == 0);
+		assertTrue(storage.retrieve("other", 0, 1) == null);
+	}
+	
+	@Test
+	public void testVisibility() throws CacheException, IOException {
+		MemoryStorage storage = new MemoryStorage();
+		OutputStream output = storage.store("file");
+		output.write(new byte[] { 1, 2, 3 });
+		
+		// resources are not visible until their stream is closed
+		assertFalse(storage.contains("file"));
+		assertTrue(storage.retrieve("file") == null);
+		assertTrue(storage.getSizeInBytes() == 0);
+		
+		// readers keep seeing the previous version while a new one is written
+		Streams.copy(new ByteArrayInputStream(new byte[10]), storage.store("file"), true);
+		assertTrue(storage.retrieveSize("file") == 10);
+		OutputStream aborted = storage.store("file");
+		aborted.write(new byte[20]);
+		CacheHelper.abort(storage, "file", aborted);
+		assertTrue(storage.retrieveSize("file") == 10);
+		
+		// the last stream to be closed wins
+		output.write(4);
+		output.close();
+		assertTrue(storage.retrieveSize("file") == 4);
+		assertTrue(storage.getSizeInBytes() == 4);
+		
+		storage.delete("FILE", true);
+		assertTrue(storage.isEmpty());
+		assertTrue(storage.getSizeInBytes() == 0);
+	}
+	
+	@Test
+	public void testConcurrency() throws Exception {
+		final MemoryStorage storage = new MemoryStorage(64 * 1024, MemoryStorage.UNBOUNDED);
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int t = 0; t < 8; ++t) {
+			final int thread = t;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for(int i = 0; i < 2000; ++i) {
+						String resource = "file" + ((thread * 31 + i) % 64);
+						if(i % 3 == 0) {
+							try(OutputStream output = storage.store(resource)) {
+								output.write(new byte[1024]);
+							}
+						} else if(i % 17 == 0) {
+							storage.delete(resource, false);
+						} else {
+							try(InputStream input = storage.retrieve(resource)) {
+								// resources being written are never seen partially
+								assertTrue(input == null || input.available() == 1024);
+							}
+						}
+					}
+					return null;
+				}
+			});
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			for(Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(storage.getSizeInBytes() == storage.size() * 1024);
+		assertTrue(storage.getSizeInBytes() <= 64 * 1024);
+		assertTrue(storage.list().length == storage.size());
+		for(String name : storage.list()) {
+			assertTrue(storage.contains(name));
+		}
+	}
+	
+	@Test
+	public void testStoreDeleteRace() throws Exception {
+		final MemoryStorage storage = new MemoryStorage();
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int t = 0; t < 4; ++t) {
+			final boolean writer = t % 2 == 0;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for(int i = 0; i < 20000; ++i) {
+						if(writer) {
+							try(OutputStream output = storage.store("resource")) {
+								output.write(i);
+							}
+						} else {
+							storage.delete("resource", false);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			for(Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		// names are never left behind without a resource, nor the other way round
+		assertTrue(storage.list().length == (storage.contains("resource") ? 1 : 0));
+	}
+	
+	@Test
+	public void testBounded() throws CacheException, IOException {
+		
+		MemoryStorage storage = new MemoryStorage(3000, 3);
+		assertTrue(storage.isBounded());
+		
+		
+		for(int i = 1; i <= 3; ++i) {
+			Streams.copy(new ByteArrayInputStream(new byte[1000]), storage.store("file" + i), true);
+		}
+		assertTrue(storage.size() == 3);
+		assertTrue(storage.getSizeInBytes() == 3000);
+		assertTrue(storage.getEvictionCount() == 0);
+		
+		
+		// touch file1 so that file2 becomes the least recently used
+		storage.retrieve("file1").close();
+		Streams.copy(new ByteArrayInputStream(new byte[1000]), storage.store("file4"), true);
+		assertTrue(storage.size() == 3);
+		assertFalse(storage.contains("file2"));
+		assertTrue(storage.contains("file1"));
+		assertTrue(storage.getEvictionCount() == 1);
+		
+		
+		// a larger resource pushes out as many entries as needed to stay within budget
+		Streams.copy(new ByteArrayInputStream(new byte[2000]), storage.store("file5"), true);
+		assertTrue(storage.getSizeInBytes() <= 3000);
+		assertTrue(storage.contains("file5"));
+		assertFalse(storage.contains("file3"));
+		assertTrue(storage.getEvictionCount() == 3);
+		assertTrue(storage.getEvictedBytes() == 3000);
+		
+		
+		// replaced resources do not pile up in the eviction queue
+		for(int i = 0; i < 10000; ++i) {
+			Streams.copy(new ByteArrayInputStream(new byte[10]), storage.store("file5"), true);
+		}
+		assertTrue(storage.getEvictionQueueSize() <= 1024 + 1);
+		
+		storage.clear();
+		assertTrue(storage.isEmpty());
+		assertTrue(storage.getSizeInBytes() == 0);
+	}
 }
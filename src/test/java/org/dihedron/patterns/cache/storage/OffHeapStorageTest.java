@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.patterns.cache.CacheException;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class OffHeapStorageTest {
+
+	private byte[] read(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Streams.copy(input, output, true);
+		return output.toByteArray();
+	}
+
+	@Test
+	public void test() throws CacheException, IOException {
+		SlabAllocator allocator = new SlabAllocator(1024 * 1024, 256 * 1024, 4 * 1024);
+		OffHeapStorage storage = new OffHeapStorage(allocator);
+		assertTrue(storage.isEmpty());
+
+		byte[] data = new byte[10 * 1024 + 17];
+		new Random(42).nextBytes(data);
+
+		OutputStream output = storage.store("file1.bin");
+		output.write(data);
+		assertFalse(storage.contains("file1.bin"));
+		output.close();
+		assertTrue(storage.contains("file1.bin"));
+		assertTrue(storage.retrieveSize("file1.bin") == data.length);
+		assertTrue(allocator.getUsed() == 3 * 4 * 1024);
+
+		assertArrayEquals(data, read(storage.retrieve("file1.bin")));
+
+		// a resource being read survives its deletion until the reader is done
+		InputStream input = storage.retrieve("file1.bin");
+		storage.delete(new Regex("file\\d\\.bin"));
+		assertFalse(storage.contains("file1.bin"));
+		assertNull(storage.retrieve("file1.bin"));
+		assertTrue(allocator.getUsed() > 0);
+		assertArrayEquals(data, read(input));
+		assertTrue(allocator.getUsed() == 0);
+	}
+
+	@Test
+	public void testExhaustion() throws CacheException, IOException {
+		SlabAllocator allocator = new SlabAllocator(64 * 1024, 64 * 1024, 16 * 1024);
+		OffHeapStorage storage = new OffHeapStorage(allocator);
+
+		Streams.copy(new ByteArrayInputStream(new byte[48 * 1024]), storage.store("file1.bin"), true);
+		try {
+			Streams.copy(new ByteArrayInputStream(new byte[32 * 1024]), storage.store("file2.bin"), true);
+			assertTrue(false);
+		} catch(IOException e) {
+			// expected: the allocator has only one free chunk left
+		}
+		assertFalse(storage.contains("file2.bin"));
+		assertTrue(allocator.getUsed() == 48 * 1024);
+
+		storage.clear();
+		assertTrue(storage.isEmpty());
+		assertTrue(allocator.getUsed() == 0);
+		Streams.copy(new ByteArrayInputStream(new byte[64 * 1024]), storage.store("file3.bin"), true);
+		assertTrue(storage.retrieveSize("file3.bin") == 64 * 1024);
+	}
+}
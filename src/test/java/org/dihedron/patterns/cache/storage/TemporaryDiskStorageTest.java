@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.CacheException;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.dihedron.patterns.cache.Storage;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class TemporaryDiskStorageTest {
+
+	private static void cleanup(File directory) {
+		if(directory.isDirectory()) {
+			for(File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private static void write(Storage storage, String resource, int value) throws CacheException, IOException {
+		try(OutputStream output = storage.store(resource)) {
+			output.write(new byte[] { (byte)value, (byte)value, (byte)value });
+		}
+	}
+
+	private static byte[] read(InputStream input) throws IOException {
+		try(InputStream stream = input) {
+			byte[] buffer = new byte[16];
+			int total = 0;
+			for(int read; (read = stream.read(buffer, total, buffer.length - total)) > 0; ) {
+				total += read;
+			}
+			return Arrays.copyOf(buffer, total);
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		File directory = new File("target/temporaryDir");
+		cleanup(directory);
+		TemporaryDiskStorage storage = new TemporaryDiskStorage(directory);
+		try {
+			write(storage, "file1", 1);
+			write(storage, "file2", 2);
+			write(storage, "other", 3);
+			assertTrue(storage.size() == 3);
+			assertTrue(storage.list(new Regex("file.*")).length == 2);
+			assertTrue(Arrays.equals(read(storage.retrieve("file2")), new byte[] { 2, 2, 2 }));
+			assertTrue(Arrays.equals(read(storage.retrieve("file2", 1, 1)), new byte[] { 2 }));
+			assertTrue(storage.retrieveSize("other") == 3);
+
+			// deleted resources are removed from the index, their files recycled
+			storage.delete("FILE1", true);
+			assertFalse(storage.contains("file1"));
+			assertTrue(storage.retrieve("file1") == null);
+			assertTrue(storage.getSpareFileCount() == 1);
+			int count = directory.listFiles().length;
+			write(storage, "file1", 4);
+			assertTrue(storage.getSpareFileCount() == 0);
+			assertTrue(directory.listFiles().length == count);
+
+			// readers keep seeing the version they opened
+			InputStream reader = storage.retrieve("file1");
+			write(storage, "file1", 5);
+			assertTrue(storage.getSpareFileCount() == 0);
+			assertTrue(Arrays.equals(read(reader), new byte[] { 4, 4, 4 }));
+			assertTrue(storage.getSpareFileCount() == 1);
+			assertTrue(Arrays.equals(read(storage.retrieve("file1")), new byte[] { 5, 5, 5 }));
+
+			// aborted resources leave the previous version in place
+			OutputStream output = storage.store("file1");
+			output.write(new byte[] { 6 });
+			CacheHelper.abort(storage, "file1", output);
+			assertTrue(Arrays.equals(read(storage.retrieve("file1")), new byte[] { 5, 5, 5 }));
+
+			storage.setMaxSpareFiles(2).preallocate(5);
+			assertTrue(storage.getSpareFileCount() == 2);
+			storage.clear();
+			assertTrue(storage.isEmpty());
+			assertTrue(storage.getSpareFileCount() == 2);
+		} finally {
+			storage.shutdown();
+		}
+		assertTrue(directory.listFiles().length == 0);
+		try {
+			storage.store("file1");
+			assertTrue(false);
+		} catch(CacheException e) {
+			assertTrue(directory.listFiles().length == 0);
+		}
+	}
+
+	@Test
+	public void testOrphans() throws Exception {
+		File directory = new File("target/temporaryDir");
+		cleanup(directory);
+		directory.mkdirs();
+		// files left behind by a dead instance
+		File lock = new File(directory, "dead-1.lock");
+		File orphan = new File(directory, "dead-1-5.tmp");
+		assertTrue(lock.createNewFile() && orphan.createNewFile());
+
+		TemporaryDiskStorage live = new TemporaryDiskStorage(directory);
+		try {
+			assertFalse(lock.exists() || orphan.exists());
+			write(live, "resource", 1);
+
+			// files of live instances are left alone
+			TemporaryDiskStorage other = new TemporaryDiskStorage(directory);
+			TemporaryDiskStorage third = new TemporaryDiskStorage(directory);
+			assertTrue(directory.list(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".lock");
+				}
+			}).length == 3);
+			third.shutdown();
+			other.shutdown();
+			assertTrue(Arrays.equals(read(live.retrieve("resource")), new byte[] { 1, 1, 1 }));
+		} finally {
+			live.shutdown();
+		}
+		assertTrue(directory.listFiles().length == 0);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.patterns.cache.Cache;
+import org.dihedron.patterns.cache.CacheHelper;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class TieredStorageTest {
+
+	private void cleanup(File directory) {
+		if(directory != null && directory.exists() && directory.isDirectory()){
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private byte[] data(int value) {
+		byte[] data = new byte[1000];
+		Arrays.fill(data, (byte)value);
+		return data;
+	}
+
+	@Test
+	public void test() throws Exception {
+		File directory = new File("target/testTieredDir");
+		try {
+			cleanup(directory);
+			MemoryStorage memory = new MemoryStorage(2500, MemoryStorage.UNBOUNDED);
+			DiskStorage disk = new DiskStorage(directory);
+			TieredStorage storage = new TieredStorage(memory, disk, 1000);
+			Cache cache = new Cache(storage);
+
+			CacheHelper.putFromByteArray(cache, "file1", data(1));
+			CacheHelper.putFromByteArray(cache, "file2", data(2));
+			assertTrue(memory.size() == 2);
+			assertTrue(disk.isEmpty());
+
+			// the least recently used resource is demoted to disk
+			CacheHelper.putFromByteArray(cache, "file3", data(3));
+			assertFalse(memory.contains("file1"));
+			assertTrue(disk.contains("file1"));
+			assertTrue(cache.size() == 3);
+			assertTrue(cache.contains("file1"));
+
+			// and promoted back to memory when retrieved
+			assertArrayEquals(data(1), CacheHelper.getIntoByteArray(cache, "file1"));
+			assertTrue(memory.contains("file1"));
+			assertTrue(disk.contains("file2"));
+			assertTrue(cache.size() == 3);
+
+			// a resource evicted while clean is not written again, a stored one replaces its demoted copy
+			CacheHelper.putFromByteArray(cache, "file2", data(4));
+			assertFalse(disk.contains("file2"));
+			assertArrayEquals(data(4), CacheHelper.getIntoByteArray(cache, "file2"));
+
+			storage.flush();
+			assertTrue(disk.contains("file2"));
+			assertTrue(disk.contains("file3"));
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Streams.copy(disk.retrieve("file2"), output, true);
+			assertArrayEquals(data(4), output.toByteArray());
+
+			cache.delete(new Regex("file[12]"));
+			assertTrue(cache.size() == 1);
+			cache.clear();
+			assertTrue(cache.isEmpty());
+			Streams.copy(new ByteArrayInputStream(data(5)), cache.put("file5"), true);
+			assertTrue(memory.contains("file5"));
+		} finally {
+			cleanup(directory);
+		}
+	}
+
+	@Test
+	public void testPromotionRace() throws Exception {
+		final TieredStorage[] tiered = new TieredStorage[1];
+		// a lower tier where the resource is overwritten while being promoted
+		MemoryStorage lower = new MemoryStorage() {
+			@Override
+			public InputStream retrieve(String resource) {
+				InputStream stream = super.retrieve(resource);
+				try(OutputStream output = tiered[0].store(resource)) {
+					output.write(data(2));
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+				return stream;
+			}
+		};
+		MemoryStorage memory = new MemoryStorage(2500, MemoryStorage.UNBOUNDED);
+		tiered[0] = new TieredStorage(memory, lower, 1000);
+		try(OutputStream output = lower.store("file1")) {
+			output.write(data(1));
+		}
+		
+		// the stale copy does not replace the newer version
+		try(InputStream input = tiered[0].retrieve("file1")) {
+			assertTrue(input.read() == 2);
+		}
+		assertTrue(memory.retrieve("file1").read() == 2);
+		assertFalse(lower.contains("file1"));
+	}
+
+	@Test
+	public void testAbortAndStaleEviction() throws Exception {
+		MemoryStorage memory = new MemoryStorage(2500, MemoryStorage.UNBOUNDED);
+		MemoryStorage lower = new MemoryStorage();
+		TieredStorage storage = new TieredStorage(memory, lower, 1000);
+		try(OutputStream output = lower.store("file1")) {
+			output.write(data(1));
+		}
+
+		// the lower tier copy stays until the new version is committed, and 
+		// survives an aborted write
+		OutputStream output = storage.store("file1");
+		output.write(data(2));
+		assertTrue(storage.contains("file1") && lower.contains("file1"));
+		CacheHelper.abort(storage, "file1", output);
+		assertTrue(lower.contains("file1"));
+		try(InputStream input = storage.retrieve("file1")) {
+			assertTrue(input.read() == 1);
+		}
+
+		// the eviction of another version does not take the dirty mark of the
+		// current one
+		try(OutputStream stream = storage.store("file2")) {
+			stream.write(data(3));
+		}
+		storage.onEviction("file2", data(3));
+		assertFalse(lower.contains("file2"));
+		storage.flush();
+		try(InputStream input = lower.retrieve("file2")) {
+			assertTrue(input.read() == 3);
+		}
+	}
+}
@@ -3,13 +3,17 @@
  */ 
 package org.dihedron.patterns.cache.storage;
 
+import static org.junit.Assert.assertTrue;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Authenticator;
+import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dihedron.core.License;
 import org.dihedron.core.streams.Streams;
@@ -21,6 +25,10 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * @author Andrea Funto'
  */
@@ -123,4 +131,160 @@ public class URLStorageTest {
 			logger.trace("result:\n{}", s);
 		}		
 	}
+	
+	@Test
+	public void testRevalidation() throws Exception {
+		final AtomicInteger downloads = new AtomicInteger();
+		final AtomicInteger revalidations = new AtomicInteger();
+		final String[] version = { "v1" };
+		final boolean[] truncated = { false };
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String etag = "\"" + version[0] + "\"";
+				exchange.getResponseHeaders().add("ETag", etag);
+				exchange.getResponseHeaders().add("Cache-Control", exchange.getRequestURI().getPath().equals("/fresh") ? "max-age=3600" : "no-cache");
+				if(exchange.getRequestMethod().equals("HEAD")) {
+					exchange.getResponseHeaders().add("Content-Length", String.valueOf(version[0].length()));
+					exchange.sendResponseHeaders(200, -1);
+				} else if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					revalidations.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+				} else {
+					downloads.incrementAndGet();
+					byte[] body = version[0].getBytes("UTF-8");
+					exchange.sendResponseHeaders(200, truncated[0] ? body.length + 10 : body.length);
+					exchange.getResponseBody().write(body);
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		try {
+			String base = "http://127.0.0.1:" + server.getAddress().getPort();
+			MemoryStorage backing = new MemoryStorage();
+			URLStorage storage = new URLStorage(Proxy.NO_PROXY, backing);
+			Cache cache = new Cache(storage);
+			try(OutputStream os = cache.put(base + "/stale")) {}
+			try(OutputStream os = cache.put(base + "/fresh")) {}
+			
+			assertTrue(storage.retrieveSize(base + "/stale") == 2);
+			assertTrue(read(cache, base + "/stale").equals("v1"));
+			assertTrue(downloads.get() == 1);
+			assertTrue(backing.contains(base + "/stale"));
+			assertTrue(storage.retrieveSize(base + "/stale") == 2);
+			
+			// unchanged resources are revalidated, not downloaded again
+			assertTrue(read(cache, base + "/stale").equals("v1"));
+			assertTrue(downloads.get() == 1);
+			assertTrue(revalidations.get() == 1);
+			
+			// changed resources are downloaded again
+			version[0] = "v2";
+			assertTrue(read(cache, base + "/stale").equals("v2"));
+			assertTrue(downloads.get() == 2);
+			
+			// fresh resources are served without contacting the server
+			assertTrue(read(cache, base + "/fresh").equals("v2"));
+			assertTrue(read(cache, base + "/fresh").equals("v2"));
+			assertTrue(downloads.get() == 3);
+			assertTrue(revalidations.get() == 1);
+			
+			cache.delete(base + "/fresh", false);
+			assertTrue(!backing.contains(base + "/fresh"));
+			
+			// truncated downloads do not replace the local copy
+			version[0] = "v3";
+			truncated[0] = true;
+			assertTrue(read(cache, base + "/stale").equals("v2"));
+			assertTrue(downloads.get() == 4);
+			assertTrue(storage.retrieveSize(base + "/stale") == 2);
+			truncated[0] = false;
+			assertTrue(read(cache, base + "/stale").equals("v3"));
+			
+			// if the server is gone, the stale copy is served
+			server.stop(0);
+			server = null;
+			assertTrue(read(cache, base + "/stale").equals("v3"));
+		} finally {
+			if(server != null) {
+				server.stop(0);
+			}
+		}
+	}
+	
+	@Test
+	public void testRange() throws Exception {
+		final AtomicInteger ranges = new AtomicInteger();
+		final byte[] body = "0123456789".getBytes("UTF-8");
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				if(range != null && exchange.getRequestURI().getPath().equals("/ranged")) {
+					ranges.incrementAndGet();
+					String[] bounds = range.substring("bytes=".length()).split("-", -1);
+					int start = Integer.parseInt(bounds[0]);
+					int end = bounds[1].isEmpty() ? body.length - 1 : Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+					if(start >= body.length) {
+						exchange.sendResponseHeaders(416, -1);
+					} else {
+						exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+						exchange.sendResponseHeaders(206, end - start + 1);
+						exchange.getResponseBody().write(body, start, end - start + 1);
+					}
+				} else {
+					exchange.sendResponseHeaders(200, body.length);
+					exchange.getResponseBody().write(body);
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		try {
+			String base = "http://127.0.0.1:" + server.getAddress().getPort();
+			URLStorage storage = new URLStorage(Proxy.NO_PROXY);
+			storage.store(base + "/ranged").close();
+			storage.store(base + "/plain").close();
+			
+			// servers supporting ranges only send the requested bytes
+			assertTrue(read(storage.retrieve(base + "/ranged", 3, 4)).equals("3456"));
+			assertTrue(read(storage.retrieve(base + "/ranged", 7, -1)).equals("789"));
+			assertTrue(read(storage.retrieve(base + "/ranged", 20, 2)).equals(""));
+			assertTrue(ranges.get() == 3);
+			
+			// the range is extracted locally from servers ignoring it
+			assertTrue(read(storage.retrieve(base + "/plain", 3, 4)).equals("3456"));
+			
+			// with a backing storage, the range is read from the local copy
+			MemoryStorage backing = new MemoryStorage();
+			storage = new URLStorage(Proxy.NO_PROXY, backing);
+			storage.store(base + "/ranged").close();
+			assertTrue(read(storage.retrieve(base + "/ranged", 5, 2)).equals("56"));
+			assertTrue(backing.retrieveSize(base + "/ranged") == 10);
+			assertTrue(ranges.get() == 3);
+		} finally {
+			server.stop(0);
+		}
+	}
+	
+	private String read(InputStream stream) throws IOException {
+		try(InputStream input = stream; ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+			byte[] buffer = new byte[64];
+			int read;
+			while((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+			return new String(output.toByteArray(), "UTF-8");
+		}
+	}
+	
+	private String read(Cache cache, String resource) throws Exception {
+		try(InputStream input = cache.get(resource); ByteArrayOutputStream output = new ByteArrayOutputStream()) { 
+			Streams.copy(input, output);
+			return new String(output.toByteArray(), "UTF-8");
+		}
+	}
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2015, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.patterns.cache.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dihedron.core.License;
+import org.dihedron.core.regex.Regex;
+import org.dihedron.patterns.cache.CacheException;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class WriteBehindStorageTest {
+
+	/**
+	 * A memory storage whose writes wait for a gate to be opened.
+	 */
+	private static class GatedStorage extends MemoryStorage {
+
+		private final CountDownLatch gate = new CountDownLatch(1);
+
+		@Override
+		public OutputStream store(String resource) throws CacheException {
+			try {
+				gate.await();
+			} catch(InterruptedException e) {
+				throw new CacheException("interrupted", e);
+			}
+			return super.store(resource);
+		}
+	}
+
+	@Test
+	public void testReadYourWrites() throws Exception {
+		GatedStorage underlying = new GatedStorage();
+		WriteBehindStorage storage = new WriteBehindStorage(underlying);
+
+		write(storage, "file1", 100);
+		write(storage, "file2", 200);
+		write(storage, "other", 300);
+
+		// resources are visible before they are flushed
+		assertTrue(underlying.isEmpty());
+		assertTrue(storage.contains("file1"));
+		assertTrue(storage.retrieveSize("file2") == 200);
+		assertTrue(read(storage, "file2") == 200);
+		assertTrue(storage.list(new Regex("file.*")).length == 2);
+
+		// deleted resources are never flushed
+		storage.delete(new Regex("file2"));
+		assertFalse(storage.contains("file2"));
+
+		underlying.gate.countDown();
+		storage.flush();
+		assertTrue(storage.getPendingCount() == 0);
+		assertTrue(underlying.contains("file1"));
+		assertFalse(underlying.contains("file2"));
+		assertTrue(underlying.retrieveSize("other") == 300);
+		assertTrue(read(storage, "other") == 300);
+		assertTrue(storage.list().length == 2);
+
+		storage.shutdown();
+		write(storage, "file3", 10);
+		assertTrue(underlying.contains("file3"));
+	}
+
+	@Test
+	public void testBackPressure() throws Exception {
+		GatedStorage underlying = new GatedStorage();
+		final WriteBehindStorage storage = new WriteBehindStorage(underlying, 1000, 4);
+
+		write(storage, "file1", 600);
+		final AtomicBoolean buffered = new AtomicBoolean(false);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					write(storage, "file2", 600);
+					buffered.set(true);
+				} catch(IOException | CacheException e) {
+				}
+			}
+		};
+		thread.start();
+
+		// the buffer is full until the first resource is flushed
+		thread.join(300);
+		assertFalse(buffered.get());
+
+		underlying.gate.countDown();
+		thread.join(TimeUnit.SECONDS.toMillis(10));
+		assertTrue(buffered.get());
+		storage.flush();
+		assertTrue(underlying.size() == 2);
+		storage.shutdown();
+	}
+
+	@Test
+	public void testShutdownWhileBuffering() throws Exception {
+		GatedStorage underlying = new GatedStorage();
+		final WriteBehindStorage storage = new WriteBehindStorage(underlying, 1000, 4);
+
+		write(storage, "file1", 600);
+		final AtomicBoolean buffered = new AtomicBoolean(false);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					write(storage, "file2", 600);
+					buffered.set(true);
+				} catch(IOException | CacheException e) {
+				}
+			}
+		};
+		Thread stopper = new Thread() {
+			@Override
+			public void run() {
+				try {
+					storage.shutdown();
+				} catch(InterruptedException e) {
+				}
+			}
+		};
+		producer.start();
+		producer.join(300);
+		assertFalse(buffered.get());
+
+		// the storage is shut down while the producer waits for space
+		stopper.start();
+		stopper.join(300);
+		underlying.gate.countDown();
+		producer.join(TimeUnit.SECONDS.toMillis(10));
+		stopper.join(TimeUnit.SECONDS.toMillis(10));
+		assertTrue(buffered.get());
+		assertFalse(stopper.isAlive());
+
+		// nothing is left behind the stopped writer
+		assertTrue(underlying.size() == 2);
+		assertTrue(storage.getPendingCount() == 0);
+		Thread flusher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					storage.flush();
+				} catch(InterruptedException e) {
+				}
+			}
+		};
+		flusher.start();
+		flusher.join(TimeUnit.SECONDS.toMillis(10));
+		assertFalse(flusher.isAlive());
+	}
+
+	private static void write(WriteBehindStorage storage, String resource, int size) throws IOException, CacheException {
+		try(OutputStream output = storage.store(resource)) {
+			output.write(new byte[size]);
+		}
+	}
+
+	private static int read(WriteBehindStorage storage, String resource) throws IOException {
+		try(InputStream input = storage.retrieve(resource)) {
+			int count = 0;
+			while(input.read() != -1) {
+				++count;
+			}
+			return count;
+		}
+	}
+}